@@ -0,0 +1,237 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Versioned binary wire format shared by ChatServer and ChatClient. A client asks for it with a line of
+// "PROTOCOL BINARY/1" and sends its login line once the server has answered the same; after the login both
+// sides exchange frames. (Older clients prefix the login line itself with "PROTOCOL BINARY/1 ", which a server
+// that does not know the handshake takes for a guest's name, password and all.) A login line without either
+// stays on the legacy text protocol.
+//
+// Frame:  [opcode:1][length:4][payload:length]   Strings inside payloads: [length:2][UTF-8 bytes]
+class BinaryProtocol {
+    static final String VERSION = "BINARY/1";
+    static final String HANDSHAKE = "PROTOCOL " + VERSION;
+
+    static final int HEADER_SIZE = 5;
+    static final int MAX_PAYLOAD = 1 << 20;
+    static final int MAX_LINE = 1 << 20;
+
+    // Client to server
+    static final byte BROADCAST = 0x01;     // text
+    static final byte GROUP_CREATE = 0x02;  // group code
+    static final byte GROUP_JOIN = 0x03;    // group code
+    static final byte GROUP_MSG = 0x04;     // [group][text]
+    static final byte FILE_BEGIN = 0x05;    // [mode:1][target][file name][size:8], followed by FILE_DATA frames
+    static final byte FILE_SHARE = 0x07;    // [mode:1][target][file id][file name], chunks already on the transfer channel
+    static final byte GROUP_LEAVE = 0x08;   // group code
+    static final byte GROUP_DELETE = 0x09;  // group code, creator only
+    static final byte HISTORY = 0x0A;       // [group or "Broadcast"][fromOffset:8, negative for the latest][limit:4]
+    static final byte SEARCH = 0x0B;        // [group or "Broadcast"][beforeOffset:8, negative for the newest][limit:4][query]
+    static final byte COMPRESS = 0x0C;      // "deflate", accepting the server's COMPRESSION offer
+    static final byte DIRECT_MSG = 0x0D;    // [username][text]
+
+    // Both directions
+    static final byte FILE_DATA = 0x06;     // raw file bytes
+
+    // Server to client
+    static final byte MESSAGE = 0x10;       // one line of the text protocol
+    static final byte DEFLATED = 0x11;      // [opcode:1][zlib-compressed payload of that frame], once compression is accepted
+
+    static final byte MODE_BROADCAST = 0;
+    static final byte MODE_GROUP = 1;
+    static final byte MODE_DIRECT = 2;      // target is a username
+
+    static ByteBuffer frame(byte opcode, byte[] payload, int offset, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.put(opcode).putInt(length).put(payload, offset, length).flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    static ByteBuffer frame(byte opcode, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return frame(opcode, bytes, 0, bytes.length);
+    }
+
+    static ByteBuffer groupMessage(String groupCode, String text) {
+        return addressed(GROUP_MSG, groupCode, text);
+    }
+
+    static ByteBuffer directMessage(String username, String text) {
+        return addressed(DIRECT_MSG, username, text);
+    }
+
+    // [target][text]
+    private static ByteBuffer addressed(byte opcode, String target, String text) {
+        byte[] to = target.getBytes(StandardCharsets.UTF_8);
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + to.length + body.length);
+        payload.putShort((short) to.length).put(to).put(body);
+        return frame(opcode, payload.array(), 0, payload.capacity());
+    }
+
+    static ByteBuffer fileBegin(byte mode, String target, String fileName, long size) {
+        byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+        byte[] nameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 2 + targetBytes.length + 2 + nameBytes.length + 8);
+        payload.put(mode).putShort((short) targetBytes.length).put(targetBytes)
+            .putShort((short) nameBytes.length).put(nameBytes).putLong(size);
+        return frame(FILE_BEGIN, payload.array(), 0, payload.capacity());
+    }
+
+    static ByteBuffer fileShare(byte mode, String target, String fileId, String fileName) {
+        byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+        byte[] idBytes = fileId.getBytes(StandardCharsets.UTF_8);
+        byte[] nameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 2 + targetBytes.length + 2 + idBytes.length + 2 + nameBytes.length);
+        payload.put(mode).putShort((short) targetBytes.length).put(targetBytes)
+            .putShort((short) idBytes.length).put(idBytes).putShort((short) nameBytes.length).put(nameBytes);
+        return frame(FILE_SHARE, payload.array(), 0, payload.capacity());
+    }
+
+    static ByteBuffer history(String stream, long fromOffset, int limit) {
+        byte[] streamBytes = stream.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + streamBytes.length + 8 + 4);
+        payload.putShort((short) streamBytes.length).put(streamBytes).putLong(fromOffset).putInt(limit);
+        return frame(HISTORY, payload.array(), 0, payload.capacity());
+    }
+
+    static ByteBuffer search(String stream, long beforeOffset, int limit, String query) {
+        byte[] streamBytes = stream.getBytes(StandardCharsets.UTF_8);
+        byte[] queryBytes = query.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + streamBytes.length + 8 + 4 + 2 + queryBytes.length);
+        payload.putShort((short) streamBytes.length).put(streamBytes).putLong(beforeOffset).putInt(limit)
+            .putShort((short) queryBytes.length).put(queryBytes);
+        return frame(SEARCH, payload.array(), 0, payload.capacity());
+    }
+
+    static String getString(ByteBuffer payload) {
+        int length = payload.getShort() & 0xFFFF;
+        String value = new String(payload.array(), payload.arrayOffset() + payload.position(), length, StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return value;
+    }
+
+    static String remainingText(ByteBuffer payload) {
+        return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), StandardCharsets.UTF_8);
+    }
+
+    static void write(OutputStream out, ByteBuffer frame) throws IOException {
+        ByteBuffer view = frame.duplicate();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        out.write(bytes);
+    }
+
+    // Reads one '\n'-terminated UTF-8 line straight from the stream, so no bytes past it are
+    // buffered away from whatever reads the stream next (frames or raw file data)
+    static String readLine(InputStream in) throws IOException {
+        byte[] line = new byte[128];
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (length == line.length) {
+                if (length >= MAX_LINE) throw new IOException("Line too long");
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = (byte) b;
+        }
+        if (b == -1 && length == 0) return null;
+        if (length > 0 && line[length - 1] == '\r') length--;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Decodes frames into one reusable payload buffer, so dispatching a frame allocates nothing.
+    // The payload view is only valid until the next call.
+    static class FrameReader {
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private ByteBuffer payload = ByteBuffer.allocate(256);
+        private boolean inPayload;
+        private byte opcode;
+
+        byte opcode() {
+            return opcode;
+        }
+
+        ByteBuffer payload() {
+            return payload;
+        }
+
+        // Blocking read of the next frame; false at end of stream
+        boolean read(DataInputStream in) throws IOException {
+            int first = in.read();
+            if (first == -1) return false;
+            opcode = (byte) first;
+            int length = checkLength(in.readInt());
+            payload.clear().limit(length);
+            in.readFully(payload.array(), 0, length);
+            return true;
+        }
+
+        // Non-blocking variant: consumes what it can from in and returns true once a whole frame is ready
+        boolean read(ByteBuffer in) throws IOException {
+            if (!inPayload) {
+                while (header.hasRemaining() && in.hasRemaining()) {
+                    header.put(in.get());
+                }
+                if (header.hasRemaining()) return false;
+                header.flip();
+                opcode = header.get();
+                int length = checkLength(header.getInt());
+                header.clear();
+                payload.clear().limit(length);
+                inPayload = true;
+            }
+
+            int count = Math.min(payload.remaining(), in.remaining());
+            in.get(payload.array(), payload.position(), count);
+            payload.position(payload.position() + count);
+            if (payload.hasRemaining()) return false;
+
+            payload.flip();
+            inPayload = false;
+            return true;
+        }
+
+        private int checkLength(int length) throws IOException {
+            if (length < 0 || length > MAX_PAYLOAD) throw new IOException("Invalid frame length: " + length);
+            if (length > payload.capacity()) payload = ByteBuffer.allocate(Math.max(length, payload.capacity() * 2));
+            return length;
+        }
+    }
+
+    // Expands DEFLATED payloads (see Compression) into one reusable buffer, valid until the next call
+    static class Inflating {
+        private final Inflater inflater = new Inflater();
+        private byte[] buffer = new byte[1 << 18];
+        private byte opcode;
+
+        byte opcode() {
+            return opcode;
+        }
+
+        ByteBuffer inflate(ByteBuffer payload) throws IOException {
+            opcode = payload.get();
+            inflater.reset();
+            inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            int length = 0;
+            try {
+                while (!inflater.finished()) {
+                    if (length == buffer.length) {
+                        if (length >= MAX_PAYLOAD) throw new IOException("Compressed frame is too large");
+                        buffer = Arrays.copyOf(buffer, Math.min(MAX_PAYLOAD, length * 2));
+                    }
+                    int count = inflater.inflate(buffer, length, buffer.length - length);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) throw new IOException("Truncated compressed frame");
+                    length += count;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed frame: " + e.getMessage());
+            }
+            return ByteBuffer.wrap(buffer, 0, length);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+// Content-addressed store behind every file the server keeps: transfer chunks and spooled uploads alike
+// are named by their SHA-256, so a file sent again, or to another group, is written to disk once.
+// Blobs being read are pinned by a reference count; past the quota the least recently used unpinned
+// blobs are evicted. An upload reserves its declared size before it is spooled, so files still being written
+// count against the quota too.   --store-dir=<directory> --store-quota-mb=4096
+class BlobStore {
+    private final Path directory;
+    private final long quota;
+    // A lock rather than a monitor, so virtual threads that hit the disk in here never pin
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Blob> blobs = new LinkedHashMap<>(16, 0.75f, true);
+    private long used;
+    private long reserved; // declared sizes of uploads still being spooled
+
+    private static final class Blob {
+        final long size;
+        int references;
+
+        Blob(long size) {
+            this.size = size;
+        }
+    }
+
+    // Picks up blobs left by an earlier run, oldest first so they are the first to go
+    BlobStore(Path directory, long quota) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.quota = quota;
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.forEach(files::add);
+        }
+        files.sort(Comparator.comparing(file -> file.toFile().lastModified()));
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (ChunkedTransfer.isHash(name) || isVariant(name)) {
+                long size = Files.size(file);
+                blobs.put(name, new Blob(size));
+                used += size;
+            } else if (name.endsWith(".tmp")) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // A file in the store directory to write into and then hand to adopt()
+    Path newTempFile(String prefix) throws IOException {
+        return Files.createTempFile(directory, prefix, ".tmp");
+    }
+
+    // Also counts as a use, so blobs that are still asked for stay clear of eviction
+    boolean contains(String hash) {
+        lock.lock();
+        try {
+            return blobs.get(hash) != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stores the bytes under the given hash unless that blob already exists
+    void put(String hash, ByteBuffer bytes) throws IOException {
+        if (!ChunkedTransfer.hash(bytes).equals(hash)) throw new IOException("Content does not match its hash");
+        if (contains(hash)) return;
+        Path temp = newTempFile("blob_");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            ByteBuffer view = bytes.duplicate();
+            while (view.hasRemaining()) {
+                channel.write(view);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        commit(temp, hash, bytes.remaining());
+    }
+
+    // Sets size bytes aside for an upload about to be spooled, evicting to make room; false when they do not fit.
+    // Ends with adopt() or unreserve().
+    boolean reserve(long size) {
+        lock.lock();
+        try {
+            evict(size);
+            if (used + reserved + size > quota) return false;
+            reserved += size;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void unreserve(long size) {
+        lock.lock();
+        try {
+            reserved -= size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves a finished temp file of size bytes, reserved with reserve(), into the store under hash, which its
+    // writer worked out as it wrote it, so nothing reads the file back here; a duplicate is simply deleted
+    void adopt(Path temp, String hash, long size) throws IOException {
+        commit(temp, hash, size, size);
+    }
+
+    private void commit(Path temp, String hash, long size) throws IOException {
+        commit(temp, hash, size, 0);
+    }
+
+    private void commit(Path temp, String hash, long size, long reservation) throws IOException {
+        lock.lock();
+        try {
+            reserved -= reservation;
+            if (blobs.get(hash) != null) {
+                Files.deleteIfExists(temp);
+                return;
+            }
+            evict(size);
+            if (used + reserved + size > quota) {
+                Files.deleteIfExists(temp);
+                throw new IOException("File store is full");
+            }
+            Files.move(temp, path(hash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            blobs.put(hash, new Blob(size));
+            used += size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A form of a stored blob derived from it, such as its compressed frames, named "<hash>.<kind>".
+    // It is stored, pinned and evicted on its own, like any blob.
+    static String variant(String hash, String kind) {
+        return hash + "." + kind;
+    }
+
+    private static boolean isVariant(String name) {
+        int dot = name.indexOf('.');
+        return dot > 0 && ChunkedTransfer.isHash(name.substring(0, dot)) && !name.endsWith(".tmp");
+    }
+
+    // Moves a finished temp file into the store under a variant name; kept as is if already there
+    void adoptVariant(Path temp, String name) throws IOException {
+        long size;
+        try {
+            size = Files.size(temp);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        commit(temp, name, size);
+    }
+
+    // Pins a blob while it is read; null when it is not (or no longer) stored. Pair with release().
+    Path acquire(String hash) {
+        lock.lock();
+        try {
+            Blob blob = blobs.get(hash);
+            if (blob == null) return null;
+            blob.references++;
+            return path(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(String hash) {
+        lock.lock();
+        try {
+            Blob blob = blobs.get(hash);
+            if (blob != null && blob.references > 0) blob.references--;
+            evict(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Frees unpinned blobs, least recently used first, until incoming bytes fit under the quota
+    private void evict(long incoming) {
+        Iterator<Map.Entry<String, Blob>> entries = blobs.entrySet().iterator();
+        while (used + reserved + incoming > quota && entries.hasNext()) {
+            Map.Entry<String, Blob> entry = entries.next();
+            if (entry.getValue().references > 0) continue;
+            try {
+                Files.deleteIfExists(path(entry.getKey()));
+                entries.remove();
+                used -= entry.getValue().size;
+            } catch (IOException e) {
+                System.err.println("Could not evict blob: " + e.getMessage());
+            }
+        }
+    }
+
+    private Path path(String hash) {
+        return directory.resolve(hash);
+    }
+}
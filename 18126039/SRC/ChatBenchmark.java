@@ -0,0 +1,1839 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Headless benchmarks for the chat server. Every scenario runs against loopback sockets, so no network is needed.
+// Build with the JDK alone (17+, no dependencies): javac -d out *.java && java -cp out ChatBenchmark <scenario>
+// Usage: java ChatBenchmark <scenario> [--name=value ...]
+//   load     --engines=thread,virtual,nio --clients=1000 --senders=10 --messages=100 --batch-latency-us=0,1000
+//   stalled  --engines=thread,nio --policies=drop-oldest,disconnect,block --clients=200 --messages=1000 --payload=512
+//   fanout   --sizes=10,100,1000 --payload=100
+//   parse    --payload=100
+//   dispatch --sizes=10,100,1000 --payload=100
+//   filerelay --engines=thread,nio --size-mb=1024 --receivers=20
+//   groups   --threads=8 --groups=1000 --members=10000 --seconds=3
+//   ingest   --threads=1,8,64 --streams=10 --payload=100 --seconds=3 --segment-mb=64
+//   logins   --users=1000000 --iterations-list=1000,100000 --logins=200 --auth-threads=<cores>
+//   cluster  --engines=thread,nio --modes=broadcast,group --nodes=3 --clients=300 --senders=9 --messages=100
+//   limits   --engines=thread,nio --clients=200 --flood=20000 --messages=30 --payload=100 --threads=1,8
+//   compression --levels=1,6,9 --message-sizes=100,256,1024,4096,65536 --file-mb=4 --files=<path,...>
+//   receive  --size-mb=512 --chunk-kb=64
+//   direct   --routes=100000 --threads=1,8 --seconds=3 --payload=100
+//   snapshot --groups=100000 --users=100000 --per-user=5 --starts=3
+//   mailboxes --members=5000 --groups=10 --messages=10000 --payload=100 --drains=100
+//   search   --messages=10000000 --streams=10 --vocabulary=50000 --words=8 --index-mb=1024 --queries=200
+// Server processes run from this JVM's class path, or --server-classpath=<dir> to measure another build;
+// they and the handlers run in-process have their rate limits off unless the scenario is about them
+// Micro-benchmarks (fanout, parse, ...) run in-process: --warmups=5 --iterations=10 --iteration-ms=200
+// The harness is part of the sources rather than a JMH module, since the project builds with javac alone.
+// Most scenarios drive real sockets and server processes end to end, which JMH would not measure any
+// better; measure() follows JMH's method for the in-process ones (see there). It does not fork, so run
+// one scenario per JVM, as main() does, and compare numbers from the same scenario only.
+public class ChatBenchmark {
+    private static String[] options = new String[0];
+
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "load";
+        options = args;
+        ChatServer.options = ServerProcess.UNLIMITED;
+
+        switch (scenario) {
+            case "load":
+                for (String engine : option("engines", "thread,nio").split(",")) {
+                    for (String latency : option("batch-latency-us", "0").split(",")) {
+                        runLoad(engine.trim(), Integer.parseInt(latency.trim()));
+                    }
+                }
+                break;
+            case "stalled":
+                for (String engine : option("engines", "thread,nio").split(",")) {
+                    for (String policy : option("policies", "drop-oldest,disconnect,block").split(",")) {
+                        runStalled(engine.trim(), policy.trim());
+                    }
+                }
+                break;
+            case "fanout":
+                for (String size : option("sizes", "10,100,1000").split(",")) {
+                    runFanOut(Integer.parseInt(size.trim()));
+                }
+                break;
+            case "filerelay":
+                for (String engine : option("engines", "thread,nio").split(",")) {
+                    runFileRelay(engine.trim());
+                }
+                break;
+            case "parse":
+                runParse();
+                break;
+            case "dispatch":
+                for (String size : option("sizes", "10,100,1000").split(",")) {
+                    runDispatch(Integer.parseInt(size.trim()));
+                }
+                break;
+            case "groups":
+                runGroups();
+                break;
+            case "ingest":
+                for (String threads : option("threads", "1,8,64").split(",")) {
+                    runIngest(Integer.parseInt(threads.trim()), false);
+                    runIngest(Integer.parseInt(threads.trim()), true);
+                }
+                break;
+            case "logins":
+                runLogins();
+                break;
+            case "search":
+                runSearch();
+                break;
+            case "cluster":
+                for (String engine : option("engines", "thread,nio").split(",")) {
+                    for (String mode : option("modes", "broadcast,group").split(",")) {
+                        runCluster(engine.trim(), mode.trim());
+                    }
+                }
+                break;
+            case "limits":
+                runBuckets();
+                for (String engine : option("engines", "thread,nio").split(",")) {
+                    runLimits(engine.trim(), false);
+                    runLimits(engine.trim(), true);
+                }
+                break;
+            case "compression":
+                runCompression();
+                break;
+            case "mailboxes":
+                runMailboxes();
+                break;
+            case "direct":
+                runDirect();
+                break;
+            case "receive":
+                runReceive();
+                break;
+            case "snapshot":
+                runSnapshot();
+                break;
+            default:
+                System.err.println("Unknown scenario: " + scenario);
+        }
+    }
+
+    static String option(String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : options) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
+
+    static int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+    }
+
+    // Starts several server processes joined into one cluster on loopback and spreads the clients evenly
+    // over them. Senders on every node either broadcast, or send to one group that every client joined.
+    // Link frames per message is what crossed between nodes for each message sent, from the nodes' metrics:
+    // a message should cross once per other node, however many of its recipients are there.
+    private static void runCluster(String engine, String mode) throws Exception {
+        int nodeCount = intOption("nodes", 3);
+        int clients = intOption("clients", 300);
+        int senders = Math.min(clients, intOption("senders", 9));
+        int messages = intOption("messages", 100);
+
+        int[] clusterPorts = new int[nodeCount];
+        int[] metricsPorts = new int[nodeCount];
+        StringBuilder peers = new StringBuilder();
+        for (int i = 0; i < nodeCount; i++) {
+            clusterPorts[i] = freePort();
+            metricsPorts[i] = freePort();
+            peers.append(i == 0 ? "" : ",").append("localhost:").append(clusterPorts[i]);
+        }
+        Path store = Files.createTempDirectory("cluster_");
+        List<ServerProcess> nodes = new ArrayList<>();
+        try {
+            int[] ports = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                nodes.add(ServerProcess.start("--engine=" + engine, "--transfer-port=0", "--metrics-port=" + metricsPorts[i],
+                    "--cluster-port=" + clusterPorts[i], "--peers=" + peers, "--cluster-secret=benchmark", "--store-dir=" + store.resolve("node" + i)));
+                ports[i] = nodes.get(i).port;
+            }
+            long deadline = System.currentTimeMillis() + 30_000;
+            for (int metricsPort : metricsPorts) {
+                while (scrapeMetric(metricsPort, "chat_cluster_peers_connected") < nodeCount - 1) {
+                    if (System.currentTimeMillis() > deadline) throw new IOException("Cluster links did not come up");
+                    Thread.sleep(50);
+                }
+            }
+
+            try (LoadClients load = new LoadClients(ports, clients)) {
+                load.connectAll();
+                load.awaitLogins(60_000);
+                String command = "";
+                if (mode.equals("group")) {
+                    command = "GROUP_MSG bench ";
+                    load.sendLine(0, "GROUP_CREATE bench");
+                    load.awaitGroupReplies(1, 10_000);
+                    for (int i = 1; i < clients; i++) {
+                        load.sendLine(i, "GROUP_JOIN bench");
+                    }
+                    load.awaitGroupReplies(clients, 30_000);
+                }
+
+                long framesBefore = 0;
+                for (int metricsPort : metricsPorts) {
+                    framesBefore += scrapeMetric(metricsPort, "chat_cluster_frames_out_total");
+                }
+                long expected = (long) senders * messages * clients;
+                long sendStart = System.nanoTime();
+                load.broadcast(senders, messages, 0, command);
+                boolean complete = load.awaitDeliveries(expected, 120_000);
+                double seconds = (System.nanoTime() - sendStart) / 1e9;
+                long frames = -framesBefore;
+                for (int metricsPort : metricsPorts) {
+                    frames += scrapeMetric(metricsPort, "chat_cluster_frames_out_total");
+                }
+
+                System.out.printf("%-8s %-9s nodes=%d clients=%d delivered=%d/%d in %.2fs -> %.0f deliveries/s%s%n",
+                    engine, mode, nodeCount, clients, load.delivered.get(), expected, seconds, load.delivered.get() / seconds, complete ? "" : " (TIMED OUT)");
+                System.out.printf("%-8s %-9s link frames=%d (%.2f per message sent, %.4f per delivery)%n",
+                    engine, mode, frames, (double) frames / (senders * messages), (double) frames / Math.max(1, load.delivered.get()));
+                System.out.printf("%-8s %-9s latency %s%n", engine, mode, load.latency.summary());
+            }
+        } finally {
+            for (ServerProcess node : nodes) {
+                node.stop();
+            }
+            try (java.util.stream.Stream<Path> files = Files.walk(store)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    // One unlabelled sample from a node's /metrics, or -1 when it cannot be read
+    static long scrapeMetric(int metricsPort, String name) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new URL("http://127.0.0.1:" + metricsPort + "/metrics").openStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(name + " ")) return Long.parseLong(line.substring(name.length() + 1));
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+
+    // CPU against bytes saved for Deflate, compressing frame by frame as the server does: chat text in
+    // messages of several sizes, and files in Compression.FILE_CHUNK pieces. Frames that would not shrink,
+    // or are under --compress-min-bytes, count at their plain size. Random bytes stand in for media and
+    // archives; --files adds real files of other types.
+    private static void runCompression() throws IOException {
+        Map<String, byte[]> samples = new LinkedHashMap<>();
+        for (String size : option("message-sizes", "100,256,1024,4096,65536").split(",")) {
+            samples.put("chat text " + size.trim() + " B", chatText(Integer.parseInt(size.trim())));
+        }
+        int fileBytes = intOption("file-mb", 4) << 20;
+        samples.put("log file", syntheticFile(fileBytes, i -> "2026-10-18T12:" + i / 600 % 60 + ":" + i / 10 % 60 + "." + i % 1000
+            + " INFO  [worker-" + i % 8 + "] request " + i + " for /api/items/" + i * 7 % 1000 + " served in " + i * 31 % 97 + " ms\n"));
+        samples.put("JSON file", syntheticFile(fileBytes, i -> "{\"id\":" + i + ",\"user\":\"user" + i * 13 % 1000 + "\",\"group\":\"team" + i % 20
+            + "\",\"sent\":" + (1792300000000L + i * 977L) + ",\"text\":\"" + chatText(40 + i % 80) + "\"},\n"));
+        byte[] random = new byte[fileBytes];
+        new Random(7).nextBytes(random);
+        samples.put("random (media, archives)", random);
+        for (String file : option("files", "").split(",")) {
+            if (!file.isEmpty()) samples.put(Paths.get(file).getFileName().toString(), Files.readAllBytes(Paths.get(file)));
+        }
+
+        for (String level : option("levels", "1,6,9").split(",")) {
+            for (Map.Entry<String, byte[]> sample : samples.entrySet()) {
+                compressFrames(sample.getKey(), sample.getValue(), Integer.parseInt(level.trim()));
+            }
+        }
+    }
+
+    private static void compressFrames(String label, byte[] sample, int level) {
+        int minBytes = intOption("compress-min-bytes", 256);
+        int frame = Math.min(sample.length, Compression.FILE_CHUNK);
+        Deflater deflater = new Deflater(level);
+        Inflater inflater = new Inflater();
+        byte[] out = new byte[frame + 64];
+        byte[] back = new byte[frame];
+
+        // Compressed once for the sizes and for the client's side; null where the frame goes plain
+        List<byte[]> packed = new ArrayList<>();
+        long sent = 0;
+        for (int offset = 0; offset < sample.length; offset += frame) {
+            int length = Math.min(frame, sample.length - offset);
+            int size = length < minBytes ? -1 : deflate(deflater, sample, offset, length, out);
+            boolean pays = size >= 0 && size + 1 < length;
+            packed.add(pays ? Arrays.copyOf(out, size) : null);
+            sent += pays ? size + 1 : length;
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long budget = intOption("iteration-ms", 200) * 5_000_000L;
+        long deflateNanos = 0;
+        long deflated = 0;
+        for (long start = threads.getCurrentThreadCpuTime(); deflateNanos < budget; deflateNanos = threads.getCurrentThreadCpuTime() - start) {
+            for (int offset = 0; offset < sample.length; offset += frame) {
+                int length = Math.min(frame, sample.length - offset);
+                if (length >= minBytes) deflate(deflater, sample, offset, length, out);
+            }
+            deflated += sample.length;
+        }
+        long inflateNanos = 0;
+        long inflated = 0;
+        for (long start = threads.getCurrentThreadCpuTime(); packed.stream().anyMatch(Objects::nonNull) && inflateNanos < budget;
+             inflateNanos = threads.getCurrentThreadCpuTime() - start) {
+            for (byte[] bytes : packed) {
+                if (bytes == null) continue;
+                inflater.reset();
+                inflater.setInput(bytes);
+                try {
+                    inflated += inflater.inflate(back);
+                } catch (DataFormatException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        if (sample.length < minBytes) {
+            System.out.printf("%-26s level=%d  under --compress-min-bytes, sent plain%n", label, level);
+            return;
+        }
+        double saved = (sample.length - sent) / 1e6;
+        System.out.printf("%-26s level=%d  sent %5.1f%% of the bytes  deflate %6.1f MB/s  %s  inflate %s%n",
+            label, level, 100.0 * sent / sample.length, deflated / 1e6 / (deflateNanos / 1e9),
+            saved > 0 ? String.format("%7.2f ms CPU per MB saved", deflateNanos / 1e6 / (saved * deflated / sample.length)) : "      nothing saved      ",
+            inflated == 0 ? "-" : String.format("%6.1f MB/s", inflated / 1e6 / (inflateNanos / 1e9)));
+    }
+
+    // Compressed size, or -1 when it does not fit in out
+    private static int deflate(Deflater deflater, byte[] sample, int offset, int length, byte[] out) {
+        deflater.reset();
+        deflater.setInput(sample, offset, length);
+        deflater.finish();
+        int size = deflater.deflate(out);
+        return deflater.finished() ? size : -1;
+    }
+
+    // Chat lines drawn from common English words, Zipf-weighted, about the given size in bytes
+    private static final String[] WORDS = ("the to and a I you it of is that in for on this we my me have be so just do not with "
+        + "are can what was but at if all your get will know like about go up it's there no out think one time how now "
+        + "yeah ok good see they going then when here would them need back lol thanks meeting tomorrow today work done "
+        + "deploy build test fix issue review branch release server client message group file sent check later").split(" ");
+
+    private static byte[] chatText(int size) {
+        Random random = new Random(size);
+        StringBuilder text = new StringBuilder(size + 80);
+        while (text.length() < size) {
+            text.append("user").append(random.nextInt(50)).append(':');
+            int words = 3 + random.nextInt(15);
+            for (int i = 0; i < words; i++) {
+                text.append(' ').append(WORDS[(int) (WORDS.length * Math.pow(random.nextDouble(), 2.5))]);
+            }
+            text.append('\n');
+        }
+        text.setLength(size);
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] syntheticFile(int size, java.util.function.IntFunction<Object> record) {
+        ByteArrayOutputStream file = new ByteArrayOutputStream(size + 4096);
+        for (int i = 0; file.size() < size; i++) {
+            byte[] bytes = String.valueOf(record.apply(i)).getBytes(StandardCharsets.UTF_8);
+            file.write(bytes, 0, bytes.length);
+        }
+        return Arrays.copyOf(file.toByteArray(), size);
+    }
+
+    // The cost of one take from a token bucket, allowed and refused, on one thread and with many
+    // threads sharing the bucket, as a busy group's senders do
+    private static void runBuckets() throws Exception {
+        RateLimits.TokenBucket open = new RateLimits.TokenBucket(1, Long.MAX_VALUE / 4);
+        RateLimits.TokenBucket shut = new RateLimits.TokenBucket(TimeUnit.HOURS.toNanos(1), 1);
+        shut.take(1);
+        measure("token bucket take, allowed", () -> open.take(1));
+        measure("token bucket take, refused", () -> shut.take(1));
+
+        long runNanos = TimeUnit.SECONDS.toNanos(intOption("seconds", 2));
+        for (String count : option("threads", "1,8").split(",")) {
+            int threads = Integer.parseInt(count.trim());
+            LongAdder takes = new LongAdder();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                pool.execute(() -> {
+                    long done = 0;
+                    while (System.nanoTime() - start < runNanos) {
+                        open.take(1);
+                        done++;
+                    }
+                    takes.add(done);
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+            System.out.printf("token bucket shared by %d threads: %.1f M takes/s%n", threads, takes.sum() / ((System.nanoTime() - start) / 1e9) / 1e6);
+        }
+    }
+
+    // One client floods broadcasts as fast as its socket takes them while another sends a message every
+    // 100 ms and everyone else only listens. With the limits on, the flood is cut to one connection's
+    // rate and the paced sender's latency stays what it is on a quiet server; off, it waits behind the flood.
+    private static void runLimits(String engine, boolean limited) throws Exception {
+        int clients = intOption("clients", 200);
+        int flood = intOption("flood", 20000);
+        int paced = intOption("messages", 30);
+        String padding = "f".repeat(intOption("payload", 100));
+        int metricsPort = freePort();
+
+        ServerProcess server = limited
+            ? ServerProcess.start("--engine=" + engine, "--metrics-port=" + metricsPort, "--rate-messages=20", "--rate-bytes=65536", "--group-rate-messages=200")
+            : ServerProcess.start("--engine=" + engine, "--metrics-port=" + metricsPort);
+        try (LoadClients load = new LoadClients(server.port, clients)) {
+            load.connectAll();
+            load.awaitLogins(60_000);
+
+            Thread flooder = new Thread(() -> {
+                StringBuilder chunk = new StringBuilder();
+                try {
+                    for (int i = 0; i < flood; i++) {
+                        chunk.append("flood ").append(padding);
+                        if (i % 100 == 99 || i == flood - 1) {
+                            load.sendLine(0, chunk.toString());
+                            chunk.setLength(0);
+                        } else {
+                            chunk.append('\n');
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Flooder stopped: " + e.getMessage());
+                }
+            }, "flooder");
+            long start = System.nanoTime();
+            flooder.start();
+            for (int m = 0; m < paced; m++) {
+                load.sendLine(1, LoadClients.MARKER + System.nanoTime());
+                Thread.sleep(100);
+            }
+            flooder.join();
+            long expected = (long) paced * clients;
+            boolean complete = load.awaitDeliveries(expected, 120_000);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%-8s limits=%-3s flood of %d lines: %d refused, %d broadcast deliveries in all%n", engine, limited ? "on" : "off", flood,
+                scrapeMetric(metricsPort, "chat_rejected_total{limit=\"messages\"}"), scrapeMetric(metricsPort, "chat_deliveries_total{kind=\"broadcast\"}"));
+            System.out.printf("%-8s limits=%-3s paced sender: delivered=%d/%d in %.2fs%s, latency %s%n", engine, limited ? "on" : "off",
+                load.delivered.get(), expected, seconds, complete ? "" : " (TIMED OUT)", load.latency.summary());
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Connects many clients to a freshly started server process, then has a few of them broadcast
+    // time-stamped lines while a single selector thread counts deliveries on every connection.
+    // Write syscalls come from the server's /proc/<pid>/io, so batching shows up as writes per delivery.
+    private static void runLoad(String engine, int batchLatencyMicros) throws Exception {
+        int clients = intOption("clients", 1000);
+        int senders = Math.min(clients, intOption("senders", 10));
+        int messages = intOption("messages", 100);
+
+        ServerProcess server = ServerProcess.start("--engine=" + engine, "--max-batch-latency-us=" + batchLatencyMicros);
+        try (LoadClients load = new LoadClients(server.port, clients)) {
+            long connectStart = System.nanoTime();
+            load.connectAll();
+            load.awaitLogins(60_000);
+            double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+
+            long expected = (long) senders * messages * clients;
+            long writesBefore = server.io("syscw");
+            long sendStart = System.nanoTime();
+            load.broadcast(senders, messages, 0);
+            double sendSeconds = (System.nanoTime() - sendStart) / 1e9;
+            boolean complete = load.awaitDeliveries(expected, 120_000);
+            double totalSeconds = (System.nanoTime() - sendStart) / 1e9;
+            long writes = server.io("syscw") - writesBefore;
+
+            System.out.printf("%-8s clients=%d connect=%.2fs (%.0f conn/s) threads=%s rss=%s%n",
+                engine, clients, connectSeconds, clients / connectSeconds, server.status("Threads"), server.status("VmRSS"));
+            System.out.printf("%-8s sent=%d in %.2fs, delivered=%d/%d in %.2fs -> %.0f msgs/s in, %.0f deliveries/s%s%n",
+                engine, senders * messages, sendSeconds, load.delivered.get(), expected, totalSeconds,
+                senders * messages / totalSeconds, load.delivered.get() / totalSeconds, complete ? "" : " (TIMED OUT)");
+            System.out.printf("%-8s batch-latency=%dus write syscalls=%d (%.3f per delivery)%n",
+                engine, batchLatencyMicros, writes, (double) writes / Math.max(1, load.delivered.get()));
+            System.out.printf("%-8s latency %s%n", engine, load.latency.summary());
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Broadcast latency seen by healthy clients while one connected client never reads its socket
+    private static void runStalled(String engine, String policy) throws Exception {
+        int clients = intOption("clients", 200);
+        int senders = Math.min(clients, intOption("senders", 10));
+        int messages = intOption("messages", 1000);
+        int payload = intOption("payload", 512);
+
+        ServerProcess server = ServerProcess.start("--engine=" + engine, "--slow-consumer=" + policy,
+            "--outbound-capacity=" + intOption("outbound-capacity", 1024), "--block-timeout-ms=" + intOption("block-timeout-ms", 1000));
+        try (Socket stalled = new Socket(); LoadClients load = new LoadClients(server.port, clients)) {
+            stalled.setReceiveBufferSize(4096);
+            stalled.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port));
+            stalled.getOutputStream().write("stalled\n".getBytes(StandardCharsets.UTF_8));
+
+            load.connectAll();
+            load.awaitLogins(60_000);
+
+            long expected = (long) senders * messages * clients;
+            long start = System.nanoTime();
+            load.broadcast(senders, messages, payload);
+            boolean complete = load.awaitDeliveries(expected, 60_000);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%-8s %-12s delivered=%d/%d in %.2fs (%.0f deliveries/s)%s%n", engine, policy,
+                load.delivered.get(), expected, seconds, load.delivered.get() / seconds, complete ? "" : " (TIMED OUT)");
+            System.out.printf("%-8s %-12s latency %s%n", engine, policy, load.latency.summary());
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Per-message cost of group fan-out: the old per-recipient println (concatenate and encode for
+    // every member) against encoding once and queueing the shared buffer. The encode-once op also
+    // pays for the writer's dequeue so the queues stay in steady state.
+    private static void runFanOut(int groupSize) {
+        String message = "x".repeat(intOption("payload", 100));
+
+        List<PrintWriter> writers = new ArrayList<>();
+        for (int i = 0; i < groupSize; i++) {
+            writers.add(new PrintWriter(new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8), true));
+        }
+        measure("fanout println      n=" + groupSize, () -> {
+            for (PrintWriter writer : writers) {
+                writer.println("[Group bench] user: " + message);
+            }
+        });
+
+        List<QueuedConnection> members = new ArrayList<>();
+        for (int i = 0; i < groupSize; i++) {
+            members.add(new QueuedConnection());
+        }
+        measure("fanout encode-once  n=" + groupSize, () -> {
+            ChatServer.fanOut(ServerMetrics.Delivery.GROUP_MSG, members, new ChatServer.SharedMessage("[Group bench] user: " + message));
+            for (QueuedConnection member : members) {
+                member.outbound.poll();
+            }
+        });
+    }
+
+    // Inbound parse cost: the text protocol's line split plus startsWith/split dispatch chain against
+    // binary frames dispatched on their opcode. Each op parses a batch of 1,000 mixed commands.
+    private static void runParse() throws IOException {
+        int batch = 1000;
+        String text = "y".repeat(intOption("payload", 100));
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int i = 0; i < batch; i++) {
+            if (i % 10 < 7) {
+                lines.write((text + "\n").getBytes(StandardCharsets.UTF_8));
+                BinaryProtocol.write(frames, BinaryProtocol.frame(BinaryProtocol.BROADCAST, text));
+            } else if (i % 10 < 9) {
+                lines.write(("GROUP_MSG team " + text + "\n").getBytes(StandardCharsets.UTF_8));
+                BinaryProtocol.write(frames, BinaryProtocol.groupMessage("team", text));
+            } else {
+                lines.write("GROUP_JOIN team\n".getBytes(StandardCharsets.UTF_8));
+                BinaryProtocol.write(frames, BinaryProtocol.frame(BinaryProtocol.GROUP_JOIN, "team"));
+            }
+        }
+        ByteBuffer lineBytes = ByteBuffer.wrap(lines.toByteArray());
+        ByteBuffer frameBytes = ByteBuffer.wrap(frames.toByteArray());
+        long[] counts = new long[4];
+
+        measure("parse text lines     x" + batch, () -> {
+            ByteBuffer in = lineBytes.duplicate();
+            int start = 0;
+            for (int i = 0; i < in.limit(); i++) {
+                if (in.get(i) != '\n') continue;
+                String inputLine = new String(in.array(), start, i - start, StandardCharsets.UTF_8);
+                start = i + 1;
+                if (inputLine.startsWith("GROUP_CREATE")) {
+                    counts[0] += inputLine.split(" ", 2)[1].length();
+                } else if (inputLine.startsWith("GROUP_JOIN")) {
+                    counts[1] += inputLine.split(" ", 2)[1].length();
+                } else if (inputLine.startsWith("GROUP_MSG")) {
+                    counts[2] += inputLine.split(" ", 3)[2].length();
+                } else if (inputLine.startsWith("FILE_TRANSFER")) {
+                    counts[0]++;
+                } else {
+                    counts[3] += inputLine.length();
+                }
+            }
+        });
+
+        BinaryProtocol.FrameReader reader = new BinaryProtocol.FrameReader();
+        measure("parse binary frames  x" + batch, () -> {
+            ByteBuffer in = frameBytes.duplicate();
+            try {
+                while (in.hasRemaining()) {
+                    if (!reader.read(in)) break;
+                    ByteBuffer payload = reader.payload();
+                    switch (reader.opcode()) {
+                        case BinaryProtocol.GROUP_JOIN:
+                            counts[1] += payload.remaining();
+                            break;
+                        case BinaryProtocol.GROUP_MSG:
+                            counts[2] += payload.remaining() - 2 - (payload.getShort(0) & 0xFFFF);
+                            break;
+                        case BinaryProtocol.BROADCAST:
+                            counts[3] += payload.remaining();
+                            break;
+                        default:
+                            counts[0]++;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // A command taken through the server's own dispatch, in-process: handleFrame and handleCommand
+    // decode it, look up the group and fan it out to members that only count. Unlike parse and fanout,
+    // this is everything a reading thread does per message short of the socket read.
+    private static void runDispatch(int groupSize) {
+        String text = "y".repeat(intOption("payload", 100));
+        String code = "dispatch" + groupSize;
+        CountingConnection[] members = new CountingConnection[groupSize];
+        for (int i = 0; i < groupSize; i++) {
+            members[i] = new CountingConnection();
+            members[i].binary = true;
+        }
+        CountingConnection sender = members[0];
+        try {
+            ChatServer.handleFrame(sender, BinaryProtocol.GROUP_CREATE, payloadOf(BinaryProtocol.frame(BinaryProtocol.GROUP_CREATE, code)));
+            for (int i = 1; i < groupSize; i++) {
+                ChatServer.handleFrame(members[i], BinaryProtocol.GROUP_JOIN, payloadOf(BinaryProtocol.frame(BinaryProtocol.GROUP_JOIN, code)));
+            }
+
+            ByteBuffer groupMessage = payloadOf(BinaryProtocol.groupMessage(code, text));
+            measure("dispatch GROUP_MSG frame  n=" + groupSize, () -> {
+                try {
+                    ChatServer.handleFrame(sender, BinaryProtocol.GROUP_MSG, groupMessage.duplicate());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            String line = "GROUP_MSG " + code + " " + text;
+            measure("dispatch GROUP_MSG line   n=" + groupSize, () -> ChatServer.handleCommand(sender, line));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            ChatServer.handleCommand(sender, "GROUP_DELETE " + code);
+        }
+    }
+
+    // The payload of an encoded frame in a heap buffer, as FrameReader hands it to handleFrame
+    private static ByteBuffer payloadOf(ByteBuffer frame) {
+        ByteBuffer encoded = frame.duplicate();
+        encoded.position(BinaryProtocol.HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(encoded.remaining());
+        payload.put(encoded).flip();
+        return payload;
+    }
+
+    // Recipient stub that only queues, like a connection whose writer is elsewhere
+    static class QueuedConnection extends ChatServer.ClientConnection {
+        final OutboundQueue<Object> outbound = new OutboundQueue<>();
+
+        QueuedConnection() {
+            username = "bench";
+        }
+
+        @Override
+        void enqueue(Object item) {
+            outbound.offer(item, false);
+        }
+
+        @Override
+        int queued() {
+            return outbound.size();
+        }
+
+        @Override
+        void receiveFile(String metadata) {
+        }
+
+        @Override
+        void close() {
+        }
+    }
+
+    // Multi-threaded stress of group membership: every thread mixes joins, leaves and group sends
+    // (1:1:2) on random groups and members, first on GroupRegistry, then on the old design of one
+    // synchronized map of ArrayLists (which also lets a member join twice). Sends fan out to stubs
+    // that only count, so the numbers are the registry's cost rather than socket writes.
+    private static void runGroups() throws InterruptedException {
+        int groupCount = intOption("groups", 1000);
+        int memberCount = intOption("members", 10000);
+        CountingConnection[] members = new CountingConnection[memberCount];
+        for (int i = 0; i < memberCount; i++) {
+            members[i] = new CountingConnection();
+        }
+        String[] codes = new String[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            codes[i] = "group" + i;
+        }
+
+        GroupRegistry registry = new GroupRegistry();
+        for (int i = 0; i < groupCount; i++) {
+            registry.create(codes[i], members[i % memberCount]);
+        }
+        runGroupMix("registry", codes, members, new GroupOps() {
+            public void join(String code, CountingConnection member) {
+                registry.join(code, member);
+            }
+
+            public void leave(String code, CountingConnection member) {
+                registry.leave(code, member);
+            }
+
+            public void send(String code, ChatServer.SharedMessage message) {
+                GroupRegistry.Group group = registry.get(code);
+                if (group != null) ChatServer.fanOut(ServerMetrics.Delivery.GROUP_MSG, group.members, message);
+            }
+        });
+
+        Map<String, List<ChatServer.ClientConnection>> legacy = Collections.synchronizedMap(new HashMap<>());
+        for (int i = 0; i < groupCount; i++) {
+            legacy.put(codes[i], new ArrayList<>(List.of(members[i % memberCount])));
+        }
+        runGroupMix("synchronized", codes, members, new GroupOps() {
+            public void join(String code, CountingConnection member) {
+                synchronized (legacy) {
+                    legacy.get(code).add(member);
+                }
+            }
+
+            public void leave(String code, CountingConnection member) {
+                synchronized (legacy) {
+                    legacy.get(code).remove(member);
+                }
+            }
+
+            public void send(String code, ChatServer.SharedMessage message) {
+                synchronized (legacy) {
+                    ChatServer.fanOut(ServerMetrics.Delivery.GROUP_MSG, legacy.get(code), message);
+                }
+            }
+        });
+    }
+
+    // Message log ingest: producer threads append to a few streams for a fixed time, either leaving
+    // the fsync to the background group commit or waiting for it after every append (durable). With
+    // one thread the durable figure is one fsync per message; more threads share each fsync. The
+    // log is then read back through its mappings.
+    private static void runIngest(int threadCount, boolean durable) throws Exception {
+        int streams = intOption("streams", 10);
+        byte[] payload = "z".repeat(intOption("payload", 100)).getBytes(StandardCharsets.UTF_8);
+        long millis = intOption("seconds", 3) * 1000L;
+        Path directory = Files.createTempDirectory("ingest_");
+        MessageLog log = new MessageLog(directory, (long) intOption("segment-mb", 64) << 20, Long.MAX_VALUE / 2, 10);
+        try {
+            LongAdder appended = new LongAdder();
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            List<Thread> threads = new ArrayList<>();
+            long end = System.nanoTime() + millis * 1_000_000L;
+            for (int t = 0; t < threadCount; t++) {
+                String stream = "group" + (t % streams);
+                Thread thread = new Thread(() -> {
+                    try {
+                        while (System.nanoTime() < end) {
+                            log.append(stream, payload);
+                            if (durable) log.awaitDurable();
+                            appended.increment();
+                        }
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            log.awaitDurable();
+            if (failure.get() != null) throw failure.get();
+
+            double seconds = millis / 1000.0;
+            System.out.printf("ingest %-8s threads=%-3d %10.0f msgs/s %8.1f MB/s%n", durable ? "durable" : "batched",
+                threadCount, appended.sum() / seconds, appended.sum() * (payload.length + 16) / seconds / (1 << 20));
+
+            long readStart = System.nanoTime();
+            long[] records = {0};
+            for (int s = 0; s < Math.min(streams, threadCount); s++) {
+                long offset = 0;
+                long next;
+                while ((next = log.read("group" + s, offset, 500, (o, time, bytes) -> records[0]++)) > offset) {
+                    offset = next;
+                }
+            }
+            double readSeconds = (System.nanoTime() - readStart) / 1e9;
+            System.out.printf("replay %-8s threads=%-3d %10.0f msgs/s (%d records)%n", "", threadCount, records[0] / readSeconds, records[0]);
+        } finally {
+            log.close();
+            try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    // A file streamed to the client over the chat connection, as the thread reading the connection sees it:
+    // --size-mb in --chunk-kb chunks either written inline through a BufferedOutputStream, as the client
+    // used to, or handed to TransferManager's disk thread. The hold is how long each chunk kept the reading
+    // thread from the next frame (a chat message waiting behind the file waits that long); end to end
+    // includes the disk thread catching up and closing the file.
+    private static void runReceive() throws Exception {
+        long size = (long) intOption("size-mb", 512) << 20;
+        int chunkSize = intOption("chunk-kb", 64) << 10;
+        byte[] chunk = new byte[chunkSize];
+        new Random(1).nextBytes(chunk);
+        Path directory = Files.createTempDirectory("receive_");
+        try {
+            for (String mode : new String[] {"inline", "manager"}) {
+                Path target = directory.resolve(mode + ".bin");
+                int chunks = (int) ((size + chunkSize - 1) / chunkSize);
+                long[] holds = new long[chunks];
+                CountDownLatch closed = new CountDownLatch(1);
+                long start = System.nanoTime();
+                if (mode.equals("inline")) {
+                    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target.toFile()))) {
+                        for (int i = 0; i < chunks; i++) {
+                            long held = System.nanoTime();
+                            out.write(chunk, 0, (int) Math.min(chunkSize, size - (long) i * chunkSize));
+                            holds[i] = System.nanoTime() - held;
+                        }
+                    }
+                    closed.countDown();
+                } else {
+                    TransferManager manager = new TransferManager(line -> closed.countDown());
+                    TransferManager.Receiver receiver = manager.receive(target.toFile(), size, "done");
+                    for (int i = 0; i < chunks; i++) {
+                        long held = System.nanoTime();
+                        receiver.write(ByteBuffer.wrap(chunk, 0, (int) Math.min(chunkSize, size - (long) i * chunkSize)));
+                        holds[i] = System.nanoTime() - held;
+                    }
+                }
+                long handedOff = System.nanoTime() - start;
+                closed.await();
+                long total = System.nanoTime() - start;
+                Arrays.sort(holds);
+                System.out.printf("receive  %-8s %d MB: reader busy %.0f ms, hold p50 %.1f us p99 %.1f us max %.1f ms, end to end %.0f MB/s%n",
+                    mode, size >> 20, handedOff / 1e6, holds[chunks / 2] / 1e3, holds[chunks * 99 / 100] / 1e3, holds[chunks - 1] / 1e6,
+                    size / 1e6 / (total / 1e9));
+                if (Files.size(target) != size) throw new IllegalStateException(mode + " wrote " + Files.size(target) + " bytes");
+                Files.delete(target);
+            }
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    // Warm restart: --groups groups and --users registered users, each logged in and a member of --per-user of
+    // them, are written to a group snapshot; then the snapshot is restored into an empty registry (only mapped),
+    // every group is looked up, which creates it from the mapping, every user's memberships are looked up in
+    // the mapping, and the same state is rebuilt by hand, as GROUP_CREATE and
+    // GROUP_JOIN commands, for comparison. Last, a server process is started --starts times on a store holding
+    // the snapshot and on an empty one: the time from launch until it listens, JVM startup included.
+    private static void runSnapshot() throws Exception {
+        int groupCount = intOption("groups", 100_000);
+        int userCount = intOption("users", 100_000);
+        int perUser = intOption("per-user", 5);
+        Path store = Files.createTempDirectory("snapshot_");
+        try {
+            String[] codes = new String[groupCount];
+            GroupRegistry registry = new GroupRegistry();
+            for (int g = 0; g < groupCount; g++) {
+                codes[g] = "group" + g;
+                registry.add(codes[g], "user" + (g % userCount));
+            }
+            List<CountingConnection> users = new ArrayList<>();
+            Random random = new Random(1);
+            for (int u = 0; u < userCount; u++) {
+                CountingConnection user = new CountingConnection("user" + u);
+                user.registered = true;
+                for (int m = 0; m < perUser; m++) {
+                    registry.join(codes[random.nextInt(groupCount)], user);
+                }
+                users.add(user);
+            }
+
+            GroupSnapshot writer = new GroupSnapshot(store.resolve("groups"), code -> true);
+            long start = System.nanoTime();
+            writer.write(registry.all(), users);
+            double writeMillis = (System.nanoTime() - start) / 1e6;
+            long bytes;
+            try (java.util.stream.Stream<Path> files = Files.list(store.resolve("groups"))) {
+                bytes = files.mapToLong(file -> file.toFile().length()).sum();
+            }
+            System.out.printf("snapshot groups=%d users=%d memberships=%d: written in %.1f ms, %.1f MB%n",
+                groupCount, userCount, users.stream().mapToInt(user -> user.groupCodes.size()).sum(), writeMillis, bytes / 1e6);
+
+            double[] restores = new double[5];
+            GroupSnapshot restored = null;
+            GroupRegistry restoredGroups = null;
+            for (int i = 0; i < restores.length; i++) {
+                start = System.nanoTime();
+                restored = new GroupSnapshot(store.resolve("groups"), code -> true);
+                restoredGroups = new GroupRegistry();
+                restoredGroups.restoreFrom(restored);
+                restores[i] = (System.nanoTime() - start) / 1e6;
+                if (restoredGroups.size() != groupCount) throw new IllegalStateException("restored " + restoredGroups.size() + " groups");
+            }
+            start = System.nanoTime();
+            for (String code : codes) {
+                if (restoredGroups.get(code) == null) throw new IllegalStateException("group " + code + " not restored");
+            }
+            double getNanos = (double) (System.nanoTime() - start) / groupCount;
+            start = System.nanoTime();
+            long memberships = 0;
+            for (int u = 0; u < userCount; u++) {
+                memberships += restored.take("user" + u).size();
+            }
+            double takeNanos = (double) (System.nanoTime() - start) / userCount;
+            double first = restores[0];
+            Arrays.sort(restores);
+            System.out.printf("snapshot restore in-process: first %.1f ms, median %.2f ms; each group created on first lookup in %.0f ns,"
+                + " memberships looked up %d at %.0f ns per user%n", first, restores[restores.length / 2], getNanos, memberships, takeNanos);
+
+            start = System.nanoTime();
+            for (int g = 0; g < groupCount; g++) {
+                ChatServer.handleCommand(new CountingConnection("user" + (g % userCount)), "GROUP_CREATE " + codes[g]);
+            }
+            for (CountingConnection user : users) {
+                CountingConnection session = new CountingConnection(user.getUsername());
+                for (String code : user.groupCodes) {
+                    ChatServer.handleCommand(session, "GROUP_JOIN " + code);
+                }
+            }
+            System.out.printf("snapshot rebuilt by hand in-process (%d commands, no logins): %.1f ms%n",
+                groupCount + memberships, (System.nanoTime() - start) / 1e6);
+
+            Path empty = Files.createTempDirectory("snapshot_empty_");
+            try {
+                for (Path directory : new Path[] {empty, store}) {
+                    double[] starts = new double[intOption("starts", 3)];
+                    for (int i = 0; i < starts.length; i++) {
+                        start = System.nanoTime();
+                        ServerProcess server = ServerProcess.start("--store-dir=" + directory, "--metrics-port=0", "--transfer-port=0");
+                        starts[i] = (System.nanoTime() - start) / 1e6;
+                        server.stop();
+                    }
+                    Arrays.sort(starts);
+                    System.out.printf("snapshot server start, %s: launch to listening median %.0f ms (min %.0f, max %.0f)%n",
+                        directory == store ? groupCount + " groups" : "no snapshot", starts[starts.length / 2], starts[0], starts[starts.length - 1]);
+                }
+            } finally {
+                deleteTree(empty);
+            }
+        } finally {
+            deleteTree(store);
+        }
+    }
+
+    private static void deleteTree(Path directory) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    // Direct messages in-process: --routes users logged in (stubs that only count), then DM commands through
+    // ChatServer.handleCommand from --threads senders to random recipients. The routing cost is also measured
+    // on its own, a session registry lookup next to the scan of every connection it replaces.
+    private static void runDirect() throws Exception {
+        int routes = intOption("routes", 100_000);
+        // Every route is a registered user, as the server checks on each DM; hashes are random, nobody logs in
+        Path directory = Files.createTempDirectory("direct_");
+        try (Writer snapshot = Files.newBufferedWriter(directory.resolve("users.db"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < routes; i++) {
+                snapshot.write("user" + i + "\t1000\tAAAAAAAAAAAAAAAAAAAAAA==\tAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=\n");
+            }
+        }
+        ChatServer.credentials = new CredentialStore(directory, 1000, 1, 16, 60);
+        CountingConnection[] users = new CountingConnection[routes];
+        for (int i = 0; i < routes; i++) {
+            users[i] = new CountingConnection("user" + i);
+            ChatServer.sessions.add(users[i]);
+        }
+        List<ChatServer.ClientConnection> connections = new ArrayList<>(Arrays.asList(users));
+        String last = "user" + (routes - 1);
+        measure("direct route lookup (registry)", () -> ChatServer.sessions.get(last));
+        measure("direct route lookup (scan, last user)", () -> {
+            for (ChatServer.ClientConnection connection : connections) {
+                if (connection.getUsername().equalsIgnoreCase(last)) return;
+            }
+        });
+
+        String text = "d".repeat(intOption("payload", 100));
+        long millis = intOption("seconds", 3) * 1000L;
+        for (String threadOption : option("threads", "1,8").split(",")) {
+            int threadCount = Integer.parseInt(threadOption.trim());
+            // Commands are prepared up front, so the timed loop is the server's parse, lookup and fan-out
+            String[][] commands = new String[threadCount][1024];
+            Random random = new Random(threadCount);
+            for (String[] perThread : commands) {
+                for (int i = 0; i < perThread.length; i++) {
+                    perThread[i] = "DM user" + random.nextInt(routes) + " " + text;
+                }
+            }
+            long delivered = totalReceived(users);
+            LongAdder sent = new LongAdder();
+            List<Thread> threads = new ArrayList<>();
+            long end = System.nanoTime() + millis * 1_000_000L;
+            for (int t = 0; t < threadCount; t++) {
+                CountingConnection sender = users[t % routes];
+                String[] mine = commands[t];
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; System.nanoTime() < end; i++) {
+                        ChatServer.handleCommand(sender, mine[i & (mine.length - 1)]);
+                        sent.increment();
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double seconds = millis / 1000.0;
+            System.out.printf("direct   routes=%d threads=%-3d %10.0f DMs/s (%d queued, to recipient and sender)%n",
+                routes, threadCount, sent.sum() / seconds, totalReceived(users) - delivered);
+        }
+        for (CountingConnection user : users) {
+            ChatServer.sessions.remove(user);
+        }
+        ChatServer.credentials.close();
+        try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private static long totalReceived(CountingConnection[] connections) {
+        long total = 0;
+        for (CountingConnection connection : connections) {
+            total += connection.received.sum();
+        }
+        return total;
+    }
+
+    // Offline delivery in-process: --members registered users of --groups groups go offline, --messages are
+    // sent to each group while they are away, and then --drains of them log in and page their backlog out of
+    // the log as a client would. A mailbox holds offsets into the shared log, so what it stores does not grow
+    // with the traffic; the copy-per-recipient figure is what the same backlog would take as one copy per member.
+    private static void runMailboxes() throws Exception {
+        int members = intOption("members", 5000);
+        int groupCount = intOption("groups", 10);
+        int messages = intOption("messages", 10_000);
+        byte[] payload = "m".repeat(intOption("payload", 100)).getBytes(StandardCharsets.UTF_8);
+        int drains = Math.min(members, intOption("drains", 100));
+        Path directory = Files.createTempDirectory("mailboxes_");
+        MessageLog log = new MessageLog(directory.resolve("log"), 64L << 20, Long.MAX_VALUE / 2, 10);
+        try {
+            String[] codes = new String[groupCount];
+            for (int g = 0; g < groupCount; g++) {
+                codes[g] = "group" + g;
+            }
+            Mailboxes boxes = new Mailboxes(directory.resolve("mailboxes"));
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            long start = System.nanoTime();
+            for (int m = 0; m < members; m++) {
+                Map<String, Long> offsets = new HashMap<>();
+                for (String code : codes) {
+                    offsets.put(code, log.end(code));
+                }
+                boxes.hold("user" + m, offsets);
+            }
+            double holdMicros = (System.nanoTime() - start) / 1e3 / members;
+            System.gc();
+            long heap = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+
+            for (int i = 0; i < messages; i++) {
+                for (String code : codes) {
+                    log.append(code, payload);
+                }
+            }
+            log.awaitDurable();
+            boxes.close();
+            long journalBytes = Files.size(directory.resolve("mailboxes").resolve("mailboxes.log"));
+            double copies = (double) members * groupCount * messages * (payload.length + 16);
+            System.out.printf("mailboxes members=%d groups=%d: hold %.1f us/user, journal %.1f KB, heap %.1f MB; copy per recipient would store %.1f GB%n",
+                members, groupCount, holdMicros, journalBytes / 1024.0, heap / 1e6, copies / (1 << 30));
+
+            start = System.nanoTime();
+            Mailboxes reopened = new Mailboxes(directory.resolve("mailboxes"));
+            System.out.printf("mailboxes reload %d users in %.1f ms%n", reopened.size(), (System.nanoTime() - start) / 1e6);
+
+            // What ChatServer and a client do at login: take the mailbox, then page [from, end) 200 records at a time
+            long[] delivered = {0};
+            double[] latencies = new double[drains];
+            start = System.nanoTime();
+            for (int d = 0; d < drains; d++) {
+                long userStart = System.nanoTime();
+                for (Mailboxes.Entry entry : reopened.take("user" + d)) {
+                    long end = log.end(entry.stream);
+                    long offset = Math.max(entry.from, end - Mailboxes.MAX_MESSAGES);
+                    while (offset < end) {
+                        offset = log.read(entry.stream, offset, 200, (o, time, bytes) -> delivered[0]++);
+                    }
+                }
+                latencies[d] = (System.nanoTime() - userStart) / 1e6;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Arrays.sort(latencies);
+            System.out.printf("mailboxes drain %d users: %d messages, %.0f msgs/s, p50 %.2f ms p99 %.2f ms per user (cap %d per group)%n",
+                drains, delivered[0], delivered[0] / seconds, latencies[drains / 2], latencies[Math.min(drains - 1, drains * 99 / 100)], Mailboxes.MAX_MESSAGES);
+            reopened.close();
+        } finally {
+            log.close();
+            try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    // Credential store against the old client-side check: loading a snapshot of --users accounts,
+    // a lookup in the index next to a scan of the same accounts in users.txt, and PBKDF2 logins per
+    // second through the bounded hashing pool at each iteration count. Bulk accounts get random
+    // hashes, since only the load and the lookup touch them.
+    private static void runLogins() throws Exception {
+        int userCount = intOption("users", 1_000_000);
+        Path directory = Files.createTempDirectory("logins_");
+        try {
+            Random random = new Random(7);
+            Base64.Encoder base64 = Base64.getEncoder();
+            byte[] salt = new byte[16];
+            byte[] hash = new byte[32];
+            try (Writer snapshot = Files.newBufferedWriter(directory.resolve("users.db"), StandardCharsets.UTF_8);
+                 Writer legacy = Files.newBufferedWriter(directory.resolve("users.txt"), StandardCharsets.UTF_8)) {
+                for (int i = 0; i < userCount; i++) {
+                    random.nextBytes(salt);
+                    random.nextBytes(hash);
+                    snapshot.write("user" + i + "\t1000\t" + base64.encodeToString(salt) + "\t" + base64.encodeToString(hash) + "\n");
+                    legacy.write("user" + i + " | password" + i + "\n");
+                }
+            }
+
+            int threads = intOption("auth-threads", Runtime.getRuntime().availableProcessors());
+            long loadStart = System.nanoTime();
+            CredentialStore store = new CredentialStore(directory, 1000, threads, 256, 60);
+            System.out.printf("load     %d users in %.0f ms%n", store.size(), (System.nanoTime() - loadStart) / 1e6);
+            try {
+                String last = "user" + (userCount - 1);
+                measure("logins index lookup", () -> store.isRegistered(last));
+                measure("logins users.txt scan (last user)", () -> scanUsersFile(directory.resolve("users.txt"), last, "password" + (userCount - 1)));
+
+                int logins = intOption("logins", 200);
+                for (String iterations : option("iterations-list", "1000,100000").split(",")) {
+                    int count = Integer.parseInt(iterations.trim());
+                    // A store of its own, since accounts are hashed with the store's iteration count
+                    try (CredentialStore timed = new CredentialStore(directory.resolve("iterations" + count), count, threads, 256, 60)) {
+                        timed.add("bench", "secret");
+                        long start = System.nanoTime();
+                        List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+                        int accepted = 0;
+                        for (int i = 0; i < logins; i++) {
+                            pending.add(timed.login("bench", "secret"));
+                            // Stay under the pool's queue bound, or logins would be refused
+                            if (pending.size() == 128 || i == logins - 1) {
+                                for (CompletableFuture<Boolean> login : pending) {
+                                    if (login.join()) accepted++;
+                                }
+                                pending.clear();
+                            }
+                        }
+                        double seconds = (System.nanoTime() - start) / 1e9;
+                        System.out.printf("logins   iterations=%-7d threads=%-3d %10.1f logins/s (%d accepted)%n", count, threads, logins / seconds, accepted);
+                    }
+                }
+            } finally {
+                store.close();
+            }
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    // What each client did before the credential store: read users.txt line by line
+    private static boolean scanUsersFile(Path file, String username, String password) {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\\|");
+                if (parts.length == 2 && parts[0].trim().equalsIgnoreCase(username) && parts[1].trim().equals(password)) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return false;
+    }
+
+    // Indexes synthetic chat into SearchIndex in-process, then times first pages (20 hits, newest first) of
+    // typical queries on random streams. Words follow a Zipf distribution, as chat vocabulary roughly does;
+    // each message is regenerated from its stream and offset, which stands in for reading it from the log.
+    private static void runSearch() {
+        int messageCount = intOption("messages", 10_000_000);
+        int streamCount = intOption("streams", 10);
+        int vocabulary = intOption("vocabulary", 50_000);
+        int words = intOption("words", 8);
+        double[] cumulative = new double[vocabulary];
+        double sum = 0;
+        for (int rank = 0; rank < vocabulary; rank++) {
+            sum += 1.0 / (rank + 1);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < vocabulary; rank++) {
+            cumulative[rank] /= sum;
+        }
+
+        SearchIndex index = new SearchIndex((long) intOption("index-mb", 1024) << 20);
+        long start = System.nanoTime();
+        for (int i = 0; i < messageCount; i++) {
+            index.add("stream" + i % streamCount, i / streamCount, syntheticMessage(i % streamCount, i / streamCount, cumulative, words));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("index    %d messages in %.1f s (%.0f messages/s), index estimate %d MB, heap in use %d MB%n",
+            messageCount, seconds, messageCount / seconds, index.memoryBytes() >> 20, (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+
+        timeQueries(index, "rare word", "w" + Integer.toString(vocabulary - 1, 36), streamCount, cumulative, words);
+        timeQueries(index, "common word", "w0", streamCount, cumulative, words);
+        timeQueries(index, "two words", "w9 w1k", streamCount, cumulative, words);
+        timeQueries(index, "phrase", "\"w0 w1\"", streamCount, cumulative, words);
+        timeQueries(index, "sender + word", "from:user42 w2", streamCount, cumulative, words);
+    }
+
+    private static void timeQueries(SearchIndex index, String label, String text, int streamCount, double[] cumulative, int words) {
+        SearchIndex.Query query = SearchIndex.parse(text);
+        Random random = new Random(3);
+        LatencyHistogram latency = new LatencyHistogram();
+        long hits = 0;
+        for (int i = 0; i < intOption("queries", 200); i++) {
+            int stream = random.nextInt(streamCount);
+            long[] found = new long[1];
+            long start = System.nanoTime();
+            try {
+                index.search("stream" + stream, query, -1, 20, offset -> {
+                    boolean matched = query.matches(syntheticMessage(stream, offset, cumulative, words));
+                    if (matched) found[0]++;
+                    return matched;
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            latency.record(System.nanoTime() - start);
+            hits += found[0];
+        }
+        System.out.printf("search   %-14s %-22s %s, %d hits%n", label, text, latency.summary(), hits);
+    }
+
+    // Same stream and offset, same message: "user<n>: w<rank> w<rank> ..."
+    private static String syntheticMessage(int stream, long offset, double[] cumulative, int words) {
+        Random random = new Random(stream * 1_000_000_007L + offset);
+        StringBuilder message = new StringBuilder(80).append("user").append(random.nextInt(1000)).append(':');
+        for (int i = 0; i < words; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+            message.append(" w").append(Integer.toString(rank < 0 ? -rank - 1 : rank, 36));
+        }
+        return message.toString();
+    }
+
+    interface GroupOps {
+        void join(String code, CountingConnection member);
+
+        void leave(String code, CountingConnection member);
+
+        void send(String code, ChatServer.SharedMessage message);
+    }
+
+    private static void runGroupMix(String label, String[] codes, CountingConnection[] members, GroupOps ops) throws InterruptedException {
+        int threadCount = intOption("threads", 8);
+        long millis = intOption("seconds", 3) * 1000L;
+        // Member i starts in group i % groups and belongs to thread i % threads, which alone moves it
+        // between groups; each join is paired with a leave, so group sizes stay where they started
+        for (int i = 0; i < members.length; i++) {
+            ops.join(codes[i % codes.length], members[i]);
+        }
+        for (CountingConnection member : members) {
+            member.received.reset();
+        }
+
+        LongAdder joins = new LongAdder();
+        LongAdder leaves = new LongAdder();
+        LongAdder sends = new LongAdder();
+        ChatServer.SharedMessage message = new ChatServer.SharedMessage("[Group bench] bench: hello");
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            int first = t;
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                List<Long> joined = new ArrayList<>();
+                Set<Long> joinedSet = new HashSet<>();
+                for (long m = first; m < members.length; m += threadCount) {
+                    long membership = m * codes.length + m % codes.length;
+                    joined.add(membership);
+                    joinedSet.add(membership);
+                }
+                long ops4 = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long end = System.nanoTime() + millis * 1_000_000L;
+                while (System.nanoTime() < end) {
+                    switch ((int) (ops4++ & 3)) {
+                        case 0: {
+                            long m = first + (long) random.nextInt((members.length - first + threadCount - 1) / threadCount) * threadCount;
+                            long membership;
+                            do {
+                                membership = m * codes.length + random.nextInt(codes.length);
+                            } while (!joinedSet.add(membership));
+                            joined.add(membership);
+                            ops.join(codes[(int) (membership % codes.length)], members[(int) m]);
+                            break;
+                        }
+                        case 1: {
+                            int index = random.nextInt(joined.size());
+                            long membership = joined.get(index);
+                            joined.set(index, joined.get(joined.size() - 1));
+                            joined.remove(joined.size() - 1);
+                            joinedSet.remove(membership);
+                            ops.leave(codes[(int) (membership % codes.length)], members[(int) (membership / codes.length)]);
+                            break;
+                        }
+                        default:
+                            ops.send(codes[random.nextInt(codes.length)], message);
+                    }
+                }
+                joins.add((ops4 + 3) / 4);
+                leaves.add((ops4 + 2) / 4);
+                sends.add(ops4 / 4 + (ops4 + 1) / 4);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long deliveries = 0;
+        for (CountingConnection member : members) {
+            deliveries += member.received.sum();
+        }
+        double seconds = millis / 1000.0;
+        System.out.printf("%-12s threads=%d groups=%d members=%d  joins/s=%.0f leaves/s=%.0f sends/s=%.0f deliveries/s=%.0f%n",
+            label, threadCount, codes.length, members.length, joins.sum() / seconds, leaves.sum() / seconds,
+            sends.sum() / seconds, deliveries / seconds);
+    }
+
+    // Recipient stub that only counts what it is handed
+    static class CountingConnection extends ChatServer.ClientConnection {
+        final LongAdder received = new LongAdder();
+
+        CountingConnection() {
+            this("bench");
+        }
+
+        CountingConnection(String username) {
+            this.username = username;
+        }
+
+        @Override
+        void enqueue(Object item) {
+            received.increment();
+        }
+
+        @Override
+        int queued() {
+            return 0;
+        }
+
+        @Override
+        void receiveFile(String metadata) {
+        }
+
+        @Override
+        void close() {
+        }
+    }
+
+    // Results of measured ops are folded in here once per iteration, so the JIT cannot drop an op
+    // whose result is unused as dead code (what JMH's Blackhole is for)
+    static volatile int sink;
+
+    static void measure(String label, Runnable op) {
+        measure(label, () -> {
+            op.run();
+            return null;
+        });
+    }
+
+    // JMH-style harness: warm-up iterations are discarded, measured iterations report the mean time
+    // and allocation of one op (allocation from the thread's allocated-bytes counter)
+    static void measure(String label, java.util.function.Supplier<?> op) {
+        int warmups = intOption("warmups", 5);
+        int iterations = intOption("iterations", 10);
+        long iterationNanos = intOption("iteration-ms", 200) * 1_000_000L;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+
+        double[] nanosPerOp = new double[iterations];
+        long totalOps = 0;
+        long totalAllocated = 0;
+        for (int i = -warmups; i < iterations; i++) {
+            long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            long ops = 0;
+            long elapsed;
+            int results = 0;
+            do {
+                results += Objects.hashCode(op.get());
+                ops++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < iterationNanos);
+            sink = results;
+            if (i >= 0) {
+                nanosPerOp[i] = (double) elapsed / ops;
+                totalOps += ops;
+                totalAllocated += threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            }
+        }
+
+        double mean = Arrays.stream(nanosPerOp).average().orElse(0);
+        double deviation = Math.sqrt(Arrays.stream(nanosPerOp).map(v -> (v - mean) * (v - mean)).average().orElse(0));
+        System.out.printf("%-40s %12.1f ns/op  +- %8.1f  %10.0f B/op%n", label, mean, deviation, (double) totalAllocated / totalOps);
+    }
+
+    // One client uploads a file to a group over the binary protocol and every member downloads it
+    // from the server's spool. Reports upload time and the aggregate relay throughput.
+    private static void runFileRelay(String engine) throws Exception {
+        long size = Long.parseLong(option("size-mb", "1024")) << 20;
+        int receivers = intOption("receivers", 20);
+        Path source = Files.createTempFile("relay_", ".bin");
+        try (FileChannel out = FileChannel.open(source, StandardOpenOption.WRITE)) {
+            ByteBuffer block = ByteBuffer.allocate(1 << 20);
+            new Random(42).nextBytes(block.array());
+            for (long written = 0; written < size; written += block.capacity()) {
+                block.clear().limit((int) Math.min(block.capacity(), size - written));
+                while (block.hasRemaining()) out.write(block);
+            }
+        }
+
+        ServerProcess server = ServerProcess.start("--engine=" + engine);
+        List<BinaryClient> members = new ArrayList<>();
+        try (BinaryClient sender = new BinaryClient(server.port, "sender")) {
+            for (int i = 0; i < receivers; i++) {
+                BinaryClient member = new BinaryClient(server.port, "receiver" + i);
+                members.add(member);
+                member.send(BinaryProtocol.frame(i == 0 ? BinaryProtocol.GROUP_CREATE : BinaryProtocol.GROUP_JOIN, "relay"));
+                member.awaitMessage(i == 0 ? "GROUP_CREATED" : "GROUP_JOINED");
+            }
+
+            CountDownLatch done = new CountDownLatch(receivers);
+            AtomicLong received = new AtomicLong();
+            for (BinaryClient member : members) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        received.addAndGet(member.receiveFile(size));
+                    } catch (IOException e) {
+                        System.err.println("receiver failed: " + e.getMessage());
+                    }
+                    done.countDown();
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            long start = System.nanoTime();
+            sender.sendFile("relay", source, size);
+            sender.awaitMessage("FILE_SUCCESS");
+            double uploadSeconds = (System.nanoTime() - start) / 1e9;
+            done.await();
+            double totalSeconds = (System.nanoTime() - start) / 1e9;
+
+            double relayedMb = received.get() / 1048576.0;
+            System.out.printf("%-8s file=%dMB receivers=%d upload=%.2fs (%.0f MB/s) all received=%.2fs -> %.0f MB/s relayed%s%n",
+                engine, size >> 20, receivers, uploadSeconds, (size >> 20) / uploadSeconds, totalSeconds, relayedMb / totalSeconds,
+                received.get() == size * receivers ? "" : " (INCOMPLETE " + received.get() + " bytes)");
+        } finally {
+            for (BinaryClient member : members) member.close();
+            server.stop();
+            Files.deleteIfExists(source);
+        }
+    }
+
+    // Minimal blocking client for the binary protocol
+    static class BinaryClient implements Closeable {
+        final SocketChannel channel;
+        final DataInputStream in;
+        final BinaryProtocol.FrameReader frames = new BinaryProtocol.FrameReader();
+
+        BinaryClient(int port, String username) throws IOException {
+            channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream(), 1 << 16));
+            writeFully(channel, ByteBuffer.wrap((BinaryProtocol.HANDSHAKE + " " + username + "\n").getBytes(StandardCharsets.UTF_8)));
+            if (!BinaryProtocol.HANDSHAKE.equals(BinaryProtocol.readLine(in))) throw new IOException("Binary protocol refused");
+            awaitMessage("LOGIN_SUCCESS");
+        }
+
+        void send(ByteBuffer frame) throws IOException {
+            writeFully(channel, frame.duplicate());
+        }
+
+        String awaitMessage(String prefix) throws IOException {
+            while (frames.read(in)) {
+                if (frames.opcode() != BinaryProtocol.MESSAGE) continue;
+                String message = BinaryProtocol.remainingText(frames.payload());
+                if (message.startsWith(prefix)) return message;
+            }
+            throw new EOFException("Connection closed waiting for " + prefix);
+        }
+
+        // FILE_BEGIN, then 1 MB FILE_DATA frames whose bodies go out with transferTo
+        void sendFile(String group, Path file, long size) throws IOException {
+            send(BinaryProtocol.fileBegin(BinaryProtocol.MODE_GROUP, group, file.getFileName().toString(), size));
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE);
+                for (long position = 0; position < size; ) {
+                    int chunk = (int) Math.min(BinaryProtocol.MAX_PAYLOAD, size - position);
+                    header.clear();
+                    header.put(BinaryProtocol.FILE_DATA).putInt(chunk).flip();
+                    writeFully(channel, header);
+                    for (long end = position + chunk; position < end; ) {
+                        position += source.transferTo(position, end - position, channel);
+                    }
+                }
+            }
+        }
+
+        long receiveFile(long size) throws IOException {
+            long received = 0;
+            while (received < size && frames.read(in)) {
+                if (frames.opcode() == BinaryProtocol.FILE_DATA) received += frames.payload().remaining();
+            }
+            return received;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // A ChatServer launched as a child JVM so its threads and memory are measured in isolation
+    static class ServerProcess {
+        // Appended after a scenario's own options, which win, so that benchmarks measure the server and not its limits
+        static final String[] UNLIMITED = {"--rate-messages=0", "--rate-bytes=0", "--rate-files-per-minute=0", "--group-rate-messages=0"};
+
+        final Process process;
+        final int port;
+
+        private ServerProcess(Process process, int port) {
+            this.process = process;
+            this.port = port;
+        }
+
+        static ServerProcess start(String... serverArgs) throws Exception {
+            int port = freePort();
+            List<String> command = new ArrayList<>(Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", option("server-classpath", System.getProperty("java.class.path"))));
+            command.addAll(Arrays.asList(option("server-jvm", "-Xmx1g").split(" ")));
+            command.add("ChatServer");
+            command.add("--port=" + port);
+            command.addAll(Arrays.asList(serverArgs));
+            command.addAll(Arrays.asList(UNLIMITED));
+
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            CountDownLatch started = new CountDownLatch(1);
+            Thread drain = new Thread(() -> {
+                try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                    String line;
+                    while ((line = out.readLine()) != null) {
+                        if (line.startsWith("Server started")) started.countDown();
+                        else if (!line.endsWith("connected.")) System.out.println("  [server] " + line);
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            drain.setDaemon(true);
+            drain.start();
+            if (!started.await(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new IOException("Server did not start");
+            }
+            return new ServerProcess(process, port);
+        }
+
+        // Reads a field such as Threads or VmRSS from /proc/<pid>/status (Linux only)
+        String status(String field) {
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc/" + process.pid() + "/status"))) {
+                    if (line.startsWith(field + ":")) return line.substring(field.length() + 1).trim().replace(" ", "");
+                }
+            } catch (IOException ignored) {
+            }
+            return "n/a";
+        }
+
+        // A counter from /proc/<pid>/io such as syscw (write syscalls), or -1 where unavailable
+        long io(String field) {
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc/" + process.pid() + "/io"))) {
+                    if (line.startsWith(field + ":")) return Long.parseLong(line.substring(field.length() + 1).trim());
+                }
+            } catch (IOException ignored) {
+            }
+            return -1;
+        }
+
+        void stop() throws InterruptedException {
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly();
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Many non-blocking client sockets drained by one selector thread
+    static class LoadClients implements Closeable {
+        private static final String MARKER = "bench ";
+
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicInteger logins = new AtomicInteger();
+        final AtomicInteger groupReplies = new AtomicInteger(); // GROUP_CREATED and GROUP_JOINED
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        private final int[] ports;
+        private final int count;
+        private final SocketChannel[] channels;
+        private final Selector selector;
+        private final Thread readerThread;
+        private volatile boolean running = true;
+
+        LoadClients(int port, int count) throws IOException {
+            this(new int[] {port}, count);
+        }
+
+        // Client i connects to ports[i % ports.length]
+        LoadClients(int[] ports, int count) throws IOException {
+            this.ports = ports;
+            this.count = count;
+            this.channels = new SocketChannel[count];
+            this.selector = Selector.open();
+            this.readerThread = new Thread(this::readLoop, "load-reader");
+            this.readerThread.setDaemon(true);
+        }
+
+        void connectAll() throws IOException {
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), ports[i % ports.length]));
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                writeFully(channel, ByteBuffer.wrap(("load" + i + "\n").getBytes(StandardCharsets.UTF_8)));
+                channel.configureBlocking(false);
+                channels[i] = channel;
+            }
+            for (SocketChannel channel : channels) {
+                channel.register(selector, SelectionKey.OP_READ, new LineCounter());
+            }
+            readerThread.start();
+        }
+
+        void awaitLogins(long timeoutMillis) throws Exception {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (logins.get() < count) {
+                if (System.currentTimeMillis() > deadline) throw new IOException("Only " + logins.get() + " logins");
+                Thread.sleep(5);
+            }
+        }
+
+        void sendLine(int client, String line) throws IOException {
+            writeFully(channels[client], ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        void awaitGroupReplies(int expected, long timeoutMillis) throws Exception {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (groupReplies.get() < expected) {
+                if (System.currentTimeMillis() > deadline) throw new IOException("Only " + groupReplies.get() + " group replies");
+                Thread.sleep(5);
+            }
+        }
+
+        void broadcast(int senders, int messages, int payloadBytes) throws Exception {
+            broadcast(senders, messages, payloadBytes, "");
+        }
+
+        // Each sender writes its lines from its own thread; the payload carries the send time, after command
+        // (such as "GROUP_MSG <group> ")
+        void broadcast(int senders, int messages, int payloadBytes, String command) throws Exception {
+            String padding = payloadBytes > 0 ? " " + "x".repeat(payloadBytes) : "";
+            ExecutorService pool = Executors.newFixedThreadPool(senders);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int s = 0; s < senders; s++) {
+                SocketChannel channel = channels[s];
+                futures.add(pool.submit(() -> {
+                    for (int m = 0; m < messages; m++) {
+                        writeFully(channel, ByteBuffer.wrap((command + MARKER + System.nanoTime() + padding + "\n").getBytes(StandardCharsets.UTF_8)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+            pool.shutdown();
+        }
+
+        boolean awaitDeliveries(long expected, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (delivered.get() < expected) {
+                if (System.currentTimeMillis() > deadline) return false;
+                Thread.sleep(1);
+            }
+            return true;
+        }
+
+        private void readLoop() {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            try {
+                while (running) {
+                    selector.select(100);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        buffer.clear();
+                        if (((SocketChannel) key.channel()).read(buffer) == -1) {
+                            key.cancel();
+                            continue;
+                        }
+                        buffer.flip();
+                        ((LineCounter) key.attachment()).accept(buffer);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                // closed at the end of the run
+            }
+        }
+
+        // Splits incoming bytes into lines and records latency for benchmark lines
+        private class LineCounter {
+            private final StringBuilder line = new StringBuilder();
+
+            void accept(ByteBuffer buffer) {
+                while (buffer.hasRemaining()) {
+                    char c = (char) buffer.get();
+                    if (c != '\n') {
+                        line.append(c);
+                        continue;
+                    }
+                    int marker = line.indexOf(MARKER);
+                    if (marker >= 0) {
+                        int end = line.indexOf(" ", marker + MARKER.length());
+                        long sentAt = Long.parseLong(line.substring(marker + MARKER.length(), end < 0 ? line.length() : end));
+                        latency.record(System.nanoTime() - sentAt);
+                        delivered.incrementAndGet();
+                    } else if (line.indexOf("LOGIN_SUCCESS") == 0) {
+                        logins.incrementAndGet();
+                    } else if (line.indexOf("GROUP_CREATED") == 0 || line.indexOf("GROUP_JOINED") == 0) {
+                        groupReplies.incrementAndGet();
+                    }
+                    line.setLength(0);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The reader stops before the selector closes, which it may still be iterating while deliveries arrive
+            running = false;
+            selector.wakeup();
+            try {
+                if (readerThread.isAlive()) readerThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            selector.close();
+            for (SocketChannel channel : channels) {
+                if (channel != null) channel.close();
+            }
+        }
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) Thread.onSpinWait();
+        }
+    }
+
+    // Log-linear histogram of nanosecond latencies; single writer, good to about 3%
+    static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 32;
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long total;
+        private long max;
+
+        void record(long nanos) {
+            long value = Math.max(1, nanos);
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = exponent < 5 ? (int) value : (int) ((value >>> (exponent - 5)) & (SUB_BUCKETS - 1));
+            counts[exponent * SUB_BUCKETS + sub]++;
+            total++;
+            max = Math.max(max, nanos);
+        }
+
+        long percentile(double p) {
+            long rank = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    int exponent = i / SUB_BUCKETS;
+                    int sub = i % SUB_BUCKETS;
+                    return exponent < 5 ? sub : ((long) (SUB_BUCKETS + sub)) << (exponent - 5);
+                }
+            }
+            return max;
+        }
+
+        String summary() {
+            if (total == 0) return "no samples";
+            return String.format("p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms (n=%d)",
+                percentile(0.5) / 1e6, percentile(0.9) / 1e6, percentile(0.99) / 1e6,
+                percentile(0.999) / 1e6, max / 1e6, total);
+        }
+    }
+}
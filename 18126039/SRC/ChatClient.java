@@ -1,388 +1,877 @@
-import java.awt.*;
-import java.io.*;
-import java.net.*;
-import java.util.*;
-import java.util.List;
-import javax.swing.*;
-
-public class ChatClient {
-    private static final String SERVER_ADDRESS = "localhost";
-    private static final int SERVER_PORT = 1234;
-    private static final int BUFFER_SIZE = 4096;
-
-    private static String username;
-    private static PrintWriter writer;
-    private static BufferedReader reader;
-    private static JTextArea chatArea;
-    private static JTextField textField;
-    private static JComboBox<String> groupDropdown;
-    private static final List<String> chatHistory = new ArrayList<>();
-    private static final String USERS_FILE = "users.txt"; // File to store registered usernames and passwords
-
-    public static void main(String[] args) {
-        showLoginScreen();
-    }
-
-    private static Socket socket; // Store the socket connection
-
-    private static void showLoginScreen() {
-        JFrame loginFrame = new JFrame("Login/Register");
-        loginFrame.setSize(400, 300);
-        loginFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        loginFrame.setLayout(new BorderLayout());
-
-        JLabel header = new JLabel("Welcome to the Chat App", SwingConstants.CENTER);
-        header.setFont(new Font("Arial", Font.BOLD, 16));
-        header.setBorder(BorderFactory.createEmptyBorder(10, 0, 10, 0));
-
-        JPanel panel = new JPanel(new GridBagLayout());
-        GridBagConstraints gbc = new GridBagConstraints();
-        gbc.fill = GridBagConstraints.HORIZONTAL;
-        gbc.insets = new Insets(10, 10, 10, 10);
-
-        JLabel usernameLabel = new JLabel("Username:");
-        gbc.gridx = 0;
-        gbc.gridy = 0;
-        panel.add(usernameLabel, gbc);
-
-        JTextField usernameField = new JTextField(15);
-        gbc.gridx = 1;
-        gbc.gridy = 0;
-        panel.add(usernameField, gbc);
-
-        JLabel passwordLabel = new JLabel("Password:");
-        gbc.gridx = 0;
-        gbc.gridy = 1;
-        panel.add(passwordLabel, gbc);
-
-        JPasswordField passwordField = new JPasswordField(15);
-        gbc.gridx = 1;
-        gbc.gridy = 1;
-        panel.add(passwordField, gbc);
-
-        JButton loginButton = new JButton("Login");
-        gbc.gridx = 0;
-        gbc.gridy = 2;
-        panel.add(loginButton, gbc);
-
-        JButton registerButton = new JButton("Register");
-        gbc.gridx = 1;
-        gbc.gridy = 2;
-        panel.add(registerButton, gbc);
-
-        loginButton.addActionListener(e -> {
-            username = usernameField.getText().trim();
-            String password = new String(passwordField.getPassword()).trim();
-            if (!username.isEmpty() && !password.isEmpty()) {
-                if (isUserValid(username, password)) {
-                    attemptLogin();
-                    loginFrame.dispose();
-                } else {
-                    JOptionPane.showMessageDialog(null, "Invalid username or password.");
-                }
-            } else {
-                JOptionPane.showMessageDialog(null, "Username and password cannot be empty.");
-            }
-        });
-
-        registerButton.addActionListener(e -> {
-            registerUser();
-        });
-
-        loginFrame.add(header, BorderLayout.NORTH);
-        loginFrame.add(panel, BorderLayout.CENTER);
-        loginFrame.setVisible(true);
-    }
-
-    private static void registerUser() {
-        String newUsername = JOptionPane.showInputDialog("Enter a username to register:");
-        if (newUsername != null && !newUsername.trim().isEmpty()) {
-            String newPassword = JOptionPane.showInputDialog("Enter a password:");
-            if (newPassword != null && !newPassword.trim().isEmpty()) {
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(USERS_FILE, true))) {
-                    writer.write(newUsername.trim() + " | " + newPassword.trim());
-                    writer.newLine();
-                    JOptionPane.showMessageDialog(null, "Registration successful. You can now log in.");
-                } catch (IOException e) {
-                    JOptionPane.showMessageDialog(null, "Error saving user. Please try again.");
-                }
-            } else {
-                JOptionPane.showMessageDialog(null, "Password cannot be empty.");
-            }
-        } else {
-            JOptionPane.showMessageDialog(null, "Username cannot be empty.");
-        }
-    }
-
-    private static boolean isUserValid(String username, String password) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(USERS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split("\\|");
-                if (parts.length == 2) {
-                    String fileUsername = parts[0].trim();
-                    String filePassword = parts[1].trim();
-                    if (fileUsername.equalsIgnoreCase(username) && filePassword.equals(password)) {
-                        return true;
-                    }
-                }
-            }
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(null, "Error reading users file.");
-        }
-        return false;
-    }
-
-    private static void attemptLogin() {
-        try {
-            // Initialize the socket and store it
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-
-            // Use the socket for writer and reader initialization
-            writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-
-            writer.println(username);
-            showChatWindow();
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(null, "Unable to connect to server.");
-        }
-    }
-
-    private static void showChatWindow() {
-        JFrame chatFrame = new JFrame(username + "'s Chat");
-        chatFrame.setSize(600, 500);
-        chatFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-
-        JPanel topPanel = new JPanel(new BorderLayout());
-        groupDropdown = new JComboBox<>();
-        groupDropdown.addItem("Broadcast");
-        topPanel.add(groupDropdown, BorderLayout.WEST);
-
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        JScrollPane scrollPane = new JScrollPane(chatArea);
-
-        textField = new JTextField();
-        textField.addActionListener(e -> sendMessage());
-
-        JMenuBar menuBar = new JMenuBar();
-        JMenu optionsMenu = new JMenu("Options");
-
-        // Create menu items
-        JMenuItem createGroup = new JMenuItem("Group Chat");
-        JMenuItem fileTransfer = new JMenuItem("Send File");
-        JMenuItem chatHistory = new JMenuItem("Chat History");
-
-        createGroup.addActionListener(e -> createOrJoinGroup());
-        fileTransfer.addActionListener(e -> sendFile());
-        chatHistory.addActionListener(e -> showChatHistory());
-
-        // Add menu items to the Options menu
-        optionsMenu.add(createGroup);
-        optionsMenu.add(fileTransfer);
-        optionsMenu.add(chatHistory);
-        menuBar.add(optionsMenu);
-
-        chatFrame.add(topPanel, BorderLayout.NORTH);
-        chatFrame.add(scrollPane, BorderLayout.CENTER);
-        chatFrame.add(textField, BorderLayout.SOUTH);
-        chatFrame.setJMenuBar(menuBar);
-        chatFrame.setVisible(true);
-
-        new Thread(ChatClient::receiveMessages).start();
-    }
-
-    private static void sendMessage() {
-        String message = textField.getText();
-        if (!message.trim().isEmpty()) {
-            String selectedGroup = (String) groupDropdown.getSelectedItem();
-            if ("Broadcast".equals(selectedGroup)) {
-                writer.println(message);
-            } else {
-                writer.println("GROUP_MSG " + selectedGroup + " " + message);
-            }
-            textField.setText("");
-        }
-    }
-
-    private static void receiveMessages() {
-        try {
-            String message;
-            while ((message = reader.readLine()) != null) {
-                if (message.startsWith("FILE_RECEIVED")) {
-                    // Detect file transfer messages and handle them
-                    handleFileReception(message);
-                } else {
-                    // Process regular messages
-                    final String serverMessage = message;
-                    chatHistory.add("[" + new java.text.SimpleDateFormat("HH:mm:ss").format(new java.util.Date()) + "] " + serverMessage);
-                    SwingUtilities.invokeLater(() -> chatArea.append(serverMessage + "\n"));
-                }
-            }
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(null, "Error receiving messages.");
-        }
-    }    
-
-    private static void createOrJoinGroup() {
-        String[] options = {"Create Group", "Join Group"};
-        int choice = JOptionPane.showOptionDialog(
-            null,
-            "Would you like to create a new group or join an existing group?",
-            "Group Chat",
-            JOptionPane.YES_NO_OPTION,
-            JOptionPane.QUESTION_MESSAGE,
-            null,
-            options,
-            options[0]
-        );
-
-        if (choice == 0) {
-            String groupCode = JOptionPane.showInputDialog("Enter a unique group code:");
-            if (groupCode != null && !groupCode.trim().isEmpty()) {
-                writer.println("GROUP_CREATE " + groupCode.trim());
-                groupDropdown.addItem(groupCode.trim());
-            } else {
-                JOptionPane.showMessageDialog(null, "Group code cannot be empty.");
-            }
-        } else if (choice == 1) {
-            String groupCode = JOptionPane.showInputDialog("Enter the group code to join:");
-            if (groupCode != null && !groupCode.trim().isEmpty()) {
-                writer.println("GROUP_JOIN " + groupCode.trim());
-                groupDropdown.addItem(groupCode.trim());
-            } else {
-                JOptionPane.showMessageDialog(null, "Group code cannot be empty.");
-            }
-        }
-    }
-
-    
-    private static void sendFile() {
-        JFileChooser fileChooser = new JFileChooser();
-        int returnValue = fileChooser.showOpenDialog(null);
-    
-        if (returnValue == JFileChooser.APPROVE_OPTION) {
-            File file = fileChooser.getSelectedFile();
-            String selectedGroup = (String) groupDropdown.getSelectedItem();
-            String target = "Broadcast".equals(selectedGroup) ? "BROADCAST" : "GROUP " + selectedGroup;
-    
-            try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
-                // Send file metadata
-                writer.println("FILE_TRANSFER " + target + " " + file.getName() + " " + file.length());
-    
-                // Display "Sending..." in the chat area
-                SwingUtilities.invokeLater(() -> chatArea.append("Sending file: " + file.getName() + "...\n"));
-    
-                // Send file binary data
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int bytesRead;
-                while ((bytesRead = bis.read(buffer)) != -1) {
-                    writer.println(new String(buffer, 0, bytesRead));
-                }
-    
-                writer.flush();
-                SwingUtilities.invokeLater(() -> chatArea.append("File sent: " + file.getName() + "\n"));
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(null, "Error sending file: " + e.getMessage());
-            }
-        }
-    }
-
-    private static void handleFileReception(String metadata) {
-        try {
-            String[] parts = metadata.split(" ");
-            if (parts.length != 4) {
-                SwingUtilities.invokeLater(() -> chatArea.append("Invalid file metadata received.\n"));
-                return;
-            }
-    
-            String fileName = parts[2];
-            long fileSize = Long.parseLong(parts[3]);
-    
-            // Show "Receiving..." in the chat area
-            SwingUtilities.invokeLater(() -> chatArea.append("Receiving file: " + fileName + "...\n"));
-    
-            // Save the file locally
-            File receivedFile = new File(fileName);
-            try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(receivedFile))) {
-                byte[] buffer = new byte[BUFFER_SIZE];
-                long totalBytesRead = 0;
-    
-                InputStream inputStream = socket.getInputStream();
-                while (totalBytesRead < fileSize) {
-                    int bytesRead = inputStream.read(buffer);
-                    if (bytesRead == -1) break;
-                    bos.write(buffer, 0, bytesRead);
-                    totalBytesRead += bytesRead;
-                }
-    
-                if (totalBytesRead == fileSize) {
-                    // Add clickable link to the chat area after the file is fully received
-                    SwingUtilities.invokeLater(() -> {
-                        chatArea.append("File received: ");
-                        addClickableLink(fileName);
-                    });
-                } else {
-                    SwingUtilities.invokeLater(() -> chatArea.append("File transfer incomplete: " + fileName + "\n"));
-                }
-            }
-        } catch (IOException e) {
-            SwingUtilities.invokeLater(() -> chatArea.append("Error receiving file: " + e.getMessage() + "\n"));
-        }
-    }    
-    
-    private static void addClickableLink(String fileName) {
-        chatArea.append(fileName + " (Click to open)\n");
-    
-        chatArea.addMouseListener(new java.awt.event.MouseAdapter() {
-            public void mouseClicked(java.awt.event.MouseEvent evt) {
-                if (evt.getClickCount() == 2) {
-                    try {
-                        File file = new File(fileName);
-                        if (file.exists()) {
-                            Desktop.getDesktop().open(file);
-                        } else {
-                            JOptionPane.showMessageDialog(null, "File not found: " + fileName);
-                        }
-                    } catch (IOException e) {
-                        JOptionPane.showMessageDialog(null, "Unable to open file: " + e.getMessage());
-                    }
-                }
-            }
-        });
-    }        
-
-    private static void showChatHistory() {
-        JFrame historyFrame = new JFrame("Chat History");
-        historyFrame.setSize(500, 400);
-        historyFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-
-        DefaultListModel<String> historyModel = new DefaultListModel<>();
-        for (String entry : chatHistory) {
-            historyModel.addElement(entry);
-        }
-
-        JList<String> historyList = new JList<>(historyModel);
-        JScrollPane scrollPane = new JScrollPane(historyList);
-
-        JButton deleteButton = new JButton("Delete Selected");
-        deleteButton.addActionListener(e -> {
-            int[] selectedIndices = historyList.getSelectedIndices();
-            if (selectedIndices.length > 0) {
-                List<String> toRemove = new ArrayList<>();
-                for (int index : selectedIndices) {
-                    toRemove.add(historyModel.getElementAt(index));
-                }
-                toRemove.forEach(historyModel::removeElement);
-                chatHistory.removeAll(toRemove);
-            } else {
-                JOptionPane.showMessageDialog(historyFrame, "No message selected for deletion.");
-            }
-        });
-
-        historyFrame.add(scrollPane, BorderLayout.CENTER);
-        historyFrame.add(deleteButton, BorderLayout.SOUTH);
-        historyFrame.setVisible(true);
-    }
+import java.awt.*;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.List;
+import javax.swing.*;
+
+public class ChatClient {
+    private static final String SERVER_ADDRESS = "localhost";
+    private static final int SERVER_PORT = 1234;
+    private static final int HISTORY_PAGE = 50;
+    private static final int MAILBOX_PAGE = 200;
+    private static final String DIRECT = "@"; // dropdown entries "@<username>" are direct conversations; group codes never start with it
+    // Groups still being paged out of the mailbox, with the offset where their backlog ends
+    private static final Map<String, Long> mailboxEnds = new java.util.concurrent.ConcurrentHashMap<>();
+
+    private static final long RECONNECT_MIN_MILLIS = 500;
+    private static final long RECONNECT_MAX_MILLIS = 30_000;
+
+    private static String username;
+    private static String password; // kept for logging back in after the connection drops
+    private static PrintWriter writer;
+    private static boolean binary; // negotiated with the server at login
+    private static DataOutputStream frameOut;
+    private static DataInputStream frameIn;
+    private static String firstTextLine; // the login reply, shown once the chat window is up
+    private static int connection; // counts reconnects, so an upload notices it lost its connection; outbound thread only
+    private static volatile int transferPort; // announced by servers with a chunked transfer channel
+    private static volatile String transferToken; // announced with it, valid for this connection's session
+    private static JList<String> chatView;
+    private static ChatTranscript transcript;
+    private static final int TRANSCRIPT_CAPACITY = 5000; // lines kept in memory, older ones spill to disk
+    private static final int FRAME_MILLIS = 16;
+    // Lines from the network threads, moved into the transcript once per frame on the EDT
+    private static final Queue<String> incomingLines = new java.util.concurrent.ConcurrentLinkedQueue<>();
+    private static final java.time.format.DateTimeFormatter TIME = java.time.format.DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static JTextField textField;
+    private static javax.swing.Timer inputPause; // re-enables textField after a RATE_LIMITED
+    private static JComboBox<String> groupDropdown;
+    private static final TransferManager transfers = new TransferManager(ChatClient::appendLine);
+    private static JLabel transferStatus;
+    private static DefaultListModel<String> transferRows; // the Transfers window's rows, once it has been opened
+    // Every write to the chat connection happens on this thread, in the order it was asked for, so neither
+    // the event thread nor a transfer ever waits on the socket or on each other
+    private static final java.util.concurrent.ExecutorService outbound = java.util.concurrent.Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chat-send");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static void main(String[] args) {
+        showLoginScreen();
+    }
+
+    private static Socket socket; // Store the socket connection
+
+    private static void showLoginScreen() {
+        JFrame loginFrame = new JFrame("Login/Register");
+        loginFrame.setSize(400, 300);
+        loginFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        loginFrame.setLayout(new BorderLayout());
+
+        JLabel header = new JLabel("Welcome to the Chat App", SwingConstants.CENTER);
+        header.setFont(new Font("Arial", Font.BOLD, 16));
+        header.setBorder(BorderFactory.createEmptyBorder(10, 0, 10, 0));
+
+        JPanel panel = new JPanel(new GridBagLayout());
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        gbc.insets = new Insets(10, 10, 10, 10);
+
+        JLabel usernameLabel = new JLabel("Username:");
+        gbc.gridx = 0;
+        gbc.gridy = 0;
+        panel.add(usernameLabel, gbc);
+
+        JTextField usernameField = new JTextField(15);
+        gbc.gridx = 1;
+        gbc.gridy = 0;
+        panel.add(usernameField, gbc);
+
+        JLabel passwordLabel = new JLabel("Password:");
+        gbc.gridx = 0;
+        gbc.gridy = 1;
+        panel.add(passwordLabel, gbc);
+
+        JPasswordField passwordField = new JPasswordField(15);
+        gbc.gridx = 1;
+        gbc.gridy = 1;
+        panel.add(passwordField, gbc);
+
+        JButton loginButton = new JButton("Login");
+        gbc.gridx = 0;
+        gbc.gridy = 2;
+        panel.add(loginButton, gbc);
+
+        JButton registerButton = new JButton("Register");
+        gbc.gridx = 1;
+        gbc.gridy = 2;
+        panel.add(registerButton, gbc);
+
+        loginButton.addActionListener(e -> {
+            username = usernameField.getText().trim();
+            String password = new String(passwordField.getPassword()).trim();
+            if (!username.isEmpty() && !password.isEmpty()) {
+                if (attemptLogin(password)) {
+                    loginFrame.dispose();
+                }
+            } else {
+                JOptionPane.showMessageDialog(null, "Username and password cannot be empty.");
+            }
+        });
+
+        registerButton.addActionListener(e -> {
+            registerUser();
+        });
+
+        loginFrame.add(header, BorderLayout.NORTH);
+        loginFrame.add(panel, BorderLayout.CENTER);
+        loginFrame.setVisible(true);
+    }
+
+    // Credentials live on the server: registering is a short connection of its own
+    private static void registerUser() {
+        String newUsername = JOptionPane.showInputDialog("Enter a username to register:");
+        if (newUsername != null && !newUsername.trim().isEmpty()) {
+            String newPassword = JOptionPane.showInputDialog("Enter a password:");
+            if (newPassword != null && !newPassword.trim().isEmpty()) {
+                try (Socket registration = new Socket(SERVER_ADDRESS, SERVER_PORT)) {
+                    InputStream in = new BufferedInputStream(registration.getInputStream());
+                    OutputStream out = registration.getOutputStream();
+                    if (!handshake(in, out)) {
+                        JOptionPane.showMessageDialog(null, "This server does not support registration.");
+                        return;
+                    }
+                    out.write(("REGISTER " + newUsername.trim() + " " + newPassword.trim() + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    BinaryProtocol.FrameReader frames = new BinaryProtocol.FrameReader();
+                    String reply = frames.read(new DataInputStream(in)) ? BinaryProtocol.remainingText(frames.payload()) : null;
+                    JOptionPane.showMessageDialog(null, reply == null ? "No reply from server." : replyText(reply));
+                } catch (IOException e) {
+                    JOptionPane.showMessageDialog(null, "Unable to connect to server.");
+                }
+            } else {
+                JOptionPane.showMessageDialog(null, "Password cannot be empty.");
+            }
+        } else {
+            JOptionPane.showMessageDialog(null, "Username cannot be empty.");
+        }
+    }
+
+    // "REGISTER_FAILED Username already exists." -> "Username already exists."
+    private static String replyText(String reply) {
+        int space = reply.indexOf(' ');
+        return space < 0 ? reply : reply.substring(space + 1);
+    }
+
+    // False, with the server's reason shown, when the login was refused
+    private static boolean attemptLogin(String password) {
+        try {
+            if (!connect(password)) {
+                JOptionPane.showMessageDialog(null, firstTextLine == null ? "No reply from server." : replyText(firstTextLine));
+                socket.close();
+                return false;
+            }
+            ChatClient.password = password;
+            showChatWindow();
+            return true;
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null, "Unable to connect to server.");
+            return false;
+        }
+    }
+
+    // Opens the chat connection and logs in; false when the server's reply, left in firstTextLine, was not LOGIN_SUCCESS
+    private static boolean connect(String password) throws IOException {
+        // Initialize the socket and store it
+        socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+
+        // Ask for the binary protocol, and send the password only once the server has answered. A server that
+        // does not know the handshake has no accounts either: the client joins it again by username alone, as
+        // its guests do, over the text protocol.
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        binary = handshake(in, out);
+        if (!binary) {
+            socket.close();
+            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+        out.write(((binary ? "LOGIN " + username + " " + password : username) + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        firstTextLine = binary ? null : BinaryProtocol.readLine(in);
+
+        // Use the socket for writer and reader initialization
+        frameOut = new DataOutputStream(new BufferedOutputStream(out));
+        frameIn = new DataInputStream(in);
+        writer = new PrintWriter(new OutputStreamWriter(frameOut, "UTF-8"));
+
+        if (binary) {
+            BinaryProtocol.FrameReader frames = new BinaryProtocol.FrameReader();
+            firstTextLine = frames.read(frameIn) ? BinaryProtocol.remainingText(frames.payload()) : null;
+        }
+        return firstTextLine != null && firstTextLine.startsWith("LOGIN_SUCCESS");
+    }
+
+    // The handshake on a line of its own; true when the server answers it
+    private static boolean handshake(InputStream in, OutputStream out) throws IOException {
+        out.write((BinaryProtocol.HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        return BinaryProtocol.HANDSHAKE.equals(BinaryProtocol.readLine(in));
+    }
+
+    // On the outbound thread, so nothing is written until the connection is back, and what was typed meanwhile
+    // follows the login. Each wait is random, up to a ceiling that doubles with every attempt: when a server
+    // restart drops every client at once, they come back spread out instead of all in the same instant.
+    // The server puts a registered user back into their groups, through the mailbox or its snapshot.
+    private static void reconnect() {
+        appendLine("Connection lost, reconnecting...");
+        long ceiling = RECONNECT_MIN_MILLIS;
+        while (true) {
+            try {
+                socket.close();
+                Thread.sleep(java.util.concurrent.ThreadLocalRandom.current().nextLong(ceiling + 1));
+            } catch (IOException ignored) {
+            } catch (InterruptedException e) {
+                return;
+            }
+            ceiling = Math.min(RECONNECT_MAX_MILLIS, ceiling * 2);
+            try {
+                if (connect(password)) break;
+                if (firstTextLine != null && firstTextLine.startsWith("LOGIN_FAILED")) {
+                    appendLine("Could not log back in: " + replyText(firstTextLine));
+                    socket.close();
+                    return;
+                }
+                // SERVER_BUSY, or no reply: the server is still starting, or busy with the others coming back
+            } catch (IOException e) {
+                // Not listening yet
+            }
+        }
+        connection++;
+        firstTextLine = null; // the welcome and the last page of Broadcast were shown at the first login
+        transferPort = 0;     // announced again if the server still has a transfer channel
+        appendLine("Reconnected.");
+        new Thread(ChatClient::receiveMessages).start();
+    }
+
+    private static void showChatWindow() {
+        JFrame chatFrame = new JFrame(username + "'s Chat");
+        chatFrame.setSize(600, 500);
+        chatFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+        JPanel topPanel = new JPanel(new BorderLayout());
+        groupDropdown = new JComboBox<>();
+        groupDropdown.addItem("Broadcast");
+        topPanel.add(groupDropdown, BorderLayout.WEST);
+        transferStatus = new JLabel("", SwingConstants.RIGHT);
+        topPanel.add(transferStatus, BorderLayout.EAST);
+
+        try {
+            transcript = new ChatTranscript(TRANSCRIPT_CAPACITY);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null, "Unable to create chat history file: " + e.getMessage());
+            System.exit(1);
+        }
+        chatView = newTranscriptList();
+        chatView.addMouseListener(new java.awt.event.MouseAdapter() {
+            public void mouseClicked(java.awt.event.MouseEvent evt) {
+                int index = chatView.locationToIndex(evt.getPoint());
+                if (evt.getClickCount() == 2 && index >= 0) openReceivedFile(transcript.getElementAt(index));
+            }
+        });
+        JScrollPane scrollPane = new JScrollPane(chatView);
+        new javax.swing.Timer(FRAME_MILLIS, e -> showIncomingLines()).start();
+        new javax.swing.Timer(500, e -> showTransferProgress()).start();
+
+        textField = new JTextField();
+        textField.addActionListener(e -> sendMessage());
+
+        JMenuBar menuBar = new JMenuBar();
+        JMenu optionsMenu = new JMenu("Options");
+
+        // Create menu items
+        JMenuItem createGroup = new JMenuItem("Group Chat");
+        JMenuItem fileTransfer = new JMenuItem("Send File");
+        JMenuItem chatHistory = new JMenuItem("Chat History");
+        JMenuItem searchHistory = new JMenuItem("Search");
+        JMenuItem transferList = new JMenuItem("Transfers");
+
+        createGroup.addActionListener(e -> createOrJoinGroup());
+        fileTransfer.addActionListener(e -> sendFile());
+        chatHistory.addActionListener(e -> showChatHistory());
+        searchHistory.addActionListener(e -> showSearch());
+        transferList.addActionListener(e -> showTransfers());
+
+        // Add menu items to the Options menu
+        optionsMenu.add(createGroup);
+        optionsMenu.add(fileTransfer);
+        optionsMenu.add(chatHistory);
+        optionsMenu.add(searchHistory);
+        optionsMenu.add(transferList);
+        menuBar.add(optionsMenu);
+
+        chatFrame.add(topPanel, BorderLayout.NORTH);
+        chatFrame.add(scrollPane, BorderLayout.CENTER);
+        chatFrame.add(textField, BorderLayout.SOUTH);
+        chatFrame.setJMenuBar(menuBar);
+        chatFrame.setVisible(true);
+
+        new Thread(ChatClient::receiveMessages).start();
+    }
+
+    private static void sendMessage() {
+        String message = textField.getText();
+        if (!message.trim().isEmpty()) {
+            String selectedGroup = (String) groupDropdown.getSelectedItem();
+            if ("Broadcast".equals(selectedGroup)) {
+                if (binary) sendFrame(BinaryProtocol.frame(BinaryProtocol.BROADCAST, message));
+                else sendLine(message);
+            } else if (selectedGroup.startsWith(DIRECT)) {
+                String recipient = selectedGroup.substring(DIRECT.length());
+                if (binary) sendFrame(BinaryProtocol.directMessage(recipient, message));
+                else sendLine("DM " + recipient + " " + message);
+            } else {
+                if (binary) sendFrame(BinaryProtocol.groupMessage(selectedGroup, message));
+                else sendLine("GROUP_MSG " + selectedGroup + " " + message);
+            }
+            textField.setText("");
+        }
+    }
+
+    // Text protocol counterpart of sendFrame; the writer does not autoflush, so each line is flushed here
+    private static void sendLine(String line) {
+        outbound.execute(() -> {
+            writer.println(line);
+            writer.flush();
+        });
+    }
+
+    private static void sendFrame(ByteBuffer frame) {
+        outbound.execute(() -> {
+            try {
+                writeFrame(frame);
+            } catch (IOException e) {
+                appendLine("Error sending message: " + e.getMessage());
+            }
+        });
+    }
+
+    // On the outbound thread
+    private static void writeFrame(ByteBuffer frame) throws IOException {
+        BinaryProtocol.write(frameOut, frame);
+        frameOut.flush();
+    }
+
+    private static void receiveMessages() {
+        try {
+            if (firstTextLine != null) {
+                displayMessage(firstTextLine);
+            }
+            if (binary) {
+                receiveFrames();
+                return;
+            }
+            // Lines are read straight from the byte stream so raw file data after FILE_RECEIVED stays intact
+            String message;
+            while ((message = BinaryProtocol.readLine(frameIn)) != null) {
+                if (message.startsWith("FILE_RECEIVED")) {
+                    // Detect file transfer messages and handle them
+                    handleFileReception(message);
+                } else {
+                    // Process regular messages
+                    displayMessage(message);
+                }
+            }
+        } catch (IOException e) {
+            appendLine("Error receiving messages: " + e.getMessage());
+        }
+        if (incoming != null) {
+            incoming.abort("the connection closed");
+            incoming = null;
+        }
+        outbound.execute(ChatClient::reconnect);
+    }
+
+    private static void displayMessage(String serverMessage) {
+        String text = serverMessage;
+        long time = System.currentTimeMillis();
+        if (serverMessage.startsWith("GROUP_LEFT ") || serverMessage.startsWith("GROUP_DELETED ")) {
+            String groupCode = serverMessage.substring(serverMessage.indexOf(' ') + 1);
+            SwingUtilities.invokeLater(() -> groupDropdown.removeItem(groupCode));
+        } else if (serverMessage.startsWith("LOGIN_SUCCESS")) {
+            requestHistory("Broadcast");
+        } else if (serverMessage.startsWith("GROUP_JOINED ")) {
+            requestHistory(serverMessage.substring(serverMessage.indexOf(": ") + 2));
+        } else if (serverMessage.startsWith("MAILBOX ")) {
+            // "MAILBOX <from> <end> <group>": back in a group, with what was sent to it while away
+            String[] parts = serverMessage.split(" ", 4);
+            long from = Long.parseLong(parts[1]);
+            long end = Long.parseLong(parts[2]);
+            // The user's own direct stream holds messages to them, not a conversation to list
+            if (!parts[3].startsWith(DIRECT)) SwingUtilities.invokeLater(() -> addGroup(parts[3]));
+            if (from >= end) return;
+            text = (end - from) + " message(s) in " + parts[3] + " while you were away:";
+            mailboxEnds.put(parts[3], end);
+            requestHistory(parts[3], from, MAILBOX_PAGE);
+        } else if (serverMessage.startsWith("HISTORY_END ")) {
+            // "HISTORY_END <next> <stream>": the next page of a mailbox is only asked for once this one is in
+            String[] parts = serverMessage.split(" ", 3);
+            Long end = parts.length == 3 ? mailboxEnds.get(parts[2]) : null;
+            if (end != null) {
+                long next = Long.parseLong(parts[1]);
+                if (next < end) requestHistory(parts[2], next, MAILBOX_PAGE);
+                else mailboxEnds.remove(parts[2]);
+            }
+            return;
+        } else if (serverMessage.startsWith("SEARCH_")) {
+            showSearchReply(serverMessage);
+            return;
+        } else if (serverMessage.startsWith("RATE_LIMITED ")) {
+            // "RATE_LIMITED <retry after ms> <reason>": the input pauses until the server will take more
+            String[] parts = serverMessage.split(" ", 3);
+            int retryMillis = Integer.parseInt(parts[1]);
+            text = (parts.length == 3 ? parts[2] : "You are sending too fast.") + " Try again in " + Math.max(1, (retryMillis + 999) / 1000) + " s.";
+            SwingUtilities.invokeLater(() -> pauseInput(retryMillis));
+        } else if (serverMessage.startsWith("HISTORY ")) {
+            // "HISTORY <offset> <timestamp> <message>": shown as the message alone
+            String[] parts = serverMessage.split(" ", 4);
+            if (parts.length == 4) {
+                time = Long.parseLong(parts[2]);
+                text = parts[3];
+            }
+        }
+        if (text.startsWith("[DM ")) {
+            // "[DM <from> -> <to>] <text>": a conversation someone else started gets its dropdown entry
+            int arrow = text.indexOf(" -> ");
+            String from = arrow < 0 ? null : text.substring(4, arrow);
+            if (from != null && !from.equalsIgnoreCase(username)) SwingUtilities.invokeLater(() -> addConversation(from));
+        }
+        appendLine(text, time);
+    }
+
+    // On the event thread; a later pause replaces an earlier one
+    private static void pauseInput(int millis) {
+        if (inputPause == null) {
+            inputPause = new javax.swing.Timer(millis, e -> textField.setEnabled(true));
+            inputPause.setRepeats(false);
+        }
+        textField.setEnabled(false);
+        inputPause.setInitialDelay(millis);
+        inputPause.restart();
+    }
+
+    private static void appendLine(String text) {
+        appendLine(text, System.currentTimeMillis());
+    }
+
+    // Safe from any thread; the line shows up with the next frame
+    private static void appendLine(String text, long time) {
+        incomingLines.add("[" + TIME.format(java.time.Instant.ofEpochMilli(time).atZone(java.time.ZoneId.systemDefault())) + "] " + text);
+    }
+
+    // One model update per frame however many lines arrived, following the end of the view if it was there
+    private static void showIncomingLines() {
+        if (incomingLines.isEmpty()) return;
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = incomingLines.poll()) != null) {
+            lines.add(line);
+        }
+        int last = transcript.getSize() - 1;
+        boolean following = last < 0 || chatView.getLastVisibleIndex() >= last;
+        transcript.addAll(lines);
+        if (following) chatView.ensureIndexIsVisible(transcript.getSize() - 1);
+    }
+
+    // Fixed cell sizes, so the list never measures rows it is not showing (which would read them from disk)
+    private static JList<String> newTranscriptList() {
+        JList<String> list = new JList<>(transcript);
+        list.setFixedCellHeight(list.getFontMetrics(list.getFont()).getHeight() + 2);
+        list.setFixedCellWidth(1); // narrower than any viewport, so rows take the viewport's width
+        return list;
+    }
+
+    // Messages sent before this client joined, replayed from the server's log
+    private static void requestHistory(String stream) {
+        requestHistory(stream, -1, HISTORY_PAGE);
+    }
+
+    private static void requestHistory(String stream, long fromOffset, int limit) {
+        if (binary) sendFrame(BinaryProtocol.history(stream, fromOffset, limit));
+        else sendLine("HISTORY " + stream + " " + fromOffset + " " + limit);
+    }
+
+    // Search results go to the search window, a page at a time, newest first
+    private static final int SEARCH_PAGE = 20;
+    private static final DefaultListModel<String> searchResults = new DefaultListModel<>();
+    private static JButton olderResults;
+    private static String searchStream;
+    private static String searchQuery;
+    private static long searchBefore = -1;
+
+    private static void showSearch() {
+        JFrame searchFrame = new JFrame("Search");
+        searchFrame.setSize(500, 400);
+        searchFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+
+        JTextField queryField = new JTextField();
+        queryField.setToolTipText("Words, \"a phrase\" or from:username; all must match");
+        queryField.addActionListener(e -> {
+            String query = queryField.getText().trim();
+            if (query.isEmpty()) return;
+            searchResults.clear();
+            searchStream = (String) groupDropdown.getSelectedItem();
+            // Direct messages are searched in the user's own stream, the only one the server lets them read
+            if (searchStream.startsWith(DIRECT)) searchStream = DIRECT + username.toLowerCase(Locale.ROOT);
+            searchQuery = query;
+            requestSearch(-1);
+        });
+        olderResults = new JButton("Older Results");
+        olderResults.setEnabled(false);
+        olderResults.addActionListener(e -> requestSearch(searchBefore));
+
+        searchFrame.add(queryField, BorderLayout.NORTH);
+        searchFrame.add(new JScrollPane(new JList<>(searchResults)), BorderLayout.CENTER);
+        searchFrame.add(olderResults, BorderLayout.SOUTH);
+        searchFrame.setVisible(true);
+    }
+
+    private static void requestSearch(long before) {
+        olderResults.setEnabled(false);
+        if (binary) sendFrame(BinaryProtocol.search(searchStream, before, SEARCH_PAGE, searchQuery));
+        else sendLine("SEARCH " + before + " " + SEARCH_PAGE + " " + searchStream + "\t" + searchQuery);
+    }
+
+    // "SEARCH_RESULT <offset> <timestamp> <message>", "SEARCH_END <nextBefore> <stream>" or "SEARCH_ERROR <reason>"
+    private static void showSearchReply(String reply) {
+        String[] parts = reply.split(" ", 4);
+        SwingUtilities.invokeLater(() -> {
+            if (parts[0].equals("SEARCH_RESULT") && parts.length == 4) {
+                searchResults.addElement("[" + TIME.format(java.time.Instant.ofEpochMilli(Long.parseLong(parts[2])).atZone(java.time.ZoneId.systemDefault())) + "] " + parts[3]);
+            } else if (parts[0].equals("SEARCH_END")) {
+                searchBefore = Long.parseLong(parts[1]);
+                // A page can come back empty while older messages are still to be searched
+                if (searchResults.isEmpty() && searchBefore < 0) searchResults.addElement("No messages found.");
+                if (olderResults != null) olderResults.setEnabled(searchBefore >= 0);
+            } else {
+                searchResults.addElement(replyText(reply));
+            }
+        });
+    }
+
+    // File data arrives as FILE_DATA frames after "FILE_RECEIVED <name> <size>", so chat keeps flowing between chunks;
+    // the disk writes happen on the transfer manager's thread. Only touched by the receiving thread.
+    private static TransferManager.Receiver incoming;
+
+    private static void receiveFrames() throws IOException {
+        BinaryProtocol.FrameReader frames = new BinaryProtocol.FrameReader();
+        BinaryProtocol.Inflating inflating = new BinaryProtocol.Inflating();
+        while (frames.read(frameIn)) {
+            byte opcode = frames.opcode();
+            ByteBuffer payload = frames.payload();
+            if (opcode == BinaryProtocol.DEFLATED) {
+                payload = inflating.inflate(payload);
+                opcode = inflating.opcode();
+            }
+            if (opcode == BinaryProtocol.MESSAGE) {
+                String message = BinaryProtocol.remainingText(payload);
+                if (message.startsWith("FILE_RECEIVED ")) {
+                    beginFileReception(message);
+                } else if (message.startsWith("TRANSFER_PORT ")) {
+                    // "TRANSFER_PORT <port> <token>"
+                    String[] parts = message.split(" ");
+                    if (parts.length == 3) {
+                        transferToken = parts[2];
+                        transferPort = Integer.parseInt(parts[1]);
+                    }
+                } else if (message.startsWith("COMPRESSION deflate")) {
+                    sendFrame(BinaryProtocol.frame(BinaryProtocol.COMPRESS, "deflate"));
+                } else if (message.startsWith("FILE_AVAILABLE ")) {
+                    downloadFile(message);
+                } else {
+                    displayMessage(message);
+                }
+            } else if (opcode == BinaryProtocol.FILE_DATA && incoming != null) {
+                payload.limit(payload.position() + (int) Math.min(payload.remaining(), incoming.remaining()));
+                incoming.write(payload);
+                if (incoming.isComplete()) incoming = null;
+            }
+        }
+    }
+
+    private static void beginFileReception(String metadata) {
+        int lastSpace = metadata.lastIndexOf(' ');
+        String fileName = new File(metadata.substring("FILE_RECEIVED ".length(), lastSpace)).getName();
+        long size = Long.parseLong(metadata.substring(lastSpace + 1));
+        try {
+            incoming = transfers.receive(new File(fileName), size, RECEIVED + fileName + CLICK_TO_OPEN);
+            if (incoming.isComplete()) incoming = null;
+        } catch (IOException e) {
+            // Its FILE_DATA frames are dropped as they come
+            appendLine("Error receiving file: " + e.getMessage());
+        }
+    }
+
+    private static void createOrJoinGroup() {
+        String[] options = {"Create Group", "Join Group", "Leave Group", "Delete Group", "Message User"};
+        int choice = JOptionPane.showOptionDialog(
+            null,
+            "Would you like to create, join, leave or delete a group, or message someone directly?",
+            "Group Chat",
+            JOptionPane.YES_NO_OPTION,
+            JOptionPane.QUESTION_MESSAGE,
+            null,
+            options,
+            options[0]
+        );
+
+        if (choice == 0) {
+            String groupCode = JOptionPane.showInputDialog("Enter a unique group code:");
+            if (groupCode != null && !groupCode.trim().isEmpty()) {
+                if (binary) sendFrame(BinaryProtocol.frame(BinaryProtocol.GROUP_CREATE, groupCode.trim()));
+                else sendLine("GROUP_CREATE " + groupCode.trim());
+                groupDropdown.addItem(groupCode.trim());
+            } else {
+                JOptionPane.showMessageDialog(null, "Group code cannot be empty.");
+            }
+        } else if (choice == 1) {
+            String groupCode = JOptionPane.showInputDialog("Enter the group code to join:");
+            if (groupCode != null && !groupCode.trim().isEmpty()) {
+                if (binary) sendFrame(BinaryProtocol.frame(BinaryProtocol.GROUP_JOIN, groupCode.trim()));
+                else sendLine("GROUP_JOIN " + groupCode.trim());
+                groupDropdown.addItem(groupCode.trim());
+            } else {
+                JOptionPane.showMessageDialog(null, "Group code cannot be empty.");
+            }
+        } else if (choice == 2 || choice == 3) {
+            // The group leaves the dropdown once the server confirms with GROUP_LEFT or GROUP_DELETED
+            Object selected = groupDropdown.getSelectedItem();
+            String groupCode = JOptionPane.showInputDialog("Enter the group code to " + (choice == 2 ? "leave:" : "delete:"),
+                "Broadcast".equals(selected) ? "" : selected);
+            if (groupCode != null && !groupCode.trim().isEmpty()) {
+                if (binary) sendFrame(BinaryProtocol.frame(choice == 2 ? BinaryProtocol.GROUP_LEAVE : BinaryProtocol.GROUP_DELETE, groupCode.trim()));
+                else sendLine((choice == 2 ? "GROUP_LEAVE " : "GROUP_DELETE ") + groupCode.trim());
+            } else {
+                JOptionPane.showMessageDialog(null, "Group code cannot be empty.");
+            }
+        } else if (choice == 4) {
+            String recipient = JOptionPane.showInputDialog("Enter the username to message:");
+            if (recipient != null && !recipient.trim().isEmpty()) {
+                addConversation(recipient.trim());
+                groupDropdown.setSelectedItem(DIRECT + recipient.trim());
+            } else {
+                JOptionPane.showMessageDialog(null, "Username cannot be empty.");
+            }
+        }
+    }
+
+    // On the event thread; after a reconnect the group may be listed already
+    private static void addGroup(String groupCode) {
+        for (int i = 0; i < groupDropdown.getItemCount(); i++) {
+            if (groupDropdown.getItemAt(i).equals(groupCode)) return;
+        }
+        groupDropdown.addItem(groupCode);
+    }
+
+    // On the event thread; a conversation is listed once
+    private static void addConversation(String user) {
+        String item = DIRECT + user;
+        for (int i = 0; i < groupDropdown.getItemCount(); i++) {
+            if (groupDropdown.getItemAt(i).equalsIgnoreCase(item)) return;
+        }
+        groupDropdown.addItem(item);
+    }
+
+    // Where a file sent to the selected dropdown entry goes
+    private static byte fileMode(String selected) {
+        if ("Broadcast".equals(selected)) return BinaryProtocol.MODE_BROADCAST;
+        return selected.startsWith(DIRECT) ? BinaryProtocol.MODE_DIRECT : BinaryProtocol.MODE_GROUP;
+    }
+
+    private static String fileTarget(String selected) {
+        return selected.startsWith(DIRECT) ? selected.substring(DIRECT.length()) : selected;
+    }
+
+    
+    private static void sendFile() {
+        JFileChooser fileChooser = new JFileChooser();
+        int returnValue = fileChooser.showOpenDialog(null);
+        if (returnValue != JFileChooser.APPROVE_OPTION) return;
+
+        File file = fileChooser.getSelectedFile();
+        String selectedGroup = (String) groupDropdown.getSelectedItem();
+        if (transferPort > 0) {
+            uploadFile(file, selectedGroup);
+        } else if (binary) {
+            sendFileFrames(file, selectedGroup);
+        } else {
+            sendFileInline(file, selectedGroup);
+        }
+    }
+
+    // The text protocol carries the raw bytes inline, so the whole file is one task on the outbound thread;
+    // messages typed meanwhile are sent after it, and the window stays responsive
+    private static void sendFileInline(File file, String selectedGroup) {
+        byte mode = fileMode(selectedGroup);
+        String target = (mode == BinaryProtocol.MODE_BROADCAST ? "BROADCAST " : mode == BinaryProtocol.MODE_DIRECT ? "DIRECT " : "GROUP ") + fileTarget(selectedGroup);
+        transfers.start(file.getName(), true, file.length(), true, "File sent: " + file.getName(), transfer -> await(outbound.submit(() -> {
+            // Metadata, then the size on its own line, then the bytes
+            writer.println("FILE_TRANSFER " + target + " " + file.getName());
+            writer.println(file.length());
+            writer.flush();
+            TransferManager.readChunks(file, transfer, chunk -> frameOut.write(chunk.array(), 0, chunk.limit()));
+            frameOut.flush();
+            return null;
+        })));
+    }
+
+    // One FILE_DATA frame at a time goes through the outbound thread, so chat frames queued meanwhile go
+    // out between them; waiting for each also keeps no more than one chunk of the file in memory. A reconnect
+    // in between fails the upload, since the new connection has no upload in progress.
+    private static void sendFileFrames(File file, String selectedGroup) {
+        transfers.start(file.getName(), true, file.length(), true, "File sent: " + file.getName(), transfer -> {
+            ByteBuffer begin = BinaryProtocol.fileBegin(fileMode(selectedGroup), fileTarget(selectedGroup), file.getName(), file.length());
+            int started = await(outbound.submit(() -> {
+                writeFrame(begin);
+                return connection;
+            }));
+            TransferManager.readChunks(file, transfer, chunk -> {
+                ByteBuffer frame = BinaryProtocol.frame(BinaryProtocol.FILE_DATA, chunk.array(), 0, chunk.limit());
+                await(outbound.submit(() -> {
+                    if (connection != started) throw new IOException("The connection was lost");
+                    writeFrame(frame);
+                    return null;
+                }));
+            });
+        });
+    }
+
+    // Waits for a task on the outbound thread, passing on what it threw
+    private static <T> T await(java.util.concurrent.Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted sending the file");
+        } catch (java.util.concurrent.ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Chunked transfers run on the transfer pool and their own connections, so chat keeps flowing meanwhile;
+    // retrying the same file only sends the chunks the server has not acknowledged yet
+    private static void uploadFile(File file, String selectedGroup) {
+        transfers.start(file.getName(), true, file.length(), false, "File sent: " + file.getName(), transfer -> {
+            ChunkedTransfer.Manifest manifest = ChunkedTransfer.upload(SERVER_ADDRESS, transferPort, transferToken, file, transfer::progress);
+            sendFrame(BinaryProtocol.fileShare(fileMode(selectedGroup), fileTarget(selectedGroup), manifest.fileId, file.getName()));
+        });
+    }
+
+    // "FILE_AVAILABLE <fileId> <size> <name>"; the name may contain spaces
+    private static void downloadFile(String metadata) {
+        String[] parts = metadata.split(" ", 4);
+        if (parts.length < 4) return;
+        String fileId = parts[1];
+        String fileName = new File(parts[3]).getName();
+        transfers.start(fileName, false, Long.parseLong(parts[2]), false, RECEIVED + fileName + CLICK_TO_OPEN,
+            transfer -> ChunkedTransfer.download(SERVER_ADDRESS, transferPort, transferToken, fileId, new File(fileName), transfer::progress));
+    }
+
+    // Text protocol: the raw bytes follow "FILE_RECEIVED <name> <size>" inline, so they are read here, but
+    // written to disk by the transfer manager while the next chunk is read
+    private static void handleFileReception(String metadata) throws IOException {
+        // "FILE_RECEIVED <name> <size>"; the name may contain spaces
+        int lastSpace = metadata.lastIndexOf(' ');
+        if (lastSpace <= "FILE_RECEIVED".length()) {
+            appendLine("Invalid file metadata received.");
+            return;
+        }
+        String fileName = new File(metadata.substring("FILE_RECEIVED ".length(), lastSpace)).getName();
+        long fileSize = Long.parseLong(metadata.substring(lastSpace + 1));
+
+        TransferManager.Receiver receiver = null;
+        try {
+            receiver = transfers.receive(new File(fileName), fileSize, RECEIVED + fileName + CLICK_TO_OPEN);
+        } catch (IOException e) {
+            // The bytes are still read, or they would be taken for chat lines
+            appendLine("Error receiving file: " + e.getMessage());
+        }
+        byte[] buffer = new byte[TransferManager.CHUNK];
+        long remaining = fileSize;
+        while (remaining > 0) {
+            int bytesRead = frameIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (bytesRead == -1) {
+                if (receiver != null) receiver.abort("transfer incomplete");
+                return;
+            }
+            if (receiver != null) receiver.write(ByteBuffer.wrap(buffer, 0, bytesRead));
+            remaining -= bytesRead;
+        }
+    }
+
+    // Refreshed twice a second: the summary beside the dropdown, and the Transfers window when it is open
+    private static void showTransferProgress() {
+        transferStatus.setText(transfers.summary());
+        if (transferRows == null) return;
+        long now = System.nanoTime();
+        List<TransferManager.Transfer> all = transfers.transfers();
+        for (int i = 0; i < all.size(); i++) {
+            String row = all.get(i).describe(now);
+            if (i < transferRows.size()) {
+                if (!row.equals(transferRows.get(i))) transferRows.set(i, row);
+            } else {
+                transferRows.addElement(row);
+            }
+        }
+    }
+
+    private static void showTransfers() {
+        if (transferRows == null) transferRows = new DefaultListModel<>();
+        JFrame frame = new JFrame("Transfers");
+        frame.setSize(600, 250);
+        frame.add(new JScrollPane(new JList<>(transferRows)));
+        frame.setVisible(true);
+        showTransferProgress();
+    }
+
+    private static final String RECEIVED = "File received: ";
+    private static final String CLICK_TO_OPEN = " (Click to open)";
+
+    // Double-clicking a "File received: <name> (Click to open)" line opens the file
+    private static void openReceivedFile(String line) {
+        int start = line.indexOf(RECEIVED);
+        if (start < 0 || !line.endsWith(CLICK_TO_OPEN)) return;
+        String fileName = line.substring(start + RECEIVED.length(), line.length() - CLICK_TO_OPEN.length());
+        try {
+            File file = new File(fileName);
+            if (file.exists()) {
+                Desktop.getDesktop().open(file);
+            } else {
+                JOptionPane.showMessageDialog(null, "File not found: " + fileName);
+            }
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null, "Unable to open file: " + e.getMessage());
+        }
+    }
+
+    private static void showChatHistory() {
+        JFrame historyFrame = new JFrame("Chat History");
+        historyFrame.setSize(500, 400);
+        historyFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+
+        // The same transcript model as the chat view, so rows are read as they scroll into sight
+        JList<String> historyList = newTranscriptList();
+        JScrollPane scrollPane = new JScrollPane(historyList);
+
+        JButton deleteButton = new JButton("Delete Selected");
+        deleteButton.addActionListener(e -> {
+            int[] selectedIndices = historyList.getSelectedIndices();
+            if (selectedIndices.length > 0) {
+                historyList.clearSelection();
+                transcript.delete(selectedIndices);
+            } else {
+                JOptionPane.showMessageDialog(historyFrame, "No message selected for deletion.");
+            }
+        });
+
+        historyFrame.add(scrollPane, BorderLayout.CENTER);
+        historyFrame.add(deleteButton, BorderLayout.SOUTH);
+        historyFrame.setVisible(true);
+    }
 }
\ No newline at end of file
@@ -1,205 +1,1531 @@
-import java.io.*;
-import java.net.*;
-import java.util.*;
-
-public class ChatServer {
-    private static final int PORT = 1234;
-    private static final int BUFFER_SIZE = 4096;
-
-    private static Set<PrintWriter> clientWriters = Collections.synchronizedSet(new HashSet<>());
-    private static Map<String, List<PrintWriter>> groups = Collections.synchronizedMap(new HashMap<>());
-
-    public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server started on port: " + PORT);
-
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new ClientHandler(clientSocket).start();
-            }
-        } catch (IOException e) {
-            System.err.println("Could not start server: " + e.getMessage());
-        }
-    }
-
-    static class ClientHandler extends Thread {
-        private Socket clientSocket;
-        private PrintWriter writer;
-        private BufferedReader reader;
-        private String username;
-
-        public ClientHandler(Socket socket) throws IOException {
-            this.clientSocket = socket;
-            this.writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
-            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-        }        
-
-        @Override
-        public void run() {
-            try {
-                username = reader.readLine();
-                if (username == null || username.trim().isEmpty()) {
-                    writer.println("LOGIN_FAILED Invalid username.");
-                    closeConnection();
-                    return;
-                }
-
-                synchronized (clientWriters) {
-                    clientWriters.add(writer);
-                    System.out.println(username + " has connected.");
-                    writer.println("LOGIN_SUCCESS Welcome to the chat, " + username);
-                }
-
-                String inputLine;
-                while ((inputLine = reader.readLine()) != null) {
-                    if (inputLine.startsWith("GROUP_CREATE")) {
-                        createGroup(inputLine.split(" ", 2)[1]);
-                    } else if (inputLine.startsWith("GROUP_JOIN")) {
-                        joinGroup(inputLine.split(" ", 2)[1]);
-                    } else if (inputLine.startsWith("GROUP_MSG")) {
-                        String[] parts = inputLine.split(" ", 3);
-                        sendGroupMessage(parts[1], username + ": " + parts[2]);
-                    } else if (inputLine.startsWith("FILE_TRANSFER")) {
-                        handleFileTransfer(inputLine);
-                    } else {
-                        broadcastMessage(username + ": " + inputLine);
-                    }
-                }
-            } catch (IOException e) {
-                System.err.println("Communication error with client: " + e.getMessage());
-            } finally {
-                closeConnection();
-            }
-        }
-
-        private void createGroup(String groupCode) {
-            synchronized (groups) {
-                if (!groups.containsKey(groupCode)) {
-                    groups.put(groupCode, new ArrayList<>());
-                    groups.get(groupCode).add(writer);
-                    writer.println("GROUP_CREATED Successfully created group with code: " + groupCode);
-                } else {
-                    writer.println("GROUP_ERROR Group code already exists.");
-                }
-            }
-        }
-
-        private void joinGroup(String groupCode) {
-            synchronized (groups) {
-                if (groups.containsKey(groupCode)) {
-                    groups.get(groupCode).add(writer);
-                    writer.println("GROUP_JOINED Successfully joined group: " + groupCode);
-                } else {
-                    writer.println("GROUP_ERROR Group does not exist.");
-                }
-            }
-        }
-
-        private void sendGroupMessage(String groupCode, String message) {
-            synchronized (groups) {
-                if (groups.containsKey(groupCode)) {
-                    for (PrintWriter groupWriter : groups.get(groupCode)) {
-                        groupWriter.println("[Group " + groupCode + "] " + message);
-                    }
-                } else {
-                    writer.println("GROUP_ERROR Group does not exist.");
-                }
-            }
-        }
-
-        private void broadcastMessage(String message) {
-            synchronized (clientWriters) {
-                for (PrintWriter pw : clientWriters) {
-                    pw.println(message);
-                }
-            }
-        }
-
-        private void handleFileTransfer(String metadata) {
-            try {
-                String[] parts = metadata.split(" ", 4);
-                if (parts.length < 4) {
-                    writer.println("FILE_ERROR Invalid file transfer metadata.");
-                    return;
-                }
-
-                String mode = parts[1]; // "BROADCAST" or "GROUP"
-                String target = parts[2]; // "Broadcast" or groupCode
-                String fileName = parts[3];
-
-                long fileSize = Long.parseLong(reader.readLine());
-
-                File tempFile = File.createTempFile("server_received_", "_" + fileName);
-                try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                    byte[] buffer = new byte[BUFFER_SIZE];
-                    long totalBytesRead = 0;
-
-                    InputStream inputStream = clientSocket.getInputStream();
-                    while (totalBytesRead < fileSize) {
-                        int bytesRead = inputStream.read(buffer);
-                        if (bytesRead == -1) break;
-                        fos.write(buffer, 0, bytesRead);
-                        totalBytesRead += bytesRead;
-                    }
-
-                    if (totalBytesRead == fileSize) {
-                        forwardFile(mode, target, fileName, fileSize, tempFile);
-                        writer.println("FILE_SUCCESS File transfer completed.");
-                    } else {
-                        writer.println("FILE_ERROR Incomplete file received.");
-                    }
-                }
-            } catch (Exception e) {
-                writer.println("FILE_ERROR " + e.getMessage());
-            }
-        }
-
-        private void forwardFile(String mode, String target, String fileName, long fileSize, File tempFile) {
-            try {
-                List<PrintWriter> recipients = new ArrayList<>();
-                if ("BROADCAST".equalsIgnoreCase(mode)) {
-                    synchronized (clientWriters) {
-                        recipients.addAll(clientWriters);
-                    }
-                } else if ("GROUP".equalsIgnoreCase(mode)) {
-                    synchronized (groups) {
-                        if (groups.containsKey(target)) {
-                            recipients.addAll(groups.get(target));
-                        } else {
-                            writer.println("FILE_ERROR Group does not exist.");
-                            return;
-                        }
-                    }
-                }
-
-                for (PrintWriter recipientWriter : recipients) {
-                    recipientWriter.println("FILE_RECEIVED " + fileName + " " + fileSize);
-
-                    try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(tempFile))) {
-                        byte[] buffer = new byte[BUFFER_SIZE];
-                        int bytesRead;
-                        while ((bytesRead = bis.read(buffer)) != -1) {
-                            recipientWriter.println(new String(buffer, 0, bytesRead));
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                System.err.println("Error forwarding file: " + e.getMessage());
-            }
-        }
-
-        private void closeConnection() {
-            try {
-                synchronized (clientWriters) {
-                    clientWriters.remove(writer);
-                }
-                if (writer != null) writer.close();
-                if (reader != null) reader.close();
-                if (clientSocket != null) clientSocket.close();
-                System.out.println(username + " has disconnected.");
-            } catch (IOException e) {
-                System.err.println("Error closing connection: " + e.getMessage());
-            }
-        }
-    }
-}
\ No newline at end of file
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChatServer {
+    private static final int DEFAULT_PORT = 1234;
+    static final int BUFFER_SIZE = 4096;
+
+    // Concurrent collections instead of monitors, so virtual threads never pin while holding them
+    private static Set<ClientConnection> clientWriters = ConcurrentHashMap.newKeySet();
+    private static final GroupRegistry groups = new GroupRegistry();
+    static final SessionRegistry sessions = new SessionRegistry(); // routes direct messages; ChatBenchmark fills it directly
+    private static BlobStore blobs;
+    private static MessageLog history; // null when the log could not be opened
+    private static SearchIndex search;  // null along with history
+    private static ExecutorService searchers; // runs searches, which read the log, off the connection threads
+    private static Mailboxes mailboxes; // null along with history, or when the journal could not be opened
+    private static GroupSnapshot snapshot; // null when snapshots are off or could not be opened
+    static final String BROADCAST_STREAM = "Broadcast";
+    static final String DIRECT_PREFIX = "@"; // "@<username>" is the stream of direct messages a user received
+    private static final int MAX_HISTORY_PAGE = 500;
+    private static final int MAX_SEARCH_PAGE = 100;
+    private static TransferServer transfers; // null when the transfer channel is disabled or failed to start
+    static CredentialStore credentials; // ChatBenchmark opens one for the handlers it runs in-process
+    private static boolean allowGuests;
+    private static ClusterNode cluster; // null unless --cluster-port is set
+
+    static String[] options = new String[0]; // ChatBenchmark sets these for the handlers it runs in-process
+
+    // Usage: java ChatServer [--engine=thread|virtual|nio] [--port=1234] [--loops=<event loop threads>]
+    //                        [--transfer-port=<port + 1, 0 disables>] [--store-dir=<file store>] [--store-quota-mb=4096]
+    //                        [--log-segment-mb=64] [--log-retention-hours=168] [--log-flush-ms=10]
+    //                        [--pbkdf2-iterations=100000] [--auth-threads=<cores>] [--auth-queue=256] [--allow-guests=true]
+    //                        [--max-batch-latency-us=0] [--metrics-port=<port + 2, 0 disables>] [--search-index-mb=256]
+    //                        [--cluster-port=<0 disables>] [--cluster-host=localhost] [--peers=<host:cluster port,...>]
+    //                        [--cluster-secret=<shared by every node, required with --cluster-port>]
+    //                        [--rate-messages=20] [--rate-bytes=65536] [--rate-files-per-minute=30] [--group-rate-messages=200]
+    //                        [--max-connections=10000] [--max-spools=64]   (and their --burst-* options, see RateLimits)
+    //                        [--compress-min-bytes=256] [--compress-level=1] [--mailbox-messages=1000] [--mailbox-ttl-hours=72]
+    //                        [--snapshot-seconds=30]
+    public static void main(String[] args) {
+        options = args;
+        int port = Integer.parseInt(option("port", String.valueOf(DEFAULT_PORT)));
+        String engine = option("engine", "thread");
+        Path store = Paths.get(option("store-dir", Paths.get(System.getProperty("java.io.tmpdir"), "chat-store").toString()));
+        try {
+            blobs = new BlobStore(store.resolve("blobs"), Long.parseLong(option("store-quota-mb", "4096")) << 20);
+        } catch (IOException e) {
+            System.err.println("Could not open file store: " + e.getMessage());
+            return;
+        }
+        try {
+            credentials = new CredentialStore(store.resolve("users"), Integer.parseInt(option("pbkdf2-iterations", "100000")),
+                Integer.parseInt(option("auth-threads", String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(option("auth-queue", "256")), 60);
+        } catch (IOException e) {
+            System.err.println("Could not open credential store: " + e.getMessage());
+            return;
+        }
+        allowGuests = Boolean.parseBoolean(option("allow-guests", "true"));
+        startMetrics(Integer.parseInt(option("metrics-port", String.valueOf(port + 2))));
+        startTransfers(Integer.parseInt(option("transfer-port", String.valueOf(port + 1))), store.resolve("manifests"), engine);
+        startCluster(Integer.parseInt(option("cluster-port", "0")));
+        try {
+            history = new MessageLog(store.resolve("log"), Long.parseLong(option("log-segment-mb", "64")) << 20,
+                TimeUnit.HOURS.toMillis(Long.parseLong(option("log-retention-hours", "168"))), Long.parseLong(option("log-flush-ms", "10")));
+            search = new SearchIndex(Long.parseLong(option("search-index-mb", "256")) << 20);
+            search.start(history);
+            searchers = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(64), runnable -> {
+                Thread thread = new Thread(runnable, "search");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } catch (IOException e) {
+            System.err.println("Could not open message log, history is disabled: " + e.getMessage());
+        }
+        if (history != null) {
+            try {
+                mailboxes = new Mailboxes(store.resolve("mailboxes"));
+            } catch (IOException e) {
+                System.err.println("Could not open mailboxes, offline members miss what is sent meanwhile: " + e.getMessage());
+            }
+        }
+        startSnapshots(store.resolve("groups"));
+
+        if ("nio".equalsIgnoreCase(engine)) {
+            int loops = Integer.parseInt(option("loops", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            try {
+                new NioChatServer(port, loops).run();
+            } catch (IOException e) {
+                System.err.println("Could not start server: " + e.getMessage());
+            }
+            return;
+        }
+
+        ExecutorService executor = newClientExecutor(engine);
+        // Blocking-mode channels, so the writer can hand the shared encoded lines straight to the socket
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            System.out.println("Server started on port: " + port + " (" + engine + ")");
+
+            while (true) {
+                SocketChannel clientChannel = serverChannel.accept();
+                if (!RateLimits.admitConnection(clientChannel)) continue;
+                executor.execute(new ClientHandler(clientChannel, executor));
+            }
+        } catch (IOException e) {
+            System.err.println("Could not start server: " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // One thread per client either way; "virtual" needs JDK 21+ and falls back to platform threads otherwise
+    static ExecutorService newClientExecutor(String engine) {
+        if ("virtual".equalsIgnoreCase(engine)) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads are not available on this JVM, using platform threads.");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    private static void startCluster(int clusterPort) {
+        if (clusterPort <= 0) return;
+        try {
+            cluster = new ClusterNode(option("cluster-host", "localhost"), clusterPort, Arrays.asList(option("peers", "").split(",")),
+                option("cluster-secret", ""), ChatServer::handlePeerFrame);
+            cluster.start();
+            ServerMetrics.gauge("chat_cluster_peers_connected", "Peer nodes this node has a link to", () -> cluster.connectedPeers());
+        } catch (IOException e) {
+            System.err.println("Could not start cluster node, running alone: " + e.getMessage());
+            cluster = null;
+        }
+    }
+
+    private static void startTransfers(int transferPort, Path manifests, String engine) {
+        if (transferPort <= 0) return;
+        try {
+            TransferServer server = new TransferServer(transferPort, blobs, manifests, newClientExecutor(engine));
+            server.start();
+            transfers = server;
+        } catch (IOException e) {
+            System.err.println("Could not start transfer channel, files go over the chat connection: " + e.getMessage());
+        }
+    }
+
+    // The newest snapshot is only mapped before the server listens: groups come out of it as they are first
+    // looked up, memberships as their users log in again. A new snapshot is written every --snapshot-seconds
+    // and when the JVM shuts down.
+    private static void startSnapshots(Path directory) {
+        if (GroupSnapshot.INTERVAL_SECONDS <= 0) return;
+        long start = System.nanoTime();
+        try {
+            snapshot = new GroupSnapshot(directory, code -> homeNode(code) == null);
+        } catch (IOException e) {
+            System.err.println("Could not open group snapshots, groups are lost at restart: " + e.getMessage());
+            return;
+        }
+        groups.restoreFrom(snapshot);
+        if (snapshot.restoredGroups() > 0) {
+            System.out.printf("Restored %d groups in %.1f ms%n", snapshot.restoredGroups(), (System.nanoTime() - start) / 1e6);
+        }
+        ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "group-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(ChatServer::writeSnapshot, GroupSnapshot.INTERVAL_SECONDS, GroupSnapshot.INTERVAL_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(ChatServer::writeSnapshot, "group-snapshot-final"));
+    }
+
+    private static void writeSnapshot() {
+        try {
+            snapshot.write(groups.all(), clientWriters);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error writing group snapshot: " + e.getMessage());
+        }
+    }
+
+    private static void startMetrics(int metricsPort) {
+        if (metricsPort <= 0) return;
+        ServerMetrics.gauge("chat_connections_active", "Logged-in connections", () -> clientWriters.size());
+        ServerMetrics.gauge("chat_groups", "Groups that exist", () -> groups.size());
+        ServerMetrics.gauge("chat_users_online", "Distinct usernames with at least one session", () -> sessions.size());
+        ServerMetrics.gauge("chat_outbound_queued", "Items waiting in all outbound queues", () -> {
+            long queued = 0;
+            for (ClientConnection client : clientWriters) {
+                queued += client.queued();
+            }
+            return queued;
+        });
+        ServerMetrics.gauge("chat_outbound_queued_max", "Items waiting in the longest outbound queue", () -> {
+            long max = 0;
+            for (ClientConnection client : clientWriters) {
+                max = Math.max(max, client.queued());
+            }
+            return max;
+        });
+        ServerMetrics.gauge("chat_registered_users", "Accounts in the credential store", () -> credentials.size());
+        ServerMetrics.gauge("chat_sockets_open", "Accepted sockets, logged in or not, counted against --max-connections", () -> RateLimits.connections());
+        ServerMetrics.gauge("chat_mailboxes", "Registered users with an offline mailbox waiting", () -> mailboxes == null ? 0 : mailboxes.size());
+        ServerMetrics.gauge("chat_spools_in_flight", "Uploads and file relays in progress, counted against --max-spools", () -> RateLimits.spools());
+        ServerMetrics.gauge("chat_search_index_bytes", "Estimated heap held by the search index", () -> search == null ? 0 : search.memoryBytes());
+        try {
+            ServerMetrics.start(metricsPort);
+        } catch (IOException e) {
+            System.err.println("Could not start metrics endpoint: " + e.getMessage());
+        }
+    }
+
+    // Returns the value of a --name=value startup option, or the default when absent
+    static String option(String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : options) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
+
+    // A connected client, whichever engine owns its socket
+    abstract static class ClientConnection {
+        String username;
+        boolean binary;     // negotiated at login
+        boolean registered; // logged in with a password, so it gets a mailbox while away
+        volatile boolean deflate; // accepted the COMPRESSION offer; read by whichever thread fans out to it
+        FileUpload upload;  // binary upload in progress; only touched by the reading thread
+        String transferToken; // lets this session use the transfer channel, until it disconnects
+        RateLimits.ConnectionLimits limits = new RateLimits.ConnectionLimits();
+        final Set<String> groupCodes = ConcurrentHashMap.newKeySet(); // maintained by GroupRegistry
+        volatile boolean disconnected; // set before its groups are left, so a join completing later undoes itself
+        // Mailboxes announced to this client and not yet read to the end: stream -> {next page's offset, end}
+        final Map<String, long[]> mailboxPages = new ConcurrentHashMap<>();
+
+        String getUsername() {
+            return username;
+        }
+
+        // Queues bytes already encoded for this connection's wire format. Buffers may be shared
+        // between recipients, so only a duplicate is queued and the original is never modified.
+        void write(ByteBuffer encoded) {
+            enqueue(encoded.duplicate());
+        }
+
+        void write(FileRegion region) {
+            enqueue(region);
+        }
+
+        // Hands a ByteBuffer or FileRegion to this connection's writer
+        abstract void enqueue(Object item);
+
+        // Items waiting in the outbound queue, for the metrics endpoint
+        abstract int queued();
+
+        void send(SharedMessage message) {
+            write(binary ? message.frame(deflate) : message.line());
+        }
+
+        void send(String message) {
+            send(new SharedMessage(message));
+        }
+
+        abstract void receiveFile(String metadata);
+
+        abstract void close();
+    }
+
+    // A server-to-client message, encoded at most once per wire format however many recipients share it
+    static final class SharedMessage {
+        private final byte[] utf8;
+        private volatile ByteBuffer line;
+        private volatile ByteBuffer frame;
+        private volatile ByteBuffer deflated; // or the plain frame, when compressing does not pay
+
+        SharedMessage(String text) {
+            this.utf8 = text.getBytes(StandardCharsets.UTF_8);
+        }
+
+        // Prefix followed by payload bytes that are already UTF-8, without decoding them
+        SharedMessage(String prefix, ByteBuffer suffix) {
+            byte[] head = prefix.getBytes(StandardCharsets.UTF_8);
+            this.utf8 = Arrays.copyOf(head, head.length + suffix.remaining());
+            suffix.duplicate().get(utf8, head.length, suffix.remaining());
+        }
+
+        ByteBuffer line() {
+            ByteBuffer encoded = line;
+            if (encoded == null) {
+                byte[] bytes = Arrays.copyOf(utf8, utf8.length + 1);
+                bytes[utf8.length] = '\n';
+                line = encoded = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+            }
+            return encoded;
+        }
+
+        ByteBuffer frame() {
+            ByteBuffer encoded = frame;
+            if (encoded == null) {
+                frame = encoded = BinaryProtocol.frame(BinaryProtocol.MESSAGE, utf8, 0, utf8.length);
+            }
+            return encoded;
+        }
+
+        // Compressed at most once, for all the recipients that accept it
+        ByteBuffer frame(boolean deflate) {
+            if (!deflate || utf8.length < Compression.MIN_BYTES) return frame();
+            ByteBuffer encoded = deflated;
+            if (encoded == null) {
+                encoded = Compression.deflate(BinaryProtocol.MESSAGE, utf8, 0, utf8.length);
+                deflated = encoded = encoded != null ? encoded : frame();
+            }
+            return encoded;
+        }
+    }
+
+    // The binary protocol handshake on a line of its own, which is answered at once; the login request is the
+    // next line. A client that waits for the answer never sends a password to a server that does not know the
+    // handshake, which would take the whole line for a guest's name. False for any other line.
+    static boolean handshake(ClientConnection client, String line) {
+        if (client.binary || !BinaryProtocol.HANDSHAKE.equals(line)) return false;
+        client.write(new SharedMessage(BinaryProtocol.HANDSHAKE).line());
+        client.binary = true;
+        return true;
+    }
+
+    // The first line, after the optional binary protocol handshake (its own line, or a prefix of this one from
+    // older clients), is LOGIN <user> <password>, REGISTER <user> <password> or, from older clients, a bare
+    // username that joins as a guest. Passwords are checked on the credential store's pool; the future says
+    // whether the client is in.
+    static CompletableFuture<Boolean> login(ClientConnection client, String firstLine) {
+        String request = firstLine;
+        if (!client.binary && firstLine != null && firstLine.startsWith(BinaryProtocol.HANDSHAKE + " ")) {
+            request = firstLine.substring(BinaryProtocol.HANDSHAKE.length() + 1);
+            client.write(new SharedMessage(BinaryProtocol.HANDSHAKE).line());
+            client.binary = true;
+        }
+        if (request == null || request.trim().isEmpty()) {
+            return refuse(client, "LOGIN_FAILED Invalid username.");
+        }
+
+        String[] parts = request.split(" ", 3);
+        if (parts.length == 3 && parts[0].equals("REGISTER")) {
+            ServerMetrics.command(ServerMetrics.Command.REGISTER);
+            client.username = parts[1];
+            return credentials.register(parts[1], parts[2]).handle((registered, e) -> {
+                if (e != null) client.send(authError(e));
+                else if (registered) client.send("REGISTER_SUCCESS Registration successful. You can now log in.");
+                else client.send("REGISTER_FAILED Username is invalid or already exists.");
+                return false;
+            });
+        }
+        ServerMetrics.command(ServerMetrics.Command.LOGIN);
+        if (parts.length == 3 && parts[0].equals("LOGIN")) {
+            client.username = parts[1];
+            return credentials.login(parts[1], parts[2]).handle((valid, e) -> {
+                if (e != null) client.send(authError(e));
+                else if (!valid) refuse(client, "LOGIN_FAILED Invalid username or password.");
+                else {
+                    client.registered = true;
+                    accept(client);
+                }
+                return e == null && valid;
+            });
+        }
+
+        // A guest's name is checked as a registered one is, and one a registered user owns is refused
+        if (!CredentialStore.isValidUsername(request)) {
+            return refuse(client, "LOGIN_FAILED Invalid username.");
+        }
+        client.username = request;
+        if (!allowGuests || credentials.isRegistered(request)) {
+            return refuse(client, "LOGIN_FAILED Please log in with a password.");
+        }
+        accept(client);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    private static CompletableFuture<Boolean> refuse(ClientConnection client, String reply) {
+        ServerMetrics.loginsRefused.increment();
+        client.send(reply);
+        return CompletableFuture.completedFuture(false);
+    }
+
+    private static String authError(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        ServerMetrics.loginsRefused.increment();
+        if (cause instanceof RejectedExecutionException) return "SERVER_BUSY Too many logins at once, please try again.";
+        System.err.println("Error checking credentials: " + cause.getMessage());
+        return "LOGIN_FAILED Could not check credentials.";
+    }
+
+    private static void accept(ClientConnection client) {
+        ServerMetrics.connectionsAccepted.increment();
+        clientWriters.add(client);
+        sessions.add(client);
+        System.out.println(client.getUsername() + " has connected.");
+        client.send("LOGIN_SUCCESS Welcome to the chat, " + client.getUsername());
+        if (client.binary && transfers != null) {
+            client.transferToken = transfers.issue(client);
+            client.send("TRANSFER_PORT " + transfers.port() + " " + client.transferToken);
+        }
+        if (client.binary && Compression.enabled()) client.send("COMPRESSION " + Compression.DEFLATE + " " + Compression.MIN_BYTES);
+        deliverMailbox(client);
+        reattach(client);
+    }
+
+    // Puts a returning member back into the groups they were in and tells them, "MAILBOX <from> <end> <group>",
+    // what each holds for them; the client pages through it with HISTORY, so a backlog arrives in batches it asks for
+    private static void deliverMailbox(ClientConnection client) {
+        if (mailboxes == null || !client.registered) return;
+        for (Mailboxes.Entry entry : mailboxes.take(client.getUsername())) {
+            if (entry.stream.startsWith(DIRECT_PREFIX)) {
+                long end = history.end(entry.stream);
+                announceMailbox(client, entry.stream, Math.max(entry.from, end - Mailboxes.MAX_MESSAGES), end);
+                continue;
+            }
+            rejoin(client, entry.stream, entry.from);
+        }
+    }
+
+    // After a restart: the groups a registered user was in when the last snapshot was taken, announced the same
+    // way, with what was sent to them since the restart. Groups the mailbox already put them back into are skipped.
+    private static void reattach(ClientConnection client) {
+        if (snapshot == null || !client.registered) return;
+        for (String code : snapshot.take(client.getUsername())) {
+            if (!client.groupCodes.contains(code)) rejoin(client, code, history == null ? 0 : history.openedEnd(code));
+        }
+    }
+
+    private static void rejoin(ClientConnection client, String groupCode, long from) {
+        if (groups.get(groupCode) == null && homeNode(groupCode) == null) return; // deleted meanwhile
+        withGroup(client, groupCode, group -> {
+            if (groups.join(group.code, client) == null) return;
+            long end = history == null ? from : history.end(group.code);
+            announceMailbox(client, group.code, Math.max(from, end - Mailboxes.MAX_MESSAGES), end);
+        });
+    }
+
+    // The client pages through what it is told of with HISTORY. Those pages are not charged to its budget, as
+    // one login can announce a mailbox for each of dozens of groups, but only while it asks for them in order.
+    private static void announceMailbox(ClientConnection client, String stream, long from, long end) {
+        if (from < end) client.mailboxPages.put(stream, new long[] {from, end});
+        client.send("MAILBOX " + from + " " + end + " " + stream);
+    }
+
+    private static boolean isMailboxPage(ClientConnection client, String stream, long fromOffset) {
+        long[] page = client.mailboxPages.get(stream);
+        return page != null && page[0] == fromOffset;
+    }
+
+    // Where each of a leaving member's groups had got to. Taken before the groups are left, so a message
+    // appended meanwhile is offered again at the next login rather than missed. Called once the session is
+    // out of the registry: groups another session of the same user is still in are skipped, as that session
+    // keeps receiving them, and are held when the last one leaves.
+    private static void keepMailbox(ClientConnection client) {
+        if (mailboxes == null || !client.registered || client.groupCodes.isEmpty()) return;
+        Set<ClientConnection> others = sessions.get(client.getUsername());
+        Map<String, Long> offsets = new HashMap<>();
+        for (String code : client.groupCodes) {
+            if (others.stream().noneMatch(other -> other.groupCodes.contains(code))) offsets.put(code, history.end(code));
+        }
+        if (!offsets.isEmpty()) mailboxes.hold(client.getUsername(), offsets);
+    }
+
+    static void handleCommand(ClientConnection client, String inputLine) {
+        // Uploads are metered by the files bucket and the spool cap instead, HISTORY below
+        if (!inputLine.startsWith("FILE_TRANSFER") && !inputLine.startsWith("HISTORY ") && !admit(client, inputLine.length())) return;
+        if (inputLine.startsWith("GROUP_CREATE")) {
+            String groupCode = groupArgument(client, inputLine);
+            if (groupCode != null) createGroup(client, groupCode);
+        } else if (inputLine.startsWith("GROUP_JOIN")) {
+            String groupCode = groupArgument(client, inputLine);
+            if (groupCode != null) joinGroup(client, groupCode);
+        } else if (inputLine.startsWith("GROUP_LEAVE")) {
+            String groupCode = groupArgument(client, inputLine);
+            if (groupCode != null) leaveGroup(client, groupCode);
+        } else if (inputLine.startsWith("GROUP_DELETE")) {
+            String groupCode = groupArgument(client, inputLine);
+            if (groupCode != null) deleteGroup(client, groupCode);
+        } else if (inputLine.startsWith("DM ")) {
+            // DM <username> <text>
+            String[] parts = inputLine.split(" ", 3);
+            if (parts.length < 3) {
+                client.send("DM_ERROR Usage: DM <username> <text>");
+            } else {
+                sendDirectMessage(client, parts[1], new SharedMessage("[DM " + client.getUsername() + " -> " + parts[1] + "] " + parts[2]));
+            }
+        } else if (inputLine.startsWith("GROUP_MSG")) {
+            // GROUP_MSG <group> <text>
+            String[] parts = inputLine.split(" ", 3);
+            if (parts.length < 3) {
+                client.send("GROUP_ERROR Usage: GROUP_MSG <group> <text>");
+            } else {
+                sendGroupMessage(client, parts[1], new SharedMessage("[Group " + parts[1] + "] " + client.getUsername() + ": " + parts[2]));
+            }
+        } else if (inputLine.startsWith("HISTORY ")) {
+            historyCommand(client, inputLine);
+        } else if (inputLine.startsWith("SEARCH ")) {
+            searchCommand(client, inputLine);
+        } else if (inputLine.startsWith("FILE_TRANSFER")) {
+            ServerMetrics.command(ServerMetrics.Command.FILE_UPLOAD);
+            client.receiveFile(inputLine);
+        } else if (inputLine.startsWith("FILE_SHARE")) {
+            // FILE_SHARE <BROADCAST|GROUP|DIRECT> <target> <fileId> <file name>
+            String[] parts = inputLine.split(" ", 5);
+            if (parts.length < 5) {
+                client.send("FILE_ERROR Invalid file share metadata.");
+            } else {
+                shareFile(client, parts[1], parts[2], parts[3], parts[4]);
+            }
+        } else {
+            broadcastMessage(new SharedMessage(client.getUsername() + ": " + inputLine));
+        }
+    }
+
+    // HISTORY <group or Broadcast> <fromOffset> <limit>
+    private static void historyCommand(ClientConnection client, String inputLine) {
+        String[] parts = inputLine.split(" ", 4);
+        long fromOffset;
+        int limit;
+        try {
+            if (parts.length < 4) throw new NumberFormatException();
+            fromOffset = Long.parseLong(parts[2]);
+            limit = Integer.parseInt(parts[3]);
+        } catch (NumberFormatException e) {
+            client.send("HISTORY_ERROR Usage: HISTORY <group> <fromOffset> <limit>");
+            return;
+        }
+        if (isMailboxPage(client, parts[1], fromOffset) || admit(client, inputLine.length())) {
+            sendHistory(client, parts[1], fromOffset, limit);
+        }
+    }
+
+    // SEARCH <beforeOffset> <limit> <group or Broadcast>\t<query>
+    private static void searchCommand(ClientConnection client, String inputLine) {
+        String[] parts = inputLine.split(" ", 4);
+        int tab = parts.length < 4 ? -1 : parts[3].indexOf('\t');
+        long before;
+        int limit;
+        try {
+            if (tab < 0) throw new NumberFormatException();
+            before = Long.parseLong(parts[1]);
+            limit = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            client.send("SEARCH_ERROR Usage: SEARCH <beforeOffset> <limit> <group>\t<query>");
+            return;
+        }
+        searchHistory(client, parts[3].substring(0, tab), parts[3].substring(tab + 1), before, limit);
+    }
+
+    // "<GROUP_COMMAND> <group>": the group code, or null when the client was sent the usage instead
+    private static String groupArgument(ClientConnection client, String inputLine) {
+        String[] parts = inputLine.split(" ", 2);
+        if (parts.length < 2 || parts[1].isEmpty()) {
+            client.send("GROUP_ERROR Usage: " + parts[0] + " <group>");
+            return null;
+        }
+        return parts[1];
+    }
+
+    // One command of the given size against the connection's message and byte budgets
+    private static boolean admit(ClientConnection client, int bytes) {
+        return RateLimits.take(client, client.limits.messages, 1, ServerMetrics.Limit.MESSAGES, "You are sending too fast, that was not delivered.")
+            && RateLimits.take(client, client.limits.bytes, bytes, ServerMetrics.Limit.BYTES, "You are sending too much data, that was not delivered.");
+    }
+
+    // Binary counterpart of handleCommand; message text is relayed as UTF-8 bytes without decoding
+    static void handleFrame(ClientConnection client, byte opcode, ByteBuffer payload) throws IOException {
+        if (opcode != BinaryProtocol.FILE_BEGIN && opcode != BinaryProtocol.FILE_DATA && opcode != BinaryProtocol.HISTORY && !admit(client, payload.remaining())) return;
+        switch (opcode) {
+            case BinaryProtocol.BROADCAST:
+                broadcastMessage(new SharedMessage(client.getUsername() + ": ", payload));
+                break;
+            case BinaryProtocol.GROUP_CREATE:
+                createGroup(client, BinaryProtocol.remainingText(payload));
+                break;
+            case BinaryProtocol.GROUP_JOIN:
+                joinGroup(client, BinaryProtocol.remainingText(payload));
+                break;
+            case BinaryProtocol.GROUP_LEAVE:
+                leaveGroup(client, BinaryProtocol.remainingText(payload));
+                break;
+            case BinaryProtocol.GROUP_DELETE:
+                deleteGroup(client, BinaryProtocol.remainingText(payload));
+                break;
+            case BinaryProtocol.GROUP_MSG: {
+                String groupCode = BinaryProtocol.getString(payload);
+                sendGroupMessage(client, groupCode, new SharedMessage("[Group " + groupCode + "] " + client.getUsername() + ": ", payload));
+                break;
+            }
+            case BinaryProtocol.DIRECT_MSG: {
+                String recipient = BinaryProtocol.getString(payload);
+                sendDirectMessage(client, recipient, new SharedMessage("[DM " + client.getUsername() + " -> " + recipient + "] ", payload));
+                break;
+            }
+            case BinaryProtocol.FILE_BEGIN: {
+                ServerMetrics.command(ServerMetrics.Command.FILE_UPLOAD);
+                String mode = modeName(payload.get());
+                String target = BinaryProtocol.getString(payload);
+                String fileName = BinaryProtocol.getString(payload);
+                if (client.upload != null) {
+                    // The previous file never got all its data; it gives back its temp file and spool slot
+                    client.upload.abort();
+                    client.upload = null;
+                    client.send("FILE_ERROR Incomplete file received.");
+                }
+                client.upload = FileUpload.start(client, mode, target, fileName, payload.getLong());
+                if (client.upload.isComplete()) finishUpload(client);
+                break;
+            }
+            case BinaryProtocol.FILE_DATA:
+                if (client.upload == null) {
+                    client.send("FILE_ERROR No file transfer in progress.");
+                } else {
+                    client.upload.write(payload);
+                    if (client.upload.isComplete()) finishUpload(client);
+                }
+                break;
+            case BinaryProtocol.HISTORY: {
+                int bytes = payload.remaining();
+                String stream = BinaryProtocol.getString(payload);
+                long fromOffset = payload.getLong();
+                if (isMailboxPage(client, stream, fromOffset) || admit(client, bytes)) sendHistory(client, stream, fromOffset, payload.getInt());
+                break;
+            }
+            case BinaryProtocol.COMPRESS:
+                if (Compression.enabled() && Compression.DEFLATE.equals(BinaryProtocol.remainingText(payload))) client.deflate = true;
+                break;
+            case BinaryProtocol.SEARCH: {
+                String stream = BinaryProtocol.getString(payload);
+                long before = payload.getLong();
+                int limit = payload.getInt();
+                searchHistory(client, stream, BinaryProtocol.getString(payload), before, limit);
+                break;
+            }
+            case BinaryProtocol.FILE_SHARE: {
+                String mode = modeName(payload.get());
+                String target = BinaryProtocol.getString(payload);
+                String fileId = BinaryProtocol.getString(payload);
+                shareFile(client, mode, target, fileId, BinaryProtocol.getString(payload));
+                break;
+            }
+            default:
+                client.send("ERROR Unknown frame type " + opcode);
+        }
+    }
+
+    private static String modeName(byte mode) {
+        return mode == BinaryProtocol.MODE_GROUP ? "GROUP" : mode == BinaryProtocol.MODE_DIRECT ? "DIRECT" : "BROADCAST";
+    }
+
+    private static void finishUpload(ClientConnection client) {
+        FileUpload upload = client.upload;
+        client.upload = null;
+        upload.finish(client);
+    }
+
+    // In a cluster, groups whose home is another node are created, looked up and deleted there; the
+    // client's reply waits for the home's answer, while the client's thread or event loop moves on
+    private static void createGroup(ClientConnection client, String groupCode) {
+        ServerMetrics.command(ServerMetrics.Command.GROUP_CREATE);
+        if (!GroupRegistry.isValidCode(groupCode)) {
+            client.send("GROUP_ERROR Group codes are 1 to " + GroupRegistry.MAX_CODE_LENGTH + " characters, without spaces.");
+            return;
+        }
+        if (groupCode.startsWith(DIRECT_PREFIX)) {
+            // Such a code would name some user's direct message stream, and its members could read that
+            client.send("GROUP_ERROR Group codes cannot start with " + DIRECT_PREFIX + ".");
+            return;
+        }
+        if (groupCode.equalsIgnoreCase(BROADCAST_STREAM)) {
+            // Its messages would go into the public broadcast log, which everyone can read back
+            client.send("GROUP_ERROR " + BROADCAST_STREAM + " is not available as a group code.");
+            return;
+        }
+        String home = homeNode(groupCode);
+        if (home == null) {
+            if (groups.create(groupCode, client)) {
+                client.send("GROUP_CREATED Successfully created group with code: " + groupCode);
+            } else {
+                client.send("GROUP_ERROR Group code already exists.");
+            }
+            return;
+        }
+        cluster.request(home, ClusterNode.CREATE, (ok, detail) -> {
+            if (ok) {
+                groups.replicate(groupCode, client.getUsername());
+                groups.join(groupCode, client);
+                client.send("GROUP_CREATED Successfully created group with code: " + groupCode);
+            } else {
+                client.send("GROUP_ERROR " + detail);
+            }
+        }, groupCode, client.getUsername());
+    }
+
+    private static void joinGroup(ClientConnection client, String groupCode) {
+        ServerMetrics.command(ServerMetrics.Command.GROUP_JOIN);
+        withGroup(client, groupCode, group -> {
+            if (groups.join(groupCode, client) != null) {
+                client.send("GROUP_JOINED Successfully joined group: " + groupCode);
+            } else {
+                client.send("GROUP_ERROR Group does not exist.");
+            }
+        });
+    }
+
+    private static void leaveGroup(ClientConnection client, String groupCode) {
+        ServerMetrics.command(ServerMetrics.Command.GROUP_LEAVE);
+        if (groups.leave(groupCode, client)) {
+            client.send("GROUP_LEFT " + groupCode);
+        } else {
+            client.send("GROUP_ERROR You are not a member of that group.");
+        }
+    }
+
+    // Only the creator may delete a group; every member that was still in it is told
+    private static void deleteGroup(ClientConnection client, String groupCode) {
+        ServerMetrics.command(ServerMetrics.Command.GROUP_DELETE);
+        withGroup(client, groupCode, group -> {
+            String home = homeNode(groupCode);
+            if (!group.owner.equals(client.getUsername())) {
+                client.send("GROUP_ERROR Only the group's creator can delete it.");
+            } else if (home == null) {
+                removeGroup(group, client);
+            } else {
+                // The home's DELETED notice comes in ahead of its reply, and tells this node's members
+                boolean member = group.members.contains(client);
+                cluster.request(home, ClusterNode.DELETE, (ok, detail) -> {
+                    if (!ok) client.send("GROUP_ERROR " + detail);
+                    else if (!member) client.send("GROUP_DELETED " + groupCode);
+                }, groupCode, client.getUsername());
+            }
+        });
+    }
+
+    // Deletes a group homed here, telling its members on this node (and deletedBy) and the nodes that hold a copy
+    private static void removeGroup(GroupRegistry.Group group, ClientConnection deletedBy) {
+        Set<ClientConnection> members = groups.delete(group);
+        if (mailboxes != null) mailboxes.forget(group.code);
+        if (snapshot != null) snapshot.forget(group.code);
+        if (deletedBy != null) members.add(deletedBy);
+        fanOut(ServerMetrics.Delivery.NOTICE, members, new SharedMessage("GROUP_DELETED " + group.code));
+        for (String node : group.nodes) {
+            cluster.send(node, ClusterNode.DELETED, group.code);
+        }
+    }
+
+    // Runs action with the group, once this node has a copy of it; tells the client when there is no such group
+    private static void withGroup(ClientConnection client, String groupCode, java.util.function.Consumer<GroupRegistry.Group> action) {
+        GroupRegistry.Group group = groups.get(groupCode);
+        String home = group == null ? homeNode(groupCode) : null;
+        if (group != null) {
+            action.accept(group);
+        } else if (home == null) {
+            client.send("GROUP_ERROR Group does not exist.");
+        } else {
+            cluster.request(home, ClusterNode.LOOKUP, (ok, detail) -> {
+                if (ok) action.accept(groups.replicate(groupCode, detail));
+                else client.send("GROUP_ERROR " + detail);
+            }, groupCode);
+        }
+    }
+
+    // The node a group lives on, or null when that is this one (always, outside a cluster)
+    private static String homeNode(String groupCode) {
+        return cluster == null || cluster.isHome(groupCode) ? null : cluster.home(groupCode);
+    }
+
+    // Requests and messages from the other nodes of the cluster, on the thread reading that node's link
+    static void handlePeerFrame(String node, byte opcode, ByteBuffer payload) {
+        switch (opcode) {
+            case ClusterNode.BROADCAST:
+                deliverBroadcast(new SharedMessage("", payload));
+                break;
+            case ClusterNode.PUBLISH:
+            case ClusterNode.RELAY: {
+                GroupRegistry.Group group = groups.get(BinaryProtocol.getString(payload));
+                if (group != null) publish(group, new SharedMessage("", payload), node);
+                break;
+            }
+            case ClusterNode.CREATE: {
+                long request = payload.getLong();
+                String groupCode = BinaryProtocol.getString(payload);
+                GroupRegistry.Group group = groups.add(groupCode, BinaryProtocol.remainingText(payload));
+                if (group != null) group.nodes.add(node);
+                cluster.reply(node, request, group != null, group != null ? group.owner : "Group code already exists.");
+                break;
+            }
+            case ClusterNode.LOOKUP: {
+                long request = payload.getLong();
+                GroupRegistry.Group group = groups.get(BinaryProtocol.remainingText(payload));
+                if (group != null) group.nodes.add(node);
+                cluster.reply(node, request, group != null, group != null ? group.owner : "Group does not exist.");
+                break;
+            }
+            case ClusterNode.DELETE: {
+                long request = payload.getLong();
+                GroupRegistry.Group group = groups.get(BinaryProtocol.getString(payload));
+                String username = BinaryProtocol.remainingText(payload);
+                if (group == null) {
+                    cluster.reply(node, request, false, "Group does not exist.");
+                } else if (!group.owner.equals(username)) {
+                    cluster.reply(node, request, false, "Only the group's creator can delete it.");
+                } else {
+                    removeGroup(group, null);
+                    cluster.reply(node, request, true, "");
+                }
+                break;
+            }
+            case ClusterNode.DELETED: {
+                // This node's copy goes; its home already forgot the group
+                GroupRegistry.Group group = groups.get(BinaryProtocol.remainingText(payload));
+                if (group != null) {
+                    fanOut(ServerMetrics.Delivery.NOTICE, groups.delete(group), new SharedMessage("GROUP_DELETED " + group.code));
+                    if (mailboxes != null) mailboxes.forget(group.code);
+                    if (snapshot != null) snapshot.forget(group.code);
+                }
+                break;
+            }
+            default:
+                System.err.println("Unknown cluster frame " + opcode + " from " + node);
+        }
+    }
+
+    private static void sendGroupMessage(ClientConnection client, String groupCode, SharedMessage message) {
+        ServerMetrics.command(ServerMetrics.Command.GROUP_MSG);
+        withGroup(client, groupCode, group -> {
+            // Caps what all members of a busy group send together, on top of each sender's own budget. A constant
+            // reason, so a message that is let through builds no text.
+            if (RateLimits.take(client, group.messages, 1, ServerMetrics.Limit.GROUP, "That group is too busy, that was not delivered.")) {
+                publish(group, message, null);
+            }
+        });
+    }
+
+    // Delivers a group message to the members on this node and passes it on across the cluster: from
+    // where it was sent to the group's home, and from the home to each other node holding a copy.
+    // from is the node it came from, null when a client of this node sent it.
+    private static void publish(GroupRegistry.Group group, SharedMessage message, String from) {
+        record(group.code, message);
+        fanOut(ServerMetrics.Delivery.GROUP_MSG, group.members, message);
+        if (cluster == null) return;
+        String home = homeNode(group.code);
+        if (home == null) {
+            for (String node : group.nodes) {
+                if (!node.equals(from)) cluster.send(node, ClusterNode.RELAY, group.code, message.utf8);
+            }
+        } else if (from == null) {
+            cluster.send(home, ClusterNode.PUBLISH, group.code, message.utf8);
+        }
+    }
+
+    // One lookup in the session registry finds every session of the recipient; the sender's own sessions get
+    // the message too, so a conversation reads the same in each of them. A registered recipient's copy is
+    // appended to their direct stream, and one who is offline finds it in their mailbox at the next login.
+    private static void sendDirectMessage(ClientConnection sender, String recipient, SharedMessage message) {
+        ServerMetrics.command(ServerMetrics.Command.DIRECT_MSG);
+        Set<ClientConnection> targets = sessions.get(recipient);
+        boolean registered = credentials.isRegistered(recipient);
+        if (targets.isEmpty() && (!registered || mailboxes == null)) {
+            sender.send("DM_ERROR " + recipient + " is not online.");
+            return;
+        }
+        if (registered) {
+            String stream = directStream(recipient);
+            long offset = record(stream, message);
+            if (targets.isEmpty()) {
+                if (offset < 0) {
+                    sender.send("DM_ERROR " + recipient + " is offline and the message could not be kept.");
+                    return;
+                }
+                mailboxes.hold(recipient, Collections.singletonMap(stream, offset));
+                sender.send("DM_QUEUED " + recipient + " is offline and will get the message at their next login.");
+            }
+        }
+        List<ClientConnection> recipients = new ArrayList<>(targets);
+        if (!targets.contains(sender)) recipients.addAll(sessions.get(sender.getUsername()));
+        fanOut(ServerMetrics.Delivery.DIRECT, recipients, message);
+    }
+
+    static String directStream(String username) {
+        return DIRECT_PREFIX + username.toLowerCase(Locale.ROOT);
+    }
+
+    // Broadcast is open to everyone, a group to its members, and a direct stream only to the user it belongs to
+    private static boolean canRead(ClientConnection client, String stream) {
+        if (BROADCAST_STREAM.equals(stream)) return true;
+        if (stream.startsWith(DIRECT_PREFIX)) return client.registered && stream.equals(directStream(client.getUsername()));
+        GroupRegistry.Group group = groups.get(stream);
+        return group != null && group.members.contains(client);
+    }
+
+    private static void broadcastMessage(SharedMessage message) {
+        ServerMetrics.command(ServerMetrics.Command.BROADCAST);
+        deliverBroadcast(message);
+        if (cluster != null) cluster.sendAll(ClusterNode.BROADCAST, message.utf8);
+    }
+
+    private static void deliverBroadcast(SharedMessage message) {
+        record(BROADCAST_STREAM, message);
+        fanOut(ServerMetrics.Delivery.BROADCAST, clientWriters, message);
+    }
+
+    // Appended before fan-out, so what a client has seen is in the history; the fsync follows in the next group commit.
+    // Returns the record's offset, or -1 when it could not be written.
+    private static long record(String stream, SharedMessage message) {
+        if (history == null) return -1;
+        try {
+            long offset = history.append(stream, message.utf8);
+            search.changed(stream);
+            return offset;
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error writing message log: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    // One page of a stream: "HISTORY <offset> <timestamp> <message>" per record, then "HISTORY_END <nextOffset> <stream>".
+    // Groups are only readable by their members; record bodies go from the mapped segment into the reply unchanged.
+    private static void sendHistory(ClientConnection client, String stream, long fromOffset, int limit) {
+        ServerMetrics.command(ServerMetrics.Command.HISTORY);
+        if (history == null) {
+            client.send("HISTORY_ERROR History is not available.");
+            return;
+        }
+        if (!canRead(client, stream)) {
+            client.send("HISTORY_ERROR You are not a member of that group.");
+            return;
+        }
+        try {
+            long next = history.read(stream, fromOffset, Math.max(0, Math.min(limit, MAX_HISTORY_PAGE)),
+                (offset, timestamp, payload) -> client.send(new SharedMessage("HISTORY " + offset + " " + timestamp + " ", payload)));
+            long[] page = client.mailboxPages.get(stream);
+            if (page != null && page[0] == fromOffset) {
+                // The next page of the mailbox stays free; the end, or a page that got nowhere, closes it
+                if (next >= page[1] || next <= fromOffset) client.mailboxPages.remove(stream, page);
+                else client.mailboxPages.replace(stream, page, new long[] {next, page[1]});
+            }
+            client.send("HISTORY_END " + next + " " + stream);
+        } catch (IOException e) {
+            client.send("HISTORY_ERROR " + e.getMessage());
+        }
+    }
+
+    // Matches newest first: "SEARCH_RESULT <offset> <timestamp> <message>" each, then "SEARCH_END <nextBefore> <stream>",
+    // where nextBefore continues the search with older messages and -1 means there are none. Members only, as for history.
+    // The search runs on the searchers pool, so an NIO event loop never waits on it.
+    private static void searchHistory(ClientConnection client, String stream, String text, long before, int limit) {
+        ServerMetrics.command(ServerMetrics.Command.SEARCH);
+        if (search == null) {
+            client.send("SEARCH_ERROR Search is not available.");
+            return;
+        }
+        if (!canRead(client, stream)) {
+            client.send("SEARCH_ERROR You are not a member of that group.");
+            return;
+        }
+        SearchIndex.Query query = SearchIndex.parse(text);
+        if (query.terms.isEmpty()) {
+            client.send("SEARCH_ERROR Nothing to search for.");
+            return;
+        }
+        int page = Math.max(1, Math.min(limit, MAX_SEARCH_PAGE));
+        try {
+            searchers.execute(() -> runSearch(client, stream, query, before, page));
+        } catch (RejectedExecutionException e) {
+            client.send("SEARCH_ERROR Too many searches at once, please try again.");
+        }
+    }
+
+    private static void runSearch(ClientConnection client, String stream, SearchIndex.Query query, long before, int limit) {
+        try {
+            long next = search.search(stream, query, before, limit, offset -> {
+                boolean[] found = new boolean[1];
+                // The index may still list records that retention has since removed; those read back as a later offset
+                history.read(stream, offset, 1, (recordOffset, timestamp, payload) -> {
+                    if (recordOffset != offset || !query.matches(StandardCharsets.UTF_8.decode(payload.duplicate()).toString())) return;
+                    client.send(new SharedMessage("SEARCH_RESULT " + offset + " " + timestamp + " ", payload));
+                    found[0] = true;
+                });
+                return found[0];
+            });
+            client.send("SEARCH_END " + next + " " + stream);
+        } catch (IOException e) {
+            client.send("SEARCH_ERROR " + e.getMessage());
+        }
+    }
+
+    // The message is encoded once per wire format; each recipient only queues a reference to it
+    static void fanOut(ServerMetrics.Delivery kind, Iterable<? extends ClientConnection> recipients, SharedMessage message) {
+        int count = 0;
+        for (ClientConnection recipient : recipients) {
+            recipient.send(message);
+            count++;
+        }
+        ServerMetrics.fanOut(kind, count);
+    }
+
+    // A file spooled into the blob store before it is forwarded; fed by either protocol's upload path.
+    // A file that is already stored (sent before, or to another group) only costs the upload.
+    // An upload refused by a limit still reads its bytes, so the stream stays in step, but drops them.
+    static final class FileUpload {
+        final String mode;      // "BROADCAST", "GROUP" or "DIRECT"
+        final String target;    // "Broadcast" or groupCode
+        final String fileName;
+        final long size;
+        private final Path file;          // null when refused
+        private final FileChannel channel;
+        private final Compression.FileDeflater deflater; // null when the file will not be compressed
+        private final MessageDigest digest;               // SHA-256 of the bytes so far, the file's name in the blob store
+        private long remaining;
+        private boolean done;
+
+        private FileUpload(String mode, String target, String fileName, long size, boolean refused) throws IOException {
+            if (size < 0) throw new IOException("Invalid file size: " + size);
+            this.mode = mode;
+            this.target = target;
+            this.fileName = fileName;
+            this.size = size;
+            this.remaining = size;
+            if (refused) {
+                this.file = null;
+                this.channel = null;
+                this.deflater = null;
+                this.digest = null;
+                return;
+            }
+            this.file = blobs.newTempFile("upload_");
+            try {
+                this.channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+            this.deflater = Compression.FileDeflater.start(blobs, size);
+            this.digest = ChunkedTransfer.sha256();
+        }
+
+        // Takes a file from the sender's budget, a spool slot and its size from the store's quota; without any
+        // of them, the sender is told now and the upload only drains
+        static FileUpload start(ClientConnection sender, String mode, String target, String fileName, long size) throws IOException {
+            if (size < 0) throw new IOException("Invalid file size: " + size);
+            if (!RateLimits.take(sender, sender.limits.files, 1, ServerMetrics.Limit.FILES, "You are sending files too fast, that file was not delivered.")) {
+                return new FileUpload(mode, target, fileName, size, true);
+            }
+            if (!RateLimits.acquireSpool()) {
+                sender.send("SERVER_BUSY Too many file transfers in progress, please try again later.");
+                return new FileUpload(mode, target, fileName, size, true);
+            }
+            if (!blobs.reserve(size)) {
+                RateLimits.releaseSpool();
+                sender.send("FILE_ERROR The file does not fit in the server's file store.");
+                return new FileUpload(mode, target, fileName, size, true);
+            }
+            try {
+                return new FileUpload(mode, target, fileName, size, false);
+            } catch (IOException e) {
+                blobs.unreserve(size);
+                RateLimits.releaseSpool();
+                throw e;
+            }
+        }
+
+        // Consumes at most the bytes still expected and returns how many were taken
+        int write(ByteBuffer bytes) throws IOException {
+            ByteBuffer chunk = bytes.slice();
+            if (chunk.remaining() > remaining) chunk.limit((int) remaining);
+            int count = chunk.remaining();
+            if (deflater != null) deflater.write(chunk.duplicate());
+            if (digest != null) digest.update(chunk.duplicate());
+            while (channel != null && chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+            bytes.position(bytes.position() + count);
+            remaining -= count;
+            ServerMetrics.fileBytesIn.add(count);
+            return count;
+        }
+
+        boolean isComplete() {
+            return remaining == 0;
+        }
+
+        void finish(ClientConnection sender) {
+            if (channel == null || done) return;
+            done = true;
+            boolean adopting = false;
+            try {
+                channel.close();
+                String hash = ChunkedTransfer.hex(digest.digest());
+                adopting = true; // adopt() takes over the reservation, even when it fails
+                blobs.adopt(file, hash, size);
+                if (deflater != null) keepDeflated(hash);
+                forwardFile(sender, mode, target, fileName, hash);
+                sender.send("FILE_SUCCESS File transfer completed.");
+            } catch (IOException e) {
+                if (!adopting) blobs.unreserve(size);
+                sender.send("FILE_ERROR " + e.getMessage());
+            } finally {
+                RateLimits.releaseSpool();
+            }
+        }
+
+        // Compression only saves bytes: if it cannot be stored, the file goes out plain
+        private void keepDeflated(String hash) {
+            try {
+                Path deflated = deflater.finish();
+                if (deflated != null) blobs.adoptVariant(deflated, BlobStore.variant(hash, Compression.DEFLATE));
+            } catch (IOException e) {
+                deflater.abort();
+                System.err.println("Could not store compressed file: " + e.getMessage());
+            }
+        }
+
+        void abort() {
+            if (channel == null || done) return;
+            done = true;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+            if (deflater != null) deflater.abort();
+            blobs.unreserve(size);
+            RateLimits.releaseSpool();
+        }
+    }
+
+    // Snapshot of who receives a file, or null (after telling the sender) when the group is unknown or the user is not online
+    private static List<ClientConnection> fileRecipients(ClientConnection sender, String mode, String target) {
+        List<ClientConnection> recipients = new ArrayList<>();
+        if ("BROADCAST".equalsIgnoreCase(mode)) {
+            recipients.addAll(clientWriters);
+        } else if ("GROUP".equalsIgnoreCase(mode)) {
+            GroupRegistry.Group group = groups.get(target);
+            if (group == null) {
+                sender.send("FILE_ERROR Group does not exist.");
+                return null;
+            }
+            recipients.addAll(group.members);
+        } else if ("DIRECT".equalsIgnoreCase(mode)) {
+            // Files are not kept for offline users, so the recipient has to be logged in
+            recipients.addAll(sessions.get(target));
+            if (recipients.isEmpty()) {
+                sender.send("FILE_ERROR " + target + " is not online.");
+                return null;
+            }
+        }
+        return recipients;
+    }
+
+    // A file already uploaded over the transfer channel is only announced here; each recipient
+    // fetches the chunks itself, so nothing but this one line crosses the chat connections
+    private static void shareFile(ClientConnection sender, String mode, String target, String fileId, String fileName) {
+        ServerMetrics.command(ServerMetrics.Command.FILE_SHARE);
+        if (!RateLimits.take(sender, sender.limits.files, 1, ServerMetrics.Limit.FILES, "You are sending files too fast, that file was not delivered.")) return;
+        ChunkedTransfer.Manifest manifest = transfers == null ? null : transfers.completeManifest(fileId);
+        if (manifest == null) {
+            sender.send("FILE_ERROR File is not available on the transfer channel.");
+            return;
+        }
+        List<ClientConnection> recipients = fileRecipients(sender, mode, target);
+        if (recipients == null) return;
+        fanOut(ServerMetrics.Delivery.FILE, recipients, new SharedMessage("FILE_AVAILABLE " + fileId + " " + manifest.size + " " + new File(fileName).getName()));
+        sender.send("FILE_SUCCESS File transfer completed.");
+    }
+
+    // Every recipient streams the same stored blob with FileChannel.transferTo (sendfile) from its
+    // own writer, so recipients are served concurrently and the bytes never pass through the heap.
+    // Recipients that accept compression get the compressed frames stored with the blob, when there are any.
+    static void forwardFile(ClientConnection sender, String mode, String target, String fileName, String hash) throws IOException {
+        List<ClientConnection> recipients = fileRecipients(sender, mode, target);
+        if (recipients == null) return;
+
+        SpooledFile spool = SpooledFile.open(hash, recipients.size() + 1);
+        int deflating = 0;
+        for (ClientConnection recipient : recipients) {
+            if (recipient.deflate) deflating++;
+        }
+        SpooledFile deflated = null;
+        try {
+            if (deflating > 0) deflated = SpooledFile.openIfStored(BlobStore.variant(hash, Compression.DEFLATE), deflating + 1);
+        } catch (IOException e) {
+            System.err.println("Could not open compressed file, sending it plain: " + e.getMessage());
+        }
+        SharedMessage header = new SharedMessage("FILE_RECEIVED " + fileName + " " + spool.size);
+        long relayed = 0;
+        for (ClientConnection recipient : recipients) {
+            if (deflated != null && recipient.deflate) {
+                // Already framed, so sent as is; its reference on the plain copy goes unused
+                recipient.write(new FileRegion(deflated, header.frame(), false));
+                spool.release();
+                relayed += deflated.size;
+            } else {
+                recipient.write(new FileRegion(spool, recipient.binary ? header.frame() : header.line(), recipient.binary));
+                relayed += spool.size;
+            }
+        }
+        ServerMetrics.fanOut(ServerMetrics.Delivery.FILE, recipients.size());
+        ServerMetrics.fileBytesRelayed.add(relayed);
+        spool.release();
+        if (deflated != null) deflated.release();
+    }
+
+    // A stored file shared by all its recipients; its blob stays pinned until the last one has been served
+    static final class SpooledFile {
+        final String hash;
+        final FileChannel channel;
+        final long size;
+        private final AtomicInteger references;
+
+        private SpooledFile(String hash, FileChannel channel, int references) throws IOException {
+            this.hash = hash;
+            this.channel = channel;
+            this.size = channel.size();
+            this.references = new AtomicInteger(references);
+        }
+
+        static SpooledFile open(String hash, int references) throws IOException {
+            SpooledFile spool = openIfStored(hash, references);
+            if (spool == null) throw new IOException("File is no longer stored");
+            return spool;
+        }
+
+        // null when the blob is not stored
+        static SpooledFile openIfStored(String hash, int references) throws IOException {
+            Path blob = blobs.acquire(hash);
+            if (blob == null) return null;
+            try {
+                SpooledFile spool = new SpooledFile(hash, FileChannel.open(blob, StandardOpenOption.READ), references);
+                RateLimits.holdSpool();
+                return spool;
+            } catch (IOException e) {
+                blobs.release(hash);
+                throw e;
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                blobs.release(hash);
+                RateLimits.releaseSpool();
+            }
+        }
+    }
+
+    // One recipient's copy of a spooled file: the FILE_RECEIVED header, then the raw bytes (text
+    // protocol) or the bytes split into FILE_DATA frames (binary protocol). Positional transferTo
+    // lets any number of regions read the same channel at once.
+    static final class FileRegion implements Closeable {
+        private final SpooledFile spool;
+        private final ByteBuffer header;
+        private final boolean framed;
+        private final ByteBuffer chunkHeader = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE).limit(0);
+        private long position;
+        private long chunkRemaining;
+        private boolean released;
+
+        FileRegion(SpooledFile spool, ByteBuffer header, boolean framed) {
+            this.spool = spool;
+            this.header = header.duplicate();
+            this.framed = framed;
+        }
+
+        // Writes as much as the channel accepts; true once the whole region has been sent
+        boolean writeTo(SocketChannel target) throws IOException {
+            while (true) {
+                if (header.hasRemaining()) {
+                    target.write(header);
+                    if (header.hasRemaining()) return false;
+                } else if (chunkHeader.hasRemaining()) {
+                    target.write(chunkHeader);
+                    if (chunkHeader.hasRemaining()) return false;
+                } else if (chunkRemaining == 0) {
+                    if (position == spool.size) return true;
+                    chunkRemaining = framed ? Math.min(BinaryProtocol.MAX_PAYLOAD, spool.size - position) : spool.size - position;
+                    if (framed) {
+                        chunkHeader.clear();
+                        chunkHeader.put(BinaryProtocol.FILE_DATA).putInt((int) chunkRemaining).flip();
+                    }
+                } else {
+                    long sent = spool.channel.transferTo(position, chunkRemaining, target);
+                    if (sent == 0) {
+                        if (target.isBlocking()) throw new EOFException("Spooled file is shorter than announced");
+                        return false;
+                    }
+                    position += sent;
+                    chunkRemaining -= sent;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                spool.release();
+            }
+        }
+    }
+
+    static void disconnect(ClientConnection client) {
+        client.disconnected = true;
+        clientWriters.remove(client);
+        sessions.remove(client);
+        if (transfers != null) transfers.revoke(client.transferToken);
+        keepMailbox(client);
+        groups.leaveAll(client);
+        System.out.println(client.getUsername() + " has disconnected.");
+    }
+
+    // Blocking handler run by the thread or virtual engine. Reads happen on this task; writes are
+    // drained from the outbound queue by a task on the same executor that is only scheduled while
+    // something is queued, so fan-out never blocks on this client's socket and an idle client holds
+    // one thread, not two. Socket channels use java.util.concurrent locks on JDK 21+, so blocking
+    // reads and writes park a virtual thread without pinning it.
+    static class ClientHandler extends ClientConnection implements Runnable {
+        private SocketChannel clientChannel;
+        private Socket clientSocket;
+        private InputStream in;
+
+        private final Executor executor;
+        private final OutboundQueue<Object> outbound = new OutboundQueue<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicBoolean draining = new AtomicBoolean(); // a drain task is scheduled or running
+        private final ByteBuffer[] batch = new ByteBuffer[OutboundQueue.MAX_BATCH]; // only used by the drain task
+        private volatile boolean writerDone;
+
+        public ClientHandler(SocketChannel channel, Executor executor) throws IOException {
+            this.clientChannel = channel;
+            this.clientSocket = channel.socket();
+            this.executor = executor;
+            this.in = new BufferedInputStream(clientSocket.getInputStream(), BUFFER_SIZE);
+        }
+
+        @Override
+        void enqueue(Object item) {
+            if (!outbound.offer(item, true)) {
+                System.err.println(username + " is not keeping up, disconnecting.");
+                OutboundQueue.discard(item);
+                closeSocket();
+                close();
+            } else if (writerDone) {
+                discardQueued();
+            } else {
+                scheduleDrain();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                String firstLine = BinaryProtocol.readLine(in);
+                if (handshake(this, firstLine)) firstLine = BinaryProtocol.readLine(in);
+                if (!login(this, firstLine).join()) {
+                    close();
+                    return;
+                }
+
+                if (binary) {
+                    DataInputStream frames = new DataInputStream(in);
+                    BinaryProtocol.FrameReader reader = new BinaryProtocol.FrameReader();
+                    while (reader.read(frames)) {
+                        handleFrame(this, reader.opcode(), reader.payload());
+                    }
+                } else {
+                    String inputLine;
+                    while ((inputLine = BinaryProtocol.readLine(in)) != null) {
+                        handleCommand(this, inputLine);
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed.get()) System.err.println("Communication error with client: " + e.getMessage());
+            } finally {
+                if (upload != null) upload.abort();
+                close();
+            }
+        }
+
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) executor.execute(this::drain);
+        }
+
+        // Everything already queued goes out in one gathering write, so a burst costs few syscalls;
+        // file regions are streamed in between with transferTo. Once the queue is empty the task ends,
+        // unless the connection is closed, in which case it closes the socket.
+        private void drain() {
+            try {
+                while (true) {
+                    writeQueued(outbound.poll(), batch);
+                    if (closed.get()) break;
+                    draining.set(false);
+                    // Something queued, or a close, after the queue was found empty is handled here if no new task took it
+                    if ((outbound.isEmpty() && !closed.get()) || !draining.compareAndSet(false, true)) return;
+                }
+            } catch (IOException e) {
+                close();
+            }
+            closeSocket();
+            writerDone = true;
+            discardQueued();
+        }
+
+        private void writeQueued(Object item, ByteBuffer[] batch) throws IOException {
+            while (item != null) {
+                if (item instanceof FileRegion) {
+                    try (FileRegion region = (FileRegion) item) {
+                        region.writeTo(clientChannel);
+                    }
+                    item = outbound.poll();
+                    continue;
+                }
+                int count = 0;
+                long deadline = System.nanoTime() + OutboundQueue.MAX_BATCH_LATENCY_NANOS;
+                while (item instanceof ByteBuffer && count < batch.length) {
+                    batch[count++] = (ByteBuffer) item;
+                    item = outbound.poll();
+                    if (item == null && count < batch.length) item = awaitMore(deadline);
+                }
+                writeBatch(batch, count);
+            }
+        }
+
+        // Waits out the rest of the batch latency for another message; null when none came
+        private Object awaitMore(long deadline) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return null;
+            try {
+                return outbound.poll(remaining);
+            } catch (InterruptedException e) {
+                // Not restored: a pending interrupt would close the channel under the write that follows
+                return null;
+            }
+        }
+
+        private void writeBatch(ByteBuffer[] batch, int count) throws IOException {
+            long remaining = 0;
+            for (int i = 0; i < count; i++) {
+                remaining += batch[i].remaining();
+            }
+            long start = System.nanoTime();
+            while (remaining > 0) {
+                remaining -= clientChannel.write(batch, 0, count);
+            }
+            ServerMetrics.socketWriteNanos.record(System.nanoTime() - start);
+            Arrays.fill(batch, 0, count, null);
+        }
+
+        @Override
+        int queued() {
+            return outbound.size();
+        }
+
+        private void discardQueued() {
+            Object item;
+            while ((item = outbound.poll()) != null) {
+                OutboundQueue.discard(item);
+            }
+        }
+
+        @Override
+        void receiveFile(String metadata) {
+            FileUpload upload = null;
+            try {
+                String[] parts = metadata.split(" ", 4);
+                if (parts.length < 4) {
+                    send("FILE_ERROR Invalid file transfer metadata.");
+                    return;
+                }
+
+                long fileSize = Long.parseLong(BinaryProtocol.readLine(in).trim());
+                upload = FileUpload.start(this, parts[1], parts[2], parts[3], fileSize);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (!upload.isComplete()) {
+                    int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, upload.remaining));
+                    if (bytesRead == -1) break;
+                    upload.write(ByteBuffer.wrap(buffer, 0, bytesRead));
+                }
+
+                if (upload.isComplete()) {
+                    upload.finish(this);
+                } else {
+                    upload.abort();
+                    send("FILE_ERROR Incomplete file received.");
+                }
+            } catch (Exception e) {
+                if (upload != null) upload.abort();
+                send("FILE_ERROR " + e.getMessage());
+            }
+        }
+
+        // The drain task delivers what is already queued and then closes the socket
+        @Override
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            RateLimits.releaseConnection();
+            disconnect(this);
+            scheduleDrain();
+        }
+
+        private void closeSocket() {
+            try {
+                if (clientSocket != null) clientSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing connection: " + e.getMessage());
+            }
+        }
+    }
+}
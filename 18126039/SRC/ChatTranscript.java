@@ -0,0 +1,132 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import javax.swing.AbstractListModel;
+
+// Everything shown in the client's chat view, as a list model for JLists that only render the rows in
+// view. The newest lines sit in a fixed ring; lines pushed out of it are spilled to a temp file with a
+// fixed-width offset index beside it, so a long session costs disk rather than heap, and an old row is
+// one positioned read away. Only touched on the event dispatch thread.
+class ChatTranscript extends AbstractListModel<String> implements Closeable {
+    private static final long serialVersionUID = 1L;
+
+    private final String[] ring;
+    private int total;      // lines ever added; rows 0 .. spilled-1 are on disk, the rest in the ring
+    private int spilled;
+    private final FileChannel data;
+    private final FileChannel index;
+    private final ByteBuffer offset = ByteBuffer.allocate(16);
+    private long dataSize;
+    // Rows removed by the user, ascending; few, since they are picked by hand
+    private final List<Integer> deleted = new ArrayList<>();
+
+    ChatTranscript(int capacity) throws IOException {
+        ring = new String[capacity];
+        Path directory = Files.createTempDirectory("chat-transcript");
+        directory.toFile().deleteOnExit();
+        data = open(directory.resolve("lines.dat"));
+        index = open(directory.resolve("lines.idx"));
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        file.toFile().deleteOnExit();
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Appends a batch of lines and fires one interval event for all of them
+    void addAll(List<String> lines) {
+        if (lines.isEmpty()) return;
+        int first = getSize();
+        for (String line : lines) {
+            if (total - spilled == ring.length) spillOldest();
+            ring[total % ring.length] = line;
+            total++;
+        }
+        fireIntervalAdded(this, first, getSize() - 1);
+    }
+
+    private void spillOldest() {
+        String line = ring[spilled % ring.length];
+        ring[spilled % ring.length] = null;
+        try {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(line);
+            int length = bytes.remaining();
+            while (bytes.hasRemaining()) {
+                data.write(bytes, dataSize + bytes.position());
+            }
+            offset.clear();
+            offset.putLong(0, dataSize);
+            offset.limit(8);
+            while (offset.hasRemaining()) {
+                index.write(offset, (long) spilled * 8 + offset.position());
+            }
+            dataSize += length;
+        } catch (IOException e) {
+            System.err.println("Error spilling chat history: " + e.getMessage());
+        }
+        spilled++;
+    }
+
+    @Override
+    public int getSize() {
+        return total - deleted.size();
+    }
+
+    @Override
+    public String getElementAt(int visible) {
+        int row = toRow(visible);
+        return row >= spilled ? ring[row % ring.length] : readSpilled(row);
+    }
+
+    private String readSpilled(int row) {
+        try {
+            // Start of this line and of the next; the last spilled line ends where the data does
+            offset.clear();
+            offset.limit(row + 1 < spilled ? 16 : 8);
+            while (offset.hasRemaining()) {
+                if (index.read(offset, (long) row * 8 + offset.position()) < 0) throw new EOFException();
+            }
+            long start = offset.getLong(0);
+            long end = row + 1 < spilled ? offset.getLong(8) : dataSize;
+            ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+            while (bytes.hasRemaining()) {
+                if (data.read(bytes, start + bytes.position()) < 0) throw new EOFException();
+            }
+            bytes.flip();
+            return StandardCharsets.UTF_8.decode(bytes).toString();
+        } catch (IOException e) {
+            return "(history unavailable: " + e.getMessage() + ")";
+        }
+    }
+
+    // Visible index to row, stepping over the deleted rows at or before it
+    private int toRow(int visible) {
+        int row = visible;
+        for (int removed : deleted) {
+            if (removed > row) break;
+            row++;
+        }
+        return row;
+    }
+
+    // Removes the given visible indices from every view of the transcript; last first, so the
+    // indices still to go keep their meaning
+    void delete(int[] visibleIndices) {
+        int[] sorted = visibleIndices.clone();
+        Arrays.sort(sorted);
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            int row = toRow(sorted[i]);
+            deleted.add(-Collections.binarySearch(deleted, row) - 1, row);
+            fireIntervalRemoved(this, sorted[i], sorted[i]);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+        index.close();
+    }
+}
@@ -0,0 +1,290 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+// Client side of the chunked transfer channel (see TransferServer for the wire commands). A file is
+// split into fixed-size chunks named by their SHA-256; the file id is the SHA-256 of that list, so it
+// only depends on content. Chunks move over several connections at once, and anything already
+// acknowledged (upload) or already verified on disk (download) is skipped, which is how an
+// interrupted transfer resumes.
+class ChunkedTransfer {
+    static final int CHUNK_SIZE = 1 << 20;
+    static final int PARALLELISM = 4;
+    private static final int ATTEMPTS = 3;
+
+    // The ordered chunk hashes of one file
+    static final class Manifest {
+        final String fileId;
+        final long size;
+        final int chunkSize;
+        final List<String> chunks;
+
+        Manifest(long size, int chunkSize, List<String> chunks) {
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunks = Collections.unmodifiableList(new ArrayList<>(chunks));
+            this.fileId = idOf(size, chunkSize, chunks);
+        }
+
+        static String idOf(long size, int chunkSize, List<String> chunks) {
+            MessageDigest digest = sha256();
+            digest.update((size + " " + chunkSize + "\n").getBytes(StandardCharsets.US_ASCII));
+            for (String chunk : chunks) {
+                digest.update(chunk.getBytes(StandardCharsets.US_ASCII));
+            }
+            return hex(digest.digest());
+        }
+
+        static int chunkCount(long size, int chunkSize) {
+            return (int) ((size + chunkSize - 1) / chunkSize);
+        }
+
+        long offset(int index) {
+            return (long) index * chunkSize;
+        }
+
+        int length(int index) {
+            return (int) Math.min(chunkSize, size - offset(index));
+        }
+
+        // One pass over the file, hashing each chunk
+        static Manifest of(File file, int chunkSize) throws IOException {
+            List<String> chunks = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+                for (long offset = 0; offset < size; offset += chunkSize) {
+                    readFully(channel, buffer, offset, (int) Math.min(chunkSize, size - offset));
+                    chunks.add(hash(buffer));
+                }
+                return new Manifest(size, chunkSize, chunks);
+            }
+        }
+    }
+
+    // Uploads whatever chunks the server is missing and returns the manifest to share in the chat
+    static Manifest upload(String host, int port, String token, File file, LongConsumer progress) throws IOException {
+        Manifest manifest = Manifest.of(file, CHUNK_SIZE);
+        List<Integer> missing = new ArrayList<>();
+        try (Connection control = new Connection(host, port, token)) {
+            control.writeLine("OFFER " + manifest.fileId + " " + manifest.size + " " + manifest.chunkSize);
+            for (String chunk : manifest.chunks) {
+                control.writeLine(chunk);
+            }
+            control.flush();
+            String reply = control.readLine();
+            if (reply == null || !reply.startsWith("MISSING ")) throw new IOException("Upload refused: " + reply);
+            int count = Integer.parseInt(reply.substring("MISSING ".length()));
+            for (int i = 0; i < count; i++) {
+                missing.add(Integer.parseInt(control.readLine()));
+            }
+        }
+
+        AtomicLong done = new AtomicLong(manifest.size);
+        for (int index : missing) {
+            done.addAndGet(-manifest.length(index));
+        }
+        progress.accept(done.get());
+
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            runParallel(host, port, token, manifest.chunkSize, missing, (connection, buffer, index) -> {
+                int length = manifest.length(index);
+                readFully(source, buffer, manifest.offset(index), length);
+                connection.writeLine("PUT " + manifest.chunks.get(index) + " " + length);
+                connection.out.write(buffer.array(), 0, length);
+                connection.flush();
+                String reply = connection.readLine();
+                if (reply == null || !reply.startsWith("ACK ")) throw new IOException("Chunk " + index + " rejected: " + reply);
+                progress.accept(done.addAndGet(length));
+            });
+        }
+        return manifest;
+    }
+
+    // Downloads a shared file into target, reusing any verified chunks left in target.part by an earlier attempt
+    static void download(String host, int port, String token, String fileId, File target, LongConsumer progress) throws IOException {
+        Manifest manifest;
+        try (Connection control = new Connection(host, port, token)) {
+            control.writeLine("MANIFEST " + fileId);
+            control.flush();
+            String reply = control.readLine();
+            if (reply == null || !reply.startsWith("MANIFEST ")) throw new IOException("Unknown file: " + reply);
+            String[] parts = reply.split(" ");
+            long size = Long.parseLong(parts[1]);
+            int chunkSize = Integer.parseInt(parts[2]);
+            // Buffers are sized from it, so a manifest outside the server's own limits is refused
+            if (size < 0 || chunkSize <= 0 || chunkSize > TransferServer.MAX_CHUNK_SIZE || size > (long) TransferServer.MAX_CHUNKS * chunkSize) {
+                throw new IOException("Invalid manifest: " + reply);
+            }
+            List<String> chunks = new ArrayList<>();
+            for (int i = Manifest.chunkCount(size, chunkSize); i > 0; i--) {
+                chunks.add(control.readLine());
+            }
+            manifest = new Manifest(size, chunkSize, chunks);
+            if (!manifest.fileId.equals(fileId)) throw new IOException("Manifest does not match file id");
+        }
+
+        File part = new File(target.getPath() + ".part");
+        try (FileChannel output = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            List<Integer> missing = new ArrayList<>();
+            long done = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(manifest.chunkSize);
+            long existing = output.size();
+            for (int index = 0; index < manifest.chunks.size(); index++) {
+                int length = manifest.length(index);
+                if (manifest.offset(index) + length <= existing) {
+                    readFully(output, buffer, manifest.offset(index), length);
+                    if (hash(buffer).equals(manifest.chunks.get(index))) {
+                        done += length;
+                        continue;
+                    }
+                }
+                missing.add(index);
+            }
+            AtomicLong received = new AtomicLong(done);
+            progress.accept(received.get());
+
+            runParallel(host, port, token, manifest.chunkSize, missing, (connection, chunkBuffer, index) -> {
+                String chunk = manifest.chunks.get(index);
+                connection.writeLine("GET " + chunk);
+                connection.flush();
+                String reply = connection.readLine();
+                if (reply == null || !reply.startsWith("DATA ")) throw new IOException("Chunk " + index + " unavailable: " + reply);
+                int length = Integer.parseInt(reply.substring("DATA ".length()));
+                if (length != manifest.length(index)) throw new IOException("Chunk " + index + " has the wrong length");
+                connection.in.readFully(chunkBuffer.array(), 0, length);
+                chunkBuffer.clear().limit(length);
+                if (!hash(chunkBuffer).equals(chunk)) throw new IOException("Chunk " + index + " failed verification");
+                chunkBuffer.rewind();
+                long offset = manifest.offset(index);
+                while (chunkBuffer.hasRemaining()) {
+                    offset += output.write(chunkBuffer, offset);
+                }
+                progress.accept(received.addAndGet(length));
+            });
+            output.truncate(manifest.size);
+        }
+        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    interface ChunkTask {
+        void run(Connection connection, ByteBuffer buffer, int index) throws IOException;
+    }
+
+    // Up to PARALLELISM workers, each with its own connection and a buffer of one chunk, pull chunk indices from
+    // a shared queue. A worker whose connection fails puts its chunk back and reconnects a few times before giving up.
+    private static void runParallel(String host, int port, String token, int chunkSize, List<Integer> indices, ChunkTask task) throws IOException {
+        if (indices.isEmpty()) return;
+        Queue<Integer> pending = new ConcurrentLinkedQueue<>(indices);
+        int workers = Math.min(PARALLELISM, indices.size());
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            futures.add(pool.submit(() -> {
+                ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+                for (int attempt = 1; !pending.isEmpty(); attempt++) {
+                    try (Connection connection = new Connection(host, port, token)) {
+                        Integer index;
+                        while ((index = pending.poll()) != null) {
+                            try {
+                                task.run(connection, buffer, index);
+                            } catch (IOException e) {
+                                pending.add(index);
+                                throw e;
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (attempt >= ATTEMPTS) throw e;
+                    }
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    static final class Connection implements Closeable {
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+
+        // The token goes out with the first command; a refused one comes back as that command's ERROR
+        Connection(String host, int port, String token) throws IOException {
+            socket = new Socket(host, port);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+            writeLine("TOKEN " + token);
+        }
+
+        void writeLine(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        String readLine() throws IOException {
+            return BinaryProtocol.readLine(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long offset, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) throw new EOFException("File changed while reading");
+        }
+        buffer.flip();
+    }
+
+    static String hash(ByteBuffer bytes) {
+        MessageDigest digest = sha256();
+        digest.update(bytes.duplicate());
+        return hex(digest.digest());
+    }
+
+    static boolean isHash(String value) {
+        return value != null && value.matches("[0-9a-f]{64}");
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            text.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return text.toString();
+    }
+}
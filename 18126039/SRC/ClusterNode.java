@@ -0,0 +1,365 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Joins this server to the other nodes of a cluster, so clients on any node share one chat space.
+// Every node dials each of --peers and only sends on the links it dialled; it receives on the links the
+// peers dialled, so two nodes are joined by two one-way TCP connections, redialled every second when
+// down. A group code hashes onto a ring of the node names (host:cluster port, as written in --peers);
+// the node it lands on is the group's home, which decides creates and deletes and relays each group
+// message once to every node that holds a member. Broadcasts go once to every peer. Frames have
+// BinaryProtocol's layout: opcode, length, payload, where every field but the last has a 2-byte length.
+// The cluster port listens on --cluster-host only, and takes links only from the addresses of --peers
+// that open with the shared --cluster-secret, one link per peer. Links are not encrypted, so the cluster
+// host should be on a private network.
+//   --cluster-port=<0 disables> --cluster-host=localhost --peers=<host:port,...> --cluster-secret=<required>
+class ClusterNode implements Closeable {
+    static final byte HELLO = 1;      // [node name][secret], the first frame on every link
+    static final byte BROADCAST = 2;  // message
+    static final byte PUBLISH = 3;    // [group][message], to the group's home
+    static final byte RELAY = 4;      // [group][message], from the home to the nodes holding members
+    static final byte CREATE = 5;     // [request:8][group][owner]
+    static final byte LOOKUP = 6;     // [request:8][group], also tells the home to relay the group here
+    static final byte DELETE = 7;     // [request:8][group][username]
+    static final byte REPLY = 8;      // [request:8][ok:1][owner, or why not]
+    static final byte DELETED = 9;    // group
+
+    private static final int VIRTUAL_NODES = 64;
+    private static final int LINK_CAPACITY = 65536;
+    private static final long REDIAL_MILLIS = 1000;
+    private static final int HELLO_MILLIS = 5000;
+
+    final String name;
+    private final ServerSocketChannel server;
+    private final Receiver receiver;
+    private final byte[] secret;
+    private final Semaphore readers;                                               // caps inbound links, handshakes included
+    private final Map<String, SocketChannel> inbound = new ConcurrentHashMap<>(); // the link each peer is received on
+    private final Map<String, Link> links = new LinkedHashMap<>(); // outgoing, by peer name; fixed after the constructor
+    private final TreeMap<Integer, String> ring = new TreeMap<>();
+    private final Map<Long, Request> requests = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequest = new AtomicLong();
+    private volatile boolean closed;
+
+    // Everything but replies, on the thread reading that peer's link; the payload is only valid during the call
+    interface Receiver {
+        void receive(String node, byte opcode, ByteBuffer payload);
+    }
+
+    interface Reply {
+        void accept(boolean ok, String detail);
+    }
+
+    private static final class Request {
+        final String node;
+        final Reply reply;
+
+        Request(String node, Reply reply) {
+            this.node = node;
+            this.reply = reply;
+        }
+    }
+
+    ClusterNode(String host, int port, List<String> peers, String secret, Receiver receiver) throws IOException {
+        if (secret.isEmpty()) throw new IOException("--cluster-secret is required");
+        this.name = host + ":" + port;
+        this.receiver = receiver;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        addToRing(name);
+        for (String peer : peers) {
+            if (peer.isEmpty() || peer.equals(name)) continue;
+            links.put(peer, new Link(peer));
+            addToRing(peer);
+        }
+        // Room for each peer's link and for the one that replaces it when the peer redials
+        readers = new Semaphore(2 * links.size());
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(host, port));
+    }
+
+    void start() {
+        daemon(this::acceptLoop, "cluster-accept").start();
+        for (Link link : links.values()) {
+            daemon(link::run, "cluster-link-" + link.peer).start();
+        }
+        System.out.println("Cluster node " + name + ", peers " + links.keySet());
+    }
+
+    private static Thread daemon(Runnable task, String threadName) {
+        Thread thread = new Thread(task, threadName);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // Consistent hashing: each node owns the arcs ending at its points, so a node that joins or leaves
+    // the configuration only moves the groups on its own arcs
+    private void addToRing(String node) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    private static int hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getInt();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    String home(String groupCode) {
+        Map.Entry<Integer, String> point = ring.ceilingEntry(hash(groupCode));
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    boolean isHome(String groupCode) {
+        return home(groupCode).equals(name);
+    }
+
+    int connectedPeers() {
+        int connected = 0;
+        for (Link link : links.values()) {
+            if (link.channel != null) connected++;
+        }
+        return connected;
+    }
+
+    // Fire and forget; false when the peer is not connected or its link is backed up, and the frame was not sent
+    boolean send(String node, byte opcode, String... fields) {
+        return send(node, frame(opcode, -1, utf8(fields)));
+    }
+
+    // Chat messages go as the UTF-8 bytes the server already holds
+    boolean send(String node, byte opcode, String groupCode, byte[] message) {
+        return send(node, frame(opcode, -1, groupCode.getBytes(StandardCharsets.UTF_8), message));
+    }
+
+    private boolean send(String node, ByteBuffer frame) {
+        Link link = links.get(node);
+        return link != null && link.offer(frame);
+    }
+
+    void sendAll(byte opcode, byte[] message) {
+        ByteBuffer frame = frame(opcode, -1, message);
+        for (Link link : links.values()) {
+            link.offer(frame.duplicate());
+        }
+    }
+
+    // The reply arrives on the peer's link thread; it fails at once when the peer cannot be reached,
+    // and later if the link drops before the peer answered
+    void request(String node, byte opcode, Reply reply, String... fields) {
+        long id = nextRequest.incrementAndGet();
+        requests.put(id, new Request(node, reply));
+        Link link = links.get(node);
+        if ((link == null || !link.offer(frame(opcode, id, utf8(fields)))) && requests.remove(id) != null) {
+            reply.accept(false, "Group service is unavailable, try again later.");
+        }
+    }
+
+    void reply(String node, long id, boolean ok, String detail) {
+        byte[] text = detail.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(8 + 1 + text.length);
+        payload.putLong(id).put((byte) (ok ? 1 : 0)).put(text);
+        Link link = links.get(node);
+        if (link != null) link.offer(BinaryProtocol.frame(REPLY, payload.array(), 0, payload.capacity()));
+    }
+
+    private static byte[][] utf8(String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return encoded;
+    }
+
+    private static ByteBuffer frame(byte opcode, long request, byte[]... fields) {
+        int length = request >= 0 ? 8 : 0;
+        for (int i = 0; i < fields.length; i++) {
+            length += (i < fields.length - 1 ? 2 : 0) + fields[i].length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        if (request >= 0) payload.putLong(request);
+        for (int i = 0; i < fields.length; i++) {
+            if (i < fields.length - 1) payload.putShort((short) fields[i].length);
+            payload.put(fields[i]);
+        }
+        return BinaryProtocol.frame(opcode, payload.array(), 0, length);
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                if (!readers.tryAcquire()) {
+                    System.err.println("Too many cluster links, refusing " + channel.getRemoteAddress());
+                    channel.close();
+                    continue;
+                }
+                daemon(() -> {
+                    try {
+                        readLoop(channel);
+                    } finally {
+                        readers.release();
+                    }
+                }, "cluster-reader").start();
+            } catch (IOException e) {
+                if (!closed) System.err.println("Cluster accept error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void readLoop(SocketChannel channel) {
+        String node = null;
+        try (SocketChannel open = channel;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(open.socket().getInputStream(), ChatServer.BUFFER_SIZE))) {
+            BinaryProtocol.FrameReader frames = new BinaryProtocol.FrameReader();
+            open.socket().setSoTimeout(HELLO_MILLIS);
+            if (!frames.read(in) || frames.opcode() != HELLO) return;
+            ByteBuffer hello = frames.payload();
+            String peer = BinaryProtocol.getString(hello);
+            byte[] offered = new byte[hello.remaining()];
+            hello.get(offered);
+            if (!isPeer(peer, open) || !MessageDigest.isEqual(offered, secret)) {
+                System.err.println("Refused cluster link from " + open.getRemoteAddress() + ": not a configured peer, or the wrong secret");
+                return;
+            }
+            open.socket().setSoTimeout(0); // an idle link sends nothing
+            node = peer;
+            SocketChannel previous = inbound.put(node, open);
+            if (previous != null) previous.close(); // the peer redialled, so its old link is dead
+            while (frames.read(in)) {
+                ServerMetrics.clusterFramesIn.increment();
+                if (frames.opcode() == REPLY) {
+                    ByteBuffer payload = frames.payload();
+                    Request request = requests.remove(payload.getLong());
+                    boolean ok = payload.get() == 1;
+                    if (request != null) request.reply.accept(ok, BinaryProtocol.remainingText(payload));
+                } else {
+                    receiver.receive(node, frames.opcode(), frames.payload());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Cluster link from " + node + " failed: " + e.getMessage());
+        } finally {
+            if (node != null) inbound.remove(node, channel);
+        }
+    }
+
+    // One of --peers, connecting from an address its host name resolves to
+    private boolean isPeer(String peer, SocketChannel channel) throws IOException {
+        if (!links.containsKey(peer)) return false;
+        InetAddress remote = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        return Arrays.asList(InetAddress.getAllByName(peer.substring(0, peer.lastIndexOf(':')))).contains(remote);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for (SocketChannel channel : inbound.values()) {
+            channel.close();
+        }
+        for (Link link : links.values()) {
+            link.drop();
+        }
+    }
+
+    // The outgoing half of the link to one peer: a bounded queue and the thread that dials and writes
+    private final class Link {
+        final String peer;
+        private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(LINK_CAPACITY);
+        volatile SocketChannel channel; // null while down
+
+        Link(String peer) {
+            this.peer = peer;
+        }
+
+        boolean offer(ByteBuffer frame) {
+            if (channel == null) return false;
+            if (queue.offer(frame)) {
+                ServerMetrics.clusterFramesOut.increment();
+                return true;
+            }
+            // A peer this far behind is treated as down; it catches up from nothing once redialled
+            System.err.println("Cluster link to " + peer + " is backed up, dropping it.");
+            drop();
+            return false;
+        }
+
+        void run() {
+            int colon = peer.lastIndexOf(':');
+            InetSocketAddress address = new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+            ByteBuffer[] batch = new ByteBuffer[OutboundQueue.MAX_BATCH];
+            while (!closed) {
+                try (SocketChannel open = SocketChannel.open(address)) {
+                    open.socket().setTcpNoDelay(true);
+                    ByteBuffer hello = frame(HELLO, -1, name.getBytes(StandardCharsets.UTF_8), secret);
+                    while (hello.hasRemaining()) {
+                        open.write(hello);
+                    }
+                    channel = open;
+                    System.out.println("Cluster link to " + peer + " is up.");
+                    while (channel == open) {
+                        // Everything queued goes out in one gathering write, as on client connections
+                        ByteBuffer first = queue.poll(REDIAL_MILLIS, TimeUnit.MILLISECONDS);
+                        if (first == null) continue;
+                        batch[0] = first;
+                        int count = 1;
+                        ByteBuffer next;
+                        while (count < batch.length && (next = queue.poll()) != null) {
+                            batch[count++] = next;
+                        }
+                        long remaining = 0;
+                        for (int i = 0; i < count; i++) {
+                            remaining += batch[i].remaining();
+                        }
+                        while (remaining > 0) {
+                            remaining -= open.write(batch, 0, count);
+                        }
+                        Arrays.fill(batch, 0, count, null);
+                    }
+                } catch (IOException e) {
+                    if (channel != null) System.err.println("Cluster link to " + peer + " failed: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    drop();
+                }
+                try {
+                    Thread.sleep(REDIAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // Frames still queued are lost, and requests waiting on this peer fail
+        void drop() {
+            SocketChannel open = channel;
+            channel = null;
+            if (open != null) {
+                try {
+                    open.close();
+                } catch (IOException ignored) {
+                }
+            }
+            queue.clear();
+            for (Map.Entry<Long, Request> entry : requests.entrySet()) {
+                if (entry.getValue().node.equals(peer) && requests.remove(entry.getKey()) != null) {
+                    entry.getValue().reply.accept(false, "Group service is unavailable, try again later.");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+
+// Per-frame Deflate on binary-protocol connections. After LOGIN_SUCCESS the server offers
+// "COMPRESSION deflate <min bytes>"; a client that answers with a COMPRESS frame from then on may receive,
+// in place of any frame whose payload is at least that long, a DEFLATED frame holding the original opcode
+// and the zlib-compressed payload. Each frame is compressed on its own, with nothing carried over from the
+// frame before, so one compressed frame is shared by every recipient of a message, and a file is compressed
+// once while it is uploaded and then streamed as stored to every recipient that accepted the offer.
+// Clients expand DEFLATED frames with BinaryProtocol.Inflating.
+//   --compress-min-bytes=256 --compress-level=1   (level 0 disables compression)
+class Compression {
+    static final String DEFLATE = "deflate";
+    static final int MIN_BYTES = Integer.parseInt(ChatServer.option("compress-min-bytes", "256"));
+    static final int LEVEL = Integer.parseInt(ChatServer.option("compress-level", "1"));
+    static final int FILE_CHUNK = 256 * 1024; // file bytes per DEFLATED frame
+    // A file whose first chunk does not shrink below this fraction (media, archives) is relayed as it is
+    private static final double FILE_RATIO = 0.9;
+
+    // Deflaters hold native memory and are slow to set up, so each thread keeps one and resets it
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(LEVEL));
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[FILE_CHUNK]);
+
+    static boolean enabled() {
+        return LEVEL > 0;
+    }
+
+    // [DEFLATED][length][opcode][compressed payload], or null when that would not be smaller than the plain frame
+    static ByteBuffer deflate(byte opcode, byte[] payload, int offset, int length) {
+        if (!enabled() || length < MIN_BYTES) return null;
+        byte[] out = scratch.get();
+        if (out.length < length) {
+            out = new byte[Math.max(length, out.length * 2)];
+            scratch.set(out);
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(payload, offset, length);
+        deflater.finish();
+        // Room for one byte less than the opcode it adds: if it does not finish in that, it does not pay
+        int size = deflater.deflate(out, 0, length - 2);
+        if (!deflater.finished()) return null;
+        ServerMetrics.deflateBytesIn.add(length);
+        ServerMetrics.deflateBytesOut.add(size);
+        ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE + 1 + size);
+        frame.put(BinaryProtocol.DEFLATED).putInt(1 + size).put(opcode).put(out, 0, size).flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    // Compresses an upload as it arrives into ready-made FILE_DATA frames, DEFLATED where that pays, so
+    // relaying it later is a plain transferTo of this file. Gives up after the first chunk if that does not
+    // shrink enough, and then costs nothing more.
+    static final class FileDeflater {
+        private final Path file;
+        private final FileChannel channel;
+        private final ByteBuffer chunk = ByteBuffer.allocate(FILE_CHUNK);
+        private boolean first = true;
+        private boolean abandoned;
+
+        private FileDeflater(Path file) throws IOException {
+            this.file = file;
+            try {
+                this.channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+        }
+
+        // null when compression is off or the file is too small to bother
+        static FileDeflater start(BlobStore blobs, long size) {
+            if (!enabled() || size < MIN_BYTES) return null;
+            try {
+                return new FileDeflater(blobs.newTempFile("deflate_"));
+            } catch (IOException e) {
+                System.err.println("Could not compress upload: " + e.getMessage());
+                return null;
+            }
+        }
+
+        void write(ByteBuffer bytes) throws IOException {
+            while (!abandoned && bytes.hasRemaining()) {
+                int count = Math.min(chunk.remaining(), bytes.remaining());
+                chunk.put(chunk.position(), bytes, bytes.position(), count);
+                chunk.position(chunk.position() + count);
+                bytes.position(bytes.position() + count);
+                if (!chunk.hasRemaining()) writeChunk();
+            }
+        }
+
+        // The finished frames, to adopt into the blob store; null if compression did not pay
+        Path finish() throws IOException {
+            if (!abandoned && chunk.position() > 0) writeChunk();
+            if (abandoned) return null;
+            channel.close();
+            return file;
+        }
+
+        void abort() {
+            if (abandoned) return;
+            abandoned = true;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            int length = chunk.position();
+            ByteBuffer frame = deflate(BinaryProtocol.FILE_DATA, chunk.array(), 0, length);
+            if (first && (frame == null || frame.remaining() > FILE_RATIO * length)) {
+                abort();
+                return;
+            }
+            first = false;
+            // A later chunk that does not compress (an embedded image, say) goes as it is
+            if (frame == null) frame = BinaryProtocol.frame(BinaryProtocol.FILE_DATA, chunk.array(), 0, length);
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            chunk.clear();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Registered users, checked by the server instead of each client scanning users.txt. All credentials
+// sit in a hash index loaded at startup from users.db (a compacted snapshot) plus users.wal, the log
+// that every registration is appended and fsynced to. Compaction folds the log into a new snapshot.
+// PBKDF2 runs on a small bounded pool; when its queue is full callers get a RejectedExecutionException
+// right away, so a login storm can neither pile up work nor hold up the threads that accept clients.
+//   Line: <username>\t<iterations>\t<salt base64>\t<hash base64>
+class CredentialStore implements Closeable {
+    private static final int COMPACT_AFTER = 100_000;
+
+    private final Path snapshot;
+    private final Path log;
+    private final Path rotatedLog;
+    private final int iterations;
+    private final Map<String, Credential> users = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor hashing;
+    private final ScheduledExecutorService compactor;
+    private final ReentrantLock logLock = new ReentrantLock();
+    private FileChannel logChannel;
+    private int logEntries;
+
+    static final class Credential {
+        final String username; // as registered; the index key is lower case
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+
+        Credential(String username, int iterations, byte[] salt, byte[] hash) {
+            this.username = username;
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        static Credential create(String username, String password, int iterations, Random random) {
+            byte[] salt = new byte[16];
+            random.nextBytes(salt);
+            return new Credential(username, iterations, salt, pbkdf2(password, salt, iterations));
+        }
+
+        boolean matches(String password) {
+            return MessageDigest.isEqual(hash, pbkdf2(password, salt, iterations));
+        }
+
+        String format() {
+            Base64.Encoder base64 = Base64.getEncoder();
+            return username + "\t" + iterations + "\t" + base64.encodeToString(salt) + "\t" + base64.encodeToString(hash) + "\n";
+        }
+    }
+
+    CredentialStore(Path directory, int iterations, int threads, int queue, long compactMinutes) throws IOException {
+        Files.createDirectories(directory);
+        this.snapshot = directory.resolve("users.db");
+        this.log = directory.resolve("users.wal");
+        this.rotatedLog = directory.resolve("users.wal.old");
+        this.iterations = iterations;
+        // A compaction that died after rotating the log leaves users.wal.old, so it is read too
+        load(snapshot);
+        load(rotatedLog);
+        load(log);
+        logChannel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        hashing = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue), runnable -> {
+            Thread thread = new Thread(runnable, "credential-hashing");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "credential-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactQuietly, compactMinutes, compactMinutes, TimeUnit.MINUTES);
+    }
+
+    private void load(Path file) throws IOException {
+        if (!Files.exists(file)) return;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Base64.Decoder base64 = Base64.getDecoder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                try {
+                    users.put(key(parts[0]), new Credential(parts[0], Integer.parseInt(parts[1]), base64.decode(parts[2]), base64.decode(parts[3])));
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                    continue; // a torn last line of the log
+                }
+                if (file == log) logEntries++;
+            }
+        }
+    }
+
+    // Usernames are matched case-insensitively, as users.txt was
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    static boolean isValidUsername(String username) {
+        return username != null && !username.isEmpty() && username.length() <= 64 && username.chars().noneMatch(c -> Character.isWhitespace(c) || c == '|');
+    }
+
+    boolean isRegistered(String username) {
+        return users.containsKey(key(username));
+    }
+
+    // Both complete on the hashing pool, or fail at once with RejectedExecutionException when it is saturated
+    CompletableFuture<Boolean> login(String username, String password) {
+        return async(() -> verify(username, password));
+    }
+
+    CompletableFuture<Boolean> register(String username, String password) {
+        return async(() -> {
+            try {
+                return add(username, password);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> async(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, hashing);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    boolean verify(String username, String password) {
+        Credential credential = users.get(key(username));
+        return credential != null && credential.matches(password);
+    }
+
+    // False when the name is invalid or taken; the index entry is only kept once the log write succeeded
+    boolean add(String username, String password) throws IOException {
+        if (!isValidUsername(username) || password.isEmpty()) return false;
+        Credential credential = Credential.create(username, password, iterations, new SecureRandom());
+        if (users.putIfAbsent(key(username), credential) != null) return false;
+        boolean compactNow;
+        logLock.lock();
+        try {
+            ByteBuffer line = StandardCharsets.UTF_8.encode(credential.format());
+            while (line.hasRemaining()) {
+                logChannel.write(line);
+            }
+            logChannel.force(false);
+            compactNow = ++logEntries >= COMPACT_AFTER;
+        } catch (IOException e) {
+            users.remove(key(username), credential);
+            throw e;
+        } finally {
+            logLock.unlock();
+        }
+        if (compactNow) compactor.execute(this::compactQuietly);
+        return true;
+    }
+
+    // The log is swapped out first, so registrations only wait for a rename; the snapshot is then
+    // written from the index, which already holds everything in the rotated log
+    void compact() throws IOException {
+        logLock.lock();
+        try {
+            // A rotated log left by an interrupted compaction is kept until a snapshot covers it
+            if (!Files.exists(rotatedLog)) {
+                if (logEntries == 0) return;
+                logChannel.close();
+                Files.move(log, rotatedLog);
+                logChannel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                logEntries = 0;
+            }
+        } finally {
+            logLock.unlock();
+        }
+
+        Path temp = snapshot.resolveSibling("users.db.tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Credential credential : users.values()) {
+                writer.write(credential.format());
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(rotatedLog);
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            System.err.println("Error compacting credentials: " + e.getMessage());
+        }
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        hashing.shutdown();
+        compactor.shutdown();
+        logLock.lock();
+        try {
+            logChannel.close();
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 256);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Chat groups and their members. Everything is a ConcurrentHashMap, so joins, leaves and sends on
+// different groups never contend on a shared lock. Members form a set (joining twice is a no-op), and
+// the reverse index, each connection's own set of group codes, lets a disconnect leave them all in
+// O(groups joined) without a second registry-wide map to look up on every join and leave.
+// Groups restored from a snapshot stay in its mapping until their code is first looked up.
+class GroupRegistry {
+    static final class Group {
+        final String code;
+        final String owner; // username of the creator, the only one allowed to delete the group
+        final Set<ChatServer.ClientConnection> members = ConcurrentHashMap.newKeySet(); // on this node
+        final Set<String> nodes = ConcurrentHashMap.newKeySet(); // in a cluster, on the group's home: other nodes to relay to
+        final RateLimits.TokenBucket messages = RateLimits.groupMessages(); // what this node's members send, together
+
+        Group(String code, String owner) {
+            this.code = code;
+            this.owner = owner;
+        }
+    }
+
+    static final int MAX_CODE_LENGTH = 64;
+
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private volatile GroupSnapshot restored; // null until a snapshot is restored
+
+    void restoreFrom(GroupSnapshot snapshot) {
+        restored = snapshot;
+    }
+
+    // A miss falls through to the restored snapshot, once per code; computeIfAbsent makes the group exactly once
+    Group get(String code) {
+        Group group = groups.get(code);
+        GroupSnapshot snapshot = restored;
+        if (group != null || snapshot == null) return group;
+        return groups.computeIfAbsent(code, key -> {
+            String owner = snapshot.claim(key);
+            return owner == null ? null : new Group(key, owner);
+        });
+    }
+
+    // Codes name log streams, fill fields of the mailbox journal and are sent inside text commands, so the same
+    // rule holds for both protocols: 1 to MAX_CODE_LENGTH characters, none of them whitespace or control characters
+    static boolean isValidCode(String code) {
+        return !code.isEmpty() && code.length() <= MAX_CODE_LENGTH
+            && code.chars().noneMatch(c -> Character.isWhitespace(c) || Character.isISOControl(c));
+    }
+
+    // False when the code is taken
+    boolean create(String code, ChatServer.ClientConnection owner) {
+        if (get(code) != null) return false;
+        Group group = new Group(code, owner.getUsername());
+        if (groups.putIfAbsent(code, group) != null) return false;
+        addMember(group, owner);
+        return true;
+    }
+
+    // A group created on behalf of a client of another node; null when the code is taken
+    Group add(String code, String owner) {
+        if (get(code) != null) return null;
+        Group group = new Group(code, owner);
+        return groups.putIfAbsent(code, group) == null ? group : null;
+    }
+
+    // This node's copy of a group whose home is another node
+    Group replicate(String code, String owner) {
+        return groups.computeIfAbsent(code, key -> new Group(code, owner));
+    }
+
+    // Null when there is no such group, or the client has disconnected
+    Group join(String code, ChatServer.ClientConnection client) {
+        Group group = get(code);
+        if (group == null) return null;
+        addMember(group, client);
+        // A delete may have raced with the join; undo it rather than leave a member in a dead group. The same
+        // for a disconnect: a join answered by the group's home node can complete after leaveAll() has run.
+        if (groups.get(code) != group || client.disconnected) {
+            removeMember(group, client);
+            return null;
+        }
+        return group;
+    }
+
+    // False when the client was not a member
+    boolean leave(String code, ChatServer.ClientConnection client) {
+        Group group = groups.get(code);
+        return group != null && removeMember(group, client);
+    }
+
+    // Removes the group and returns its last members, so they can be told
+    Set<ChatServer.ClientConnection> delete(Group group) {
+        if (!groups.remove(group.code, group)) return Collections.emptySet();
+        Set<ChatServer.ClientConnection> members = new HashSet<>(group.members);
+        for (ChatServer.ClientConnection member : members) {
+            removeMember(group, member);
+        }
+        return members;
+    }
+
+    // Called once a connection has closed
+    void leaveAll(ChatServer.ClientConnection client) {
+        for (String code : client.groupCodes) {
+            Group group = groups.get(code);
+            if (group != null) group.members.remove(client);
+        }
+        client.groupCodes.clear();
+    }
+
+    // Counting the restored groups nobody has looked up yet
+    int size() {
+        GroupSnapshot snapshot = restored;
+        return groups.size() + (snapshot == null ? 0 : snapshot.unclaimed());
+    }
+
+    // A live view, for the snapshot writer to walk while groups come and go; restored groups only once looked up
+    Collection<Group> all() {
+        return Collections.unmodifiableCollection(groups.values());
+    }
+
+    private void addMember(Group group, ChatServer.ClientConnection client) {
+        client.groupCodes.add(group.code);
+        group.members.add(client);
+    }
+
+    private boolean removeMember(Group group, ChatServer.ClientConnection client) {
+        client.groupCodes.remove(group.code);
+        return group.members.remove(client);
+    }
+}
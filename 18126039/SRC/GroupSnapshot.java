@@ -0,0 +1,351 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+// Groups and who was in them, so a restart does not lose them. Every --snapshot-seconds (and at shutdown)
+// the groups homed on this node and the memberships of the registered users logged in are written to
+// groups.<generation>.snap. At startup the newest one that checks out is memory-mapped and nothing more,
+// so the server listens at once: each group is created from the mapping the first time it is looked up
+// (a binary search of the sorted code index), and a user's memberships wait there until they log in again
+// and are put back into their groups, once per restart. Groups and users not touched since the restore are
+// carried into the next snapshot, users until --mailbox-ttl-hours after they were last seen.
+//   File:   [magic:4][version:4][written millis:8][codes:4][home groups:4][code index at:4][users:4][user index at:4][crc32c of the rest:4]
+//           codes x [home:1][code][owner, when home]   code index: codes x [entry at:4]
+//           users x [lower-case username][seen millis:8][groups:4][groups x place in the code index:4]   user index: users x [record at:4]
+//   Both indexes are sorted by the UTF-8 bytes of the string they point at. Strings: [length:2][UTF-8 bytes]
+//   --snapshot-seconds=30   (0 disables snapshots)
+class GroupSnapshot {
+    static final long INTERVAL_SECONDS = Long.parseLong(ChatServer.option("snapshot-seconds", "30"));
+    private static final int MAGIC = 0x43475331; // "CGS1"
+    private static final int VERSION = 1;
+    private static final int HEADER = 40;
+    private static final Comparator<Named> UTF8_ORDER = (a, b) -> Arrays.compareUnsigned(a.utf8, b.utf8);
+
+    private final Path directory;
+    private final Predicate<String> isHome; // false for groups homed on another cluster node, not restored here
+    private final ReentrantLock lock = new ReentrantLock(); // one write at a time
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet();   // restored groups looked up since the restore
+    private final Set<String> taken = ConcurrentHashMap.newKeySet();     // users put back since the restore
+    private final Set<String> forgotten = ConcurrentHashMap.newKeySet(); // groups deleted since the restore
+    private final AtomicInteger unclaimed = new AtomicInteger();
+    private Path restoredFile;          // null when there was no snapshot
+    private MappedByteBuffer restored;  // only read with absolute gets or through duplicates, so shared by every thread
+    private int codes;
+    private int codeIndexAt;
+    private int users;
+    private int userIndexAt;
+    private long generation;
+
+    // A string with its UTF-8 bytes, which is what the indexes are sorted by
+    private static final class Named {
+        final String value;
+        final byte[] utf8;
+
+        Named(String value) {
+            this.value = value;
+            this.utf8 = value.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    // One user's record in a snapshot being written
+    private static final class Record {
+        final long seen;
+        final Collection<String> groups;
+
+        Record(long seen, Collection<String> groups) {
+            this.seen = seen;
+            this.groups = groups;
+        }
+    }
+
+    GroupSnapshot(Path directory, Predicate<String> isHome) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.isHome = isHome;
+        List<Path> snapshots = snapshots();
+        for (int i = snapshots.size() - 1; i >= 0 && restored == null; i--) {
+            Path file = snapshots.get(i);
+            generation = Math.max(generation, generation(file));
+            try {
+                map(file);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Ignoring group snapshot " + file.getFileName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Oldest first
+    private List<Path> snapshots() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> snapshots = new ArrayList<>();
+            files.filter(file -> file.getFileName().toString().matches("groups\\.\\d+\\.snap")).forEach(snapshots::add);
+            snapshots.sort(Comparator.comparingLong(GroupSnapshot::generation));
+            return snapshots;
+        }
+    }
+
+    private static long generation(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring("groups.".length(), name.length() - ".snap".length()));
+    }
+
+    private void map(Path file) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (mapped.capacity() < HEADER || mapped.getInt(0) != MAGIC) throw new IOException("not a group snapshot");
+        if (mapped.getInt(4) != VERSION) throw new IOException("unknown version " + mapped.getInt(4));
+        CRC32C crc = new CRC32C();
+        crc.update(mapped.duplicate().position(HEADER));
+        if ((int) crc.getValue() != mapped.getInt(36)) throw new IOException("checksum mismatch");
+        int codes = mapped.getInt(16);
+        int codeIndexAt = mapped.getInt(24);
+        int users = mapped.getInt(28);
+        int userIndexAt = mapped.getInt(32);
+        if (codes < 0 || users < 0 || codeIndexAt < HEADER || userIndexAt < HEADER
+            || (long) codeIndexAt + 4L * codes > mapped.capacity() || (long) userIndexAt + 4L * users > mapped.capacity()) {
+            throw new IOException("bad index");
+        }
+        this.restored = mapped;
+        this.restoredFile = file;
+        this.codes = codes;
+        this.codeIndexAt = codeIndexAt;
+        this.users = users;
+        this.userIndexAt = userIndexAt;
+        unclaimed.set(mapped.getInt(20));
+    }
+
+    // Groups in the restored snapshot
+    int restoredGroups() {
+        return restored == null ? 0 : restored.getInt(20);
+    }
+
+    // Restored groups not looked up yet, which the registry counts without holding them
+    int unclaimed() {
+        return unclaimed.get();
+    }
+
+    // The owner of a restored group homed on this node, the first time its code is asked for; null from then
+    // on (the registry holds it, or it was deleted), and for codes the snapshot does not have
+    String claim(String code) {
+        if (restored == null) return null;
+        int entry = find(codeIndexAt, codes, 1, code.getBytes(StandardCharsets.UTF_8));
+        if (entry < 0 || restored.get(entry) != 1 || !isHome.test(code) || !claimed.add(code)) return null;
+        unclaimed.decrementAndGet();
+        return stringAt(after(entry + 1));
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    // The groups a user was in when the snapshot was taken; empty after the first call for that user, and
+    // for one last seen longer than the TTL ago
+    Set<String> take(String username) {
+        String key = key(username);
+        int record = restored == null ? -1 : find(userIndexAt, users, 0, key.getBytes(StandardCharsets.UTF_8));
+        if (record < 0 || !taken.add(key)) return Collections.emptySet();
+        int at = after(record);
+        if (restored.getLong(at) < System.currentTimeMillis() - Mailboxes.TTL_MILLIS) return Collections.emptySet();
+        Set<String> memberOf = new LinkedHashSet<>();
+        for (int n = restored.getInt(at + 8), i = 0; i < n; i++) {
+            String code = code(restored.getInt(at + 12 + 4 * i));
+            if (!forgotten.contains(code)) memberOf.add(code);
+        }
+        return memberOf;
+    }
+
+    // A deleted group: nobody is put back into it, even if a new group later takes its code
+    void forget(String code) {
+        forgotten.add(code);
+    }
+
+    // Binary search of an index for key, compared with the string skip bytes into what each slot points at;
+    // the position it points at, or -1
+    private int find(int indexAt, int count, int skip, byte[] key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int at = restored.getInt(indexAt + 4 * middle);
+            int compared = compare(at + skip, key);
+            if (compared == 0) return at;
+            if (compared < 0) low = middle + 1;
+            else high = middle - 1;
+        }
+        return -1;
+    }
+
+    // The string at position at against key, byte by byte without decoding it
+    private int compare(int at, byte[] key) {
+        int length = restored.getShort(at) & 0xFFFF;
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int difference = (restored.get(at + 2 + i) & 0xFF) - (key[i] & 0xFF);
+            if (difference != 0) return difference;
+        }
+        return length - key.length;
+    }
+
+    // Position just past the string at position at
+    private int after(int at) {
+        return at + 2 + (restored.getShort(at) & 0xFFFF);
+    }
+
+    private String stringAt(int at) {
+        byte[] bytes = new byte[restored.getShort(at) & 0xFFFF];
+        restored.duplicate().position(at + 2).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The code at a place in the code index
+    private String code(int place) {
+        return stringAt(restored.getInt(codeIndexAt + 4 * place) + 1);
+    }
+
+    // Writes a new generation from the registry and the sessions, plus what of the restored snapshot has not
+    // been touched since, then removes older generations (but not the mapped one, which is still in use)
+    void write(Collection<GroupRegistry.Group> groups, Collection<? extends ChatServer.ClientConnection> clients) throws IOException {
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            Map<String, String> owners = new HashMap<>();
+            for (GroupRegistry.Group group : groups) {
+                if (isHome.test(group.code) && fits(group.code)) owners.put(group.code, group.owner);
+            }
+            Map<String, Record> records = new HashMap<>();
+            for (ChatServer.ClientConnection client : clients) {
+                if (!client.registered) continue;
+                for (String code : client.groupCodes) {
+                    if (fits(code)) records.computeIfAbsent(key(client.getUsername()), k -> new Record(now, new HashSet<>())).groups.add(code);
+                }
+            }
+            carryForward(owners, records, now);
+
+            // Every code a group or a membership needs, numbered by its place in UTF-8 order
+            Set<String> needed = new HashSet<>(owners.keySet());
+            for (Record record : records.values()) {
+                needed.addAll(record.groups);
+            }
+            Named[] sortedCodes = sorted(needed);
+            Named[] sortedUsers = sorted(records.keySet());
+            Named[] ownerNames = new Named[sortedCodes.length];
+            Map<String, Integer> places = new HashMap<>(sortedCodes.length * 2);
+            long size = HEADER;
+            for (int i = 0; i < sortedCodes.length; i++) {
+                places.put(sortedCodes[i].value, i);
+                String owner = owners.get(sortedCodes[i].value);
+                if (owner != null) ownerNames[i] = new Named(owner);
+                size += 7 + sortedCodes[i].utf8.length + (owner != null ? 2 + ownerNames[i].utf8.length : 0);
+            }
+            for (Named user : sortedUsers) {
+                size += 18 + user.utf8.length + 4L * records.get(user.value).groups.size();
+            }
+            if (size > Integer.MAX_VALUE) throw new IOException("snapshot would be larger than 2 GB");
+
+            // Sized exactly, so it is filled in place and never copied
+            ByteBuffer file = ByteBuffer.allocate((int) size).position(HEADER);
+            int[] positions = new int[Math.max(sortedCodes.length, sortedUsers.length)];
+            for (int i = 0; i < sortedCodes.length; i++) {
+                positions[i] = file.position();
+                file.put((byte) (ownerNames[i] != null ? 1 : 0));
+                putString(file, sortedCodes[i].utf8);
+                if (ownerNames[i] != null) putString(file, ownerNames[i].utf8);
+            }
+            int codeIndexAt = file.position();
+            for (int i = 0; i < sortedCodes.length; i++) {
+                file.putInt(positions[i]);
+            }
+            for (int i = 0; i < sortedUsers.length; i++) {
+                positions[i] = file.position();
+                Record record = records.get(sortedUsers[i].value);
+                putString(file, sortedUsers[i].utf8);
+                file.putLong(record.seen).putInt(record.groups.size());
+                for (String code : record.groups) {
+                    file.putInt(places.get(code));
+                }
+            }
+            int userIndexAt = file.position();
+            for (int i = 0; i < sortedUsers.length; i++) {
+                file.putInt(positions[i]);
+            }
+            file.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, now).putInt(16, sortedCodes.length).putInt(20, owners.size())
+                .putInt(24, codeIndexAt).putInt(28, sortedUsers.length).putInt(32, userIndexAt);
+            CRC32C crc = new CRC32C();
+            crc.update(file.array(), HEADER, file.capacity() - HEADER);
+            file.putInt(36, (int) crc.getValue()).flip();
+
+            Path target = directory.resolve("groups." + (++generation) + ".snap");
+            Path temp = directory.resolve("groups.snap.tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (file.hasRemaining()) {
+                    channel.write(file);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (Path old : snapshots()) {
+                if (!old.equals(target) && !old.equals(restoredFile)) Files.deleteIfExists(old);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // What of the restored snapshot nobody has touched: groups not looked up yet, and users not logged in
+    // since, with their groups as of then minus the deleted ones
+    private void carryForward(Map<String, String> owners, Map<String, Record> records, long now) {
+        if (restored == null) return;
+        for (int place = 0; place < codes; place++) {
+            int entry = restored.getInt(codeIndexAt + 4 * place);
+            if (restored.get(entry) != 1) continue;
+            String code = stringAt(entry + 1);
+            if (!claimed.contains(code) && !forgotten.contains(code) && isHome.test(code)) {
+                owners.putIfAbsent(code, stringAt(after(entry + 1)));
+            }
+        }
+        long expired = now - Mailboxes.TTL_MILLIS;
+        for (int i = 0; i < users; i++) {
+            int record = restored.getInt(userIndexAt + 4 * i);
+            String username = stringAt(record);
+            int at = after(record);
+            long seen = restored.getLong(at);
+            if (seen < expired || records.containsKey(username) || taken.contains(username)) continue;
+            List<String> memberOf = new ArrayList<>();
+            for (int n = restored.getInt(at + 8), g = 0; g < n; g++) {
+                String code = code(restored.getInt(at + 12 + 4 * g));
+                if (!forgotten.contains(code)) memberOf.add(code);
+            }
+            if (!memberOf.isEmpty()) records.put(username, new Record(seen, memberOf));
+        }
+    }
+
+    private static Named[] sorted(Collection<String> values) {
+        Named[] named = new Named[values.size()];
+        int i = 0;
+        for (String value : values) {
+            named[i++] = new Named(value);
+        }
+        Arrays.sort(named, UTF8_ORDER);
+        return named;
+    }
+
+    // Strings longer than the 2-byte length takes, which only a text-protocol GROUP_CREATE can make, are left out
+    private static boolean fits(String value) {
+        return value.length() <= 0xFFFF / 3 || value.getBytes(StandardCharsets.UTF_8).length <= 0xFFFF;
+    }
+
+    private static void putString(ByteBuffer out, byte[] utf8) {
+        out.putShort((short) utf8.length).put(utf8);
+    }
+}
@@ -0,0 +1,265 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Offline delivery for registered users. When a member of groups disconnects, their mailbox keeps the log
+// offset each of those groups had reached; at their next login they are put back into the groups and page
+// through what they missed with HISTORY. Message bodies are never copied per recipient: each is in the
+// message log once, and a mailbox holds one small entry per group however much is sent while its owner is
+// away. Only the newest --mailbox-messages of a group are offered, and a mailbox that is not collected
+// within --mailbox-ttl-hours expires, together with the memberships it kept. A direct message to an offline
+// user puts their direct message stream ("@<username>") in the mailbox the same way.
+// Mailboxes sit in memory and in mailboxes.log, a journal that is written without waiting for the disk
+// (a background pass syncs it every second) and rewritten from memory once it is mostly stale lines.
+//   Line: <username>\t<since millis>\t<from offset>\t<stream>   kept for the user
+//         <username>                                         collected by the user
+//         \t<stream>                                         stream deleted, gone from every mailbox
+//   --mailbox-messages=1000 --mailbox-ttl-hours=72
+class Mailboxes implements Closeable {
+    static final int MAX_MESSAGES = Integer.parseInt(ChatServer.option("mailbox-messages", "1000"));
+    static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(Long.parseLong(ChatServer.option("mailbox-ttl-hours", "72")));
+    private static final int COMPACT_SLACK = 10_000; // stale journal lines tolerated beyond the live entries
+    private static final long SWEEP_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Path journal;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Map<String, Entry>> boxes = new HashMap<>(); // by lower-case username; guarded by lock
+    private final ScheduledExecutorService syncer;
+    private FileChannel channel;
+    private int journalLines;
+    private int entries;
+    private boolean dirty;
+    private long nextSweep;
+
+    // Where a user's copy of one stream resumes
+    static final class Entry {
+        final String stream;
+        final long from;  // first offset not delivered
+        final long since; // when it was kept, for the TTL
+
+        Entry(String stream, long from, long since) {
+            this.stream = stream;
+            this.from = from;
+            this.since = since;
+        }
+    }
+
+    Mailboxes(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.journal = directory.resolve("mailboxes.log");
+        load();
+        lock.lock();
+        try {
+            compact();
+        } finally {
+            lock.unlock();
+        }
+        syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mailbox-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::sync, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(journal)) return;
+        long expired = System.currentTimeMillis() - TTL_MILLIS;
+        Map<String, String> streams = new HashMap<>(); // one copy of each name, as the live groups share theirs
+        try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    remove(line);
+                } else if (tab == 0) {
+                    drop(line.substring(1));
+                } else {
+                    String[] parts = line.split("\t", 4);
+                    try {
+                        long since = Long.parseLong(parts[1]);
+                        if (since >= expired) put(parts[0], new Entry(streams.computeIfAbsent(parts[3], name -> name), Long.parseLong(parts[2]), since));
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        continue; // a torn last line
+                    }
+                }
+            }
+        }
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    // Keeps the offsets a user had reached, by stream. A stream already in the mailbox is left as it is: its
+    // offset is older, and so is the TTL it started (a direct message to an offline user holds the user's
+    // direct stream on every send, and only the first one costs a journal line).
+    void hold(String username, Map<String, Long> offsets) {
+        long now = System.currentTimeMillis();
+        StringBuilder lines = new StringBuilder();
+        int added = 0;
+        lock.lock();
+        try {
+            Map<String, Entry> box = boxes.getOrDefault(key(username), Collections.emptyMap());
+            for (Map.Entry<String, Long> offset : offsets.entrySet()) {
+                if (box.containsKey(offset.getKey()) || !fitsLine(offset.getKey())) continue;
+                Entry entry = new Entry(offset.getKey(), offset.getValue(), now);
+                put(username, entry);
+                lines.append(username).append('\t').append(entry.since).append('\t').append(entry.from).append('\t').append(entry.stream).append('\n');
+                added++;
+            }
+            if (added > 0) write(lines, added);
+            if (now >= nextSweep) sweep(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The stream is a line's last field; a line break in it (only possible in a group created before codes were
+    // checked) would start a forged line
+    private static boolean fitsLine(String stream) {
+        return stream.indexOf('\n') < 0 && stream.indexOf('\r') < 0;
+    }
+
+    // Empties a user's mailbox and returns what was still within the TTL
+    List<Entry> take(String username) {
+        lock.lock();
+        try {
+            Map<String, Entry> box = remove(username);
+            if (box == null) return Collections.emptyList();
+            write(username + "\n", 1);
+            long expired = System.currentTimeMillis() - TTL_MILLIS;
+            List<Entry> kept = new ArrayList<>();
+            for (Entry entry : box.values()) {
+                if (entry.since >= expired) kept.add(entry);
+            }
+            return kept;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A deleted group: nobody is put back into it, even if a new group later takes its code
+    void forget(String stream) {
+        lock.lock();
+        try {
+            if (drop(stream) && fitsLine(stream)) write("\t" + stream + "\n", 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Users with a mailbox waiting
+    int size() {
+        lock.lock();
+        try {
+            return boxes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void put(String username, Entry entry) {
+        if (boxes.computeIfAbsent(key(username), k -> new HashMap<>()).put(entry.stream, entry) == null) entries++;
+    }
+
+    private Map<String, Entry> remove(String username) {
+        Map<String, Entry> box = boxes.remove(key(username));
+        if (box != null) entries -= box.size();
+        return box;
+    }
+
+    private boolean drop(String stream) {
+        boolean dropped = false;
+        for (Iterator<Map<String, Entry>> it = boxes.values().iterator(); it.hasNext(); ) {
+            Map<String, Entry> box = it.next();
+            if (box.remove(stream) == null) continue;
+            entries--;
+            dropped = true;
+            if (box.isEmpty()) it.remove();
+        }
+        return dropped;
+    }
+
+    // Expired mailboxes leave memory here; their lines go at the next compaction
+    private void sweep(long now) {
+        nextSweep = now + SWEEP_MILLIS;
+        long expired = now - TTL_MILLIS;
+        for (Iterator<Map<String, Entry>> it = boxes.values().iterator(); it.hasNext(); ) {
+            Map<String, Entry> box = it.next();
+            int before = box.size();
+            box.values().removeIf(entry -> entry.since < expired);
+            entries -= before - box.size();
+            if (box.isEmpty()) it.remove();
+        }
+    }
+
+    // Under the lock. A failed write leaves the mailbox in memory only, so it still works until a restart.
+    private void write(CharSequence lines, int count) {
+        try {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(lines));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            dirty = true;
+            journalLines += count;
+        } catch (IOException e) {
+            System.err.println("Error writing mailbox journal: " + e.getMessage());
+        }
+    }
+
+    private void sync() {
+        lock.lock();
+        try {
+            if (journalLines > 2 * entries + COMPACT_SLACK) {
+                compact();
+            } else if (dirty) {
+                channel.force(false);
+                dirty = false;
+            }
+        } catch (IOException e) {
+            System.err.println("Error syncing mailbox journal: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Under the lock: rewrites the journal as one line per live entry
+    private void compact() throws IOException {
+        Path temp = journal.resolveSibling("mailboxes.log.tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Map<String, Entry>> box : boxes.entrySet()) {
+                for (Entry entry : box.getValue().values()) {
+                    // Under the lower-case key, which any spelling of the name finds again
+                    writer.write(box.getKey() + "\t" + entry.since + "\t" + entry.from + "\t" + entry.stream + "\n");
+                }
+            }
+        }
+        try (FileChannel written = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            written.force(true);
+        }
+        if (channel != null) channel.close();
+        Files.move(temp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        journalLines = entries;
+        dirty = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        syncer.shutdown();
+        lock.lock();
+        try {
+            channel.force(false);
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,417 @@
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+// Append-only history of every broadcast and group message. Each stream (the broadcast channel or one
+// group) is a directory of segment files named after the offset of their first record; offsets count
+// records per stream. A flusher thread fsyncs every stream written since its last pass in one group
+// commit, so appends never wait for the disk unless they ask to with awaitDurable(). A stream is opened the
+// first time it is used, and a segment is mapped on its first read; the active segment is then mapped at its
+// full size, zero-filled past the last record, so reads that follow appends never remap it.
+//   Record: [length:4][crc32c:4][timestamp:8][UTF-8 payload:length]
+//   --log-segment-mb=64 --log-retention-hours=168 --log-flush-ms=10   (segments of at most 2047 MB)
+class MessageLog implements Closeable {
+    private static final int RECORD_HEADER = 16;
+    private static final int INDEX_INTERVAL = 64;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long retentionMillis;
+    private final long flushMillis;
+    private final Map<String, LogStream> streams = new ConcurrentHashMap<>();   // opened so far
+    private final Set<String> names = ConcurrentHashMap.newKeySet();             // every stream, opened or not
+
+    // Group commit: appends bump appended, the flusher fsyncs dirty streams and then publishes durable
+    private final Set<LogStream> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicLong appended = new AtomicLong();
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition commitRequested = commitLock.newCondition();
+    private final Condition committed = commitLock.newCondition();
+    private long durable;
+    private volatile boolean closed;
+    private final Thread flusher;
+
+    interface RecordVisitor {
+        void visit(long offset, long timestamp, ByteBuffer payload);
+    }
+
+    MessageLog(Path directory, long segmentBytes, long retentionMillis, long flushMillis) throws IOException {
+        // Positions within a segment are ints, and a mapping holds at most Integer.MAX_VALUE bytes
+        if (segmentBytes <= 0 || segmentBytes > Integer.MAX_VALUE) throw new IOException("Invalid segment size: " + segmentBytes + " bytes");
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        this.retentionMillis = retentionMillis;
+        this.flushMillis = Math.max(1, flushMillis);
+        try (Stream<Path> listing = Files.list(directory)) {
+            for (Path dir : (Iterable<Path>) listing::iterator) {
+                if (Files.isDirectory(dir)) names.add(URLDecoder.decode(dir.getFileName().toString().substring(2), StandardCharsets.UTF_8));
+            }
+        }
+        flusher = new Thread(this::flushLoop, "message-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Returns the record's offset in its stream; durable within --log-flush-ms, or once awaitDurable() returns
+    long append(String stream, byte[] payload) throws IOException {
+        names.add(stream);
+        LogStream log = streams.computeIfAbsent(stream, this::openStream);
+        long offset = log.append(payload);
+        dirty.add(log);
+        appended.incrementAndGet();
+        return offset;
+    }
+
+    // Blocks until everything appended before the call is on disk; concurrent callers share one fsync
+    void awaitDurable() throws InterruptedIOException {
+        long target = appended.get();
+        commitLock.lock();
+        try {
+            while (durable < target) {
+                if (closed) return;
+                commitRequested.signal();
+                committed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the message log");
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    // Visits up to limit records from fromOffset (a negative fromOffset means the last limit records)
+    // and returns the offset to ask for next. Records that retention already removed are skipped.
+    long read(String stream, long fromOffset, int limit, RecordVisitor visitor) throws IOException {
+        LogStream log = existing(stream);
+        return log == null ? 0 : log.read(fromOffset, limit, visitor);
+    }
+
+    // The offset the stream's next record will get; 0 for a stream nothing was written to yet
+    long end(String stream) {
+        try {
+            LogStream log = existing(stream);
+            return log == null ? 0 : log.end();
+        } catch (IOException e) {
+            System.err.println("Error opening message log: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // Where the stream ended when the log was opened, so where this run's records start; 0 for a stream created since.
+    // A stream is only opened before this run's first append to it, so opening it late gives the same answer.
+    long openedEnd(String stream) {
+        try {
+            LogStream log = existing(stream);
+            return log == null ? 0 : log.openedEnd;
+        } catch (IOException e) {
+            System.err.println("Error opening message log: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    Set<String> streamNames() {
+        return new HashSet<>(names);
+    }
+
+    // The stream, opened on its first use; null for one nothing was ever written to
+    private LogStream existing(String stream) throws IOException {
+        LogStream log = streams.get(stream);
+        if (log != null || !names.contains(stream)) return log;
+        try {
+            return streams.computeIfAbsent(stream, this::openStream);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void flushLoop() {
+        long nextRetention = System.currentTimeMillis();
+        while (!closed) {
+            commitLock.lock();
+            try {
+                if (appended.get() == durable) commitRequested.await(flushMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                commitLock.unlock();
+            }
+
+            long target = appended.get();
+            for (Iterator<LogStream> it = dirty.iterator(); it.hasNext(); ) {
+                LogStream log = it.next();
+                it.remove();
+                log.force();
+            }
+            commitLock.lock();
+            try {
+                durable = Math.max(durable, target);
+                committed.signalAll();
+            } finally {
+                commitLock.unlock();
+            }
+
+            if (System.currentTimeMillis() >= nextRetention) {
+                for (LogStream log : streams.values()) {
+                    log.applyRetention();
+                }
+                nextRetention = System.currentTimeMillis() + 60_000;
+            }
+        }
+    }
+
+    private LogStream openStream(String name) {
+        try {
+            // Prefixed so that group codes such as "." or ".." stay plain directory names
+            return new LogStream(directory.resolve("s_" + URLEncoder.encode(name, StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        flusher.interrupt();
+        for (LogStream log : streams.values()) {
+            log.force();
+        }
+        commitLock.lock();
+        try {
+            committed.signalAll();
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    // One segment file; records are located through a sparse index of every INDEX_INTERVAL-th position
+    private static final class Segment {
+        final Path file;
+        final long baseOffset;
+        FileChannel channel;          // open for appends while this is the active segment
+        volatile long size;           // bytes of complete records
+        volatile int count;           // records
+        int[] index = new int[16];    // position of record i * INDEX_INTERVAL
+        private MappedByteBuffer mapped;
+
+        Segment(Path file, long baseOffset) {
+            this.file = file;
+            this.baseOffset = baseOffset;
+        }
+
+        void indexRecord(int position) {
+            if (count % INDEX_INTERVAL == 0) {
+                int slot = count / INDEX_INTERVAL;
+                if (slot == index.length) index = Arrays.copyOf(index, slot * 2);
+                index[slot] = position;
+            }
+            count++;
+        }
+
+        // A read-only mapping covering at least the complete records, made on the first read. The active segment
+        // is mapped at its full size through its own channel, which grows the file to that size; once sealed, a
+        // segment keeps that mapping, and only one mapped while sealed, or a record larger than a segment, needs
+        // a mapping of just the records.
+        synchronized ByteBuffer view(long limit, long segmentBytes) throws IOException {
+            if (mapped == null || mapped.capacity() < limit) {
+                mapped = channel != null ? channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(segmentBytes, limit)) : map(file, limit);
+            }
+            return mapped.duplicate().limit((int) limit);
+        }
+
+        // Under the segment's lock, so a read never maps through a channel being closed
+        synchronized void seal() throws IOException {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+
+        static MappedByteBuffer map(Path file, long limit) throws IOException {
+            try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+                return reader.map(FileChannel.MapMode.READ_ONLY, 0, limit);
+            }
+        }
+    }
+
+    private final class LogStream {
+        private final Path dir;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<Segment> segments = new ArrayList<>();
+        private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        private final CRC32C crc = new CRC32C();
+        private final long openedEnd;
+
+        // Reopens existing segments, rebuilding their indexes and cutting off a torn last record
+        LogStream(Path dir) throws IOException {
+            this.dir = Files.createDirectories(dir);
+            List<Path> files = new ArrayList<>();
+            try (Stream<Path> listing = Files.list(dir)) {
+                listing.filter(f -> f.getFileName().toString().endsWith(".log")).forEach(files::add);
+            }
+            files.sort(Comparator.naturalOrder());
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.add(recover(new Segment(file, Long.parseLong(name.substring(0, name.length() - 4)))));
+            }
+            if (segments.isEmpty()) segments.add(new Segment(segmentFile(0), 0));
+            Segment active = segments.get(segments.size() - 1);
+            active.channel = FileChannel.open(active.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            active.channel.truncate(active.size);
+            active.channel.position(active.size);
+            openedEnd = active.baseOffset + active.count;
+            applyRetention(); // the flusher's passes only cover streams already open
+        }
+
+        // Scans through a mapping of its own, which is dropped afterwards; the segment is mapped again when read
+        private Segment recover(Segment segment) throws IOException {
+            long length = Files.size(segment.file);
+            if (length == 0) return segment;
+            ByteBuffer data = Segment.map(segment.file, length);
+            CRC32C check = new CRC32C();
+            int position = 0;
+            while (position + RECORD_HEADER <= length) {
+                int recordLength = data.getInt(position);
+                if (recordLength < 0 || position + RECORD_HEADER + (long) recordLength > length) break;
+                if (data.getLong(position + 8) == 0) break; // the unwritten rest of a segment that was active
+                check.reset();
+                check.update(data.duplicate().position(position + RECORD_HEADER).limit(position + RECORD_HEADER + recordLength));
+                if ((int) check.getValue() != data.getInt(position + 4)) break;
+                segment.indexRecord(position);
+                position += RECORD_HEADER + recordLength;
+            }
+            segment.size = position;
+            return segment;
+        }
+
+        long append(byte[] payload) throws IOException {
+            lock.lock();
+            try {
+                Segment active = segments.get(segments.size() - 1);
+                if (active.size > 0 && active.size + RECORD_HEADER + payload.length > segmentBytes) active = roll(active);
+
+                crc.reset();
+                crc.update(payload);
+                header.clear();
+                header.putInt(payload.length).putInt((int) crc.getValue()).putLong(System.currentTimeMillis()).flip();
+                ByteBuffer[] record = {header, ByteBuffer.wrap(payload)};
+                long remaining = RECORD_HEADER + payload.length;
+                while (remaining > 0) {
+                    remaining -= active.channel.write(record);
+                }
+
+                active.indexRecord((int) active.size);
+                active.size += RECORD_HEADER + payload.length;
+                return active.baseOffset + active.count - 1;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Seals the active segment (fsynced, so nothing older than the active segment is ever dirty). It keeps the
+        // unwritten rest of its mapping, if it was read, which recovery stops at.
+        private Segment roll(Segment active) throws IOException {
+            active.seal();
+            Segment next = new Segment(segmentFile(active.baseOffset + active.count), active.baseOffset + active.count);
+            next.channel = FileChannel.open(next.file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.add(next);
+            return next;
+        }
+
+        void force() {
+            lock.lock();
+            try {
+                FileChannel channel = segments.get(segments.size() - 1).channel;
+                if (channel != null) channel.force(false);
+            } catch (IOException e) {
+                System.err.println("Error syncing message log: " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Drops sealed segments whose newest record is older than the retention period
+        void applyRetention() {
+            long cutoff = System.currentTimeMillis() - retentionMillis;
+            lock.lock();
+            try {
+                while (segments.size() > 1 && segments.get(0).file.toFile().lastModified() < cutoff) {
+                    Files.deleteIfExists(segments.remove(0).file);
+                }
+            } catch (IOException e) {
+                System.err.println("Error applying log retention: " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long end() {
+            lock.lock();
+            try {
+                Segment active = segments.get(segments.size() - 1);
+                return active.baseOffset + active.count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long read(long fromOffset, int limit, RecordVisitor visitor) throws IOException {
+            // Snapshot under the lock; the records themselves are read from the mappings without it
+            List<Segment> snapshot;
+            long[] sizes;
+            int[] counts;
+            lock.lock();
+            try {
+                snapshot = new ArrayList<>(segments);
+                sizes = new long[snapshot.size()];
+                counts = new int[snapshot.size()];
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = snapshot.get(i).size;
+                    counts[i] = snapshot.get(i).count;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            Segment last = snapshot.get(snapshot.size() - 1);
+            long end = last.baseOffset + counts[counts.length - 1];
+            long offset = fromOffset < 0 ? end - limit : fromOffset;
+            offset = Math.max(offset, snapshot.get(0).baseOffset);
+
+            for (int i = 0; i < snapshot.size() && limit > 0 && offset < end; i++) {
+                Segment segment = snapshot.get(i);
+                if (offset >= segment.baseOffset + counts[i] || sizes[i] == 0) continue;
+
+                ByteBuffer data = segment.view(sizes[i], segmentBytes);
+                int record = (int) (offset - segment.baseOffset);
+                int position = segment.index[record / INDEX_INTERVAL];
+                for (int skip = record % INDEX_INTERVAL; skip > 0; skip--) {
+                    position += RECORD_HEADER + data.getInt(position);
+                }
+                for (; record < counts[i] && limit > 0; record++, limit--, offset++) {
+                    int length = data.getInt(position);
+                    long timestamp = data.getLong(position + 8);
+                    visitor.visit(offset, timestamp, data.duplicate().position(position + RECORD_HEADER).limit(position + RECORD_HEADER + length));
+                    position += RECORD_HEADER + length;
+                }
+            }
+            return offset;
+        }
+
+        private Path segmentFile(long baseOffset) {
+            return dir.resolve(String.format("%020d.log", baseOffset));
+        }
+    }
+}
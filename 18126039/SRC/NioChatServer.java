@@ -0,0 +1,379 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Selector-based engine: a handful of event loops own all connections instead of one thread per client
+class NioChatServer {
+    private static final int MAX_LINE_LENGTH = 1 << 20;
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    NioChatServer(int port, int loopCount) {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            System.out.println("Server started on port: " + port + " (nio, " + loops.length + " event loops)");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                if (!RateLimits.admitConnection(channel)) continue;
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next++ % loops.length].register(channel);
+            }
+        }
+    }
+
+    static class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Connections with queued output, written once the keys of this tick are handled (or, with
+        // --max-batch-latency-us, once their oldest message has waited that long or a batch is full)
+        private final List<NioConnection> dirty = new ArrayList<>();
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    NioConnection connection = new NioConnection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    System.err.println("Could not register connection: " + e.getMessage());
+                    RateLimits.releaseConnection();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == this;
+        }
+
+        void flushLater(NioConnection connection) {
+            if (connection.flushDeadline != 0) return;
+            connection.flushDeadline = System.nanoTime() + OutboundQueue.MAX_BATCH_LATENCY_NANOS;
+            dirty.add(connection);
+        }
+
+        // Returns how long the next connection may still wait, in millis, or 0 when none is waiting
+        private long flushDirty() {
+            long now = System.nanoTime();
+            long wait = Long.MAX_VALUE;
+            for (Iterator<NioConnection> connections = dirty.iterator(); connections.hasNext(); ) {
+                NioConnection connection = connections.next();
+                if (now - connection.flushDeadline >= 0 || connection.pending.size() >= OutboundQueue.MAX_BATCH) {
+                    connections.remove();
+                    connection.flushDeadline = 0;
+                    connection.flushQuietly();
+                } else {
+                    wait = Math.min(wait, connection.flushDeadline - now);
+                }
+            }
+            // select() counts in millis, so on an idle loop the latency rounds up to one
+            return wait == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+        }
+
+        @Override
+        public void run() {
+            long wait = 0;
+            while (true) {
+                try {
+                    selector.select(wait);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) connection.onReadable();
+                            if (key.isValid() && key.isWritable()) connection.flush();
+                        } catch (IOException | RuntimeException e) {
+                            connection.close();
+                        }
+                    }
+                    wait = flushDirty();
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    static class NioConnection extends ChatServer.ClientConnection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(ChatServer.BUFFER_SIZE);
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private final BinaryProtocol.FrameReader frames = new BinaryProtocol.FrameReader();
+
+        private final OutboundQueue<Object> pending = new OutboundQueue<>();
+        // Queued buffers go out in one gathering write from batch[batchStart, batchEnd); a file
+        // region is streamed on its own, and next holds an item polled past the end of a batch
+        private final ByteBuffer[] batch = new ByteBuffer[OutboundQueue.MAX_BATCH];
+        private int batchStart;
+        private int batchEnd;
+        private ChatServer.FileRegion region;
+        private Object next;
+        private long flushDeadline; // nonzero while listed in the loop's dirty connections
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private boolean closeWhenFlushed;
+        private volatile boolean closed;
+        private boolean loggedIn;
+        private boolean authenticating; // reads are paused while the password is checked
+
+        // Text protocol FILE_TRANSFER: metadata, then a size line, then raw bytes into upload
+        private String[] fileMetadata;
+
+        NioConnection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        @Override
+        void enqueue(Object item) {
+            // Event loop threads must never wait, so the block policy degrades to disconnect for them
+            boolean mayBlock = !(Thread.currentThread() instanceof EventLoop);
+            if (!pending.offer(item, mayBlock)) {
+                System.err.println(username + " is not keeping up, disconnecting.");
+                OutboundQueue.discard(item);
+                close();
+                return;
+            }
+            if (closed) {
+                discardPending();
+                return;
+            }
+            if (loop.inLoop()) {
+                loop.flushLater(this);
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    flushScheduled.set(false);
+                    loop.flushLater(this);
+                });
+            }
+        }
+
+        @Override
+        int queued() {
+            return pending.size();
+        }
+
+        private void flushQuietly() {
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void flush() throws IOException {
+            if (closed) return;
+            while (true) {
+                if (batchStart < batchEnd) {
+                    long start = System.nanoTime();
+                    channel.write(batch, batchStart, batchEnd - batchStart);
+                    ServerMetrics.socketWriteNanos.record(System.nanoTime() - start);
+                    while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                        batch[batchStart++] = null;
+                    }
+                    if (batchStart < batchEnd) break;
+                    batchStart = batchEnd = 0;
+                } else if (region != null) {
+                    if (!region.writeTo(channel)) break;
+                    region.close();
+                    region = null;
+                } else {
+                    Object item = next != null ? next : pending.poll();
+                    next = null;
+                    if (item == null) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        if (closeWhenFlushed) close();
+                        return;
+                    }
+                    if (item instanceof ChatServer.FileRegion) {
+                        region = (ChatServer.FileRegion) item;
+                        continue;
+                    }
+                    batch[batchEnd++] = (ByteBuffer) item;
+                    while (batchEnd < batch.length && (item = pending.poll()) instanceof ByteBuffer) {
+                        batch[batchEnd++] = (ByteBuffer) item;
+                    }
+                    if (batchEnd < batch.length) next = item;
+                }
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        void onReadable() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            drain();
+        }
+
+        // Handles the buffered bytes, leaving whatever arrived behind a login line for after it
+        private void drain() throws IOException {
+            while (readBuffer.hasRemaining() && !closed && !authenticating) {
+                if (binary && loggedIn) {
+                    // Frames start after the login, which is a line even once the handshake is answered
+                    if (frames.read(readBuffer)) ChatServer.handleFrame(this, frames.opcode(), frames.payload());
+                } else if (upload != null) {
+                    upload.write(readBuffer);
+                    if (upload.isComplete()) finishUpload();
+                } else {
+                    readLineByte(readBuffer.get());
+                }
+            }
+            readBuffer.compact();
+        }
+
+        private void readLineByte(byte b) throws IOException {
+            if (b == '\n') {
+                int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                String text = new String(line, 0, length, StandardCharsets.UTF_8);
+                lineLength = 0;
+                onLine(text);
+            } else {
+                if (lineLength == line.length) {
+                    if (line.length >= MAX_LINE_LENGTH) throw new IOException("Line too long");
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLength++] = b;
+            }
+        }
+
+        private void onLine(String text) throws IOException {
+            if (!loggedIn) {
+                if (ChatServer.handshake(this, text)) return;
+                authenticating = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                ChatServer.login(this, text).thenAccept(accepted -> loop.execute(() -> onLogin(accepted)));
+            } else if (fileMetadata != null) {
+                startUpload(text);
+            } else {
+                ChatServer.handleCommand(this, text);
+            }
+        }
+
+        private void onLogin(boolean accepted) {
+            authenticating = false;
+            loggedIn = accepted;
+            if (closed) {
+                // The client went away while its password was checked
+                if (accepted) ChatServer.disconnect(this);
+                return;
+            }
+            try {
+                if (!accepted) {
+                    closeWhenFlushed = true;
+                    flush();
+                    return;
+                }
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                readBuffer.flip();
+                drain();
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        @Override
+        void receiveFile(String metadata) {
+            String[] parts = metadata.split(" ", 4);
+            if (parts.length < 4) {
+                send("FILE_ERROR Invalid file transfer metadata.");
+                return;
+            }
+            fileMetadata = parts;
+        }
+
+        private void startUpload(String sizeLine) {
+            String[] parts = fileMetadata;
+            fileMetadata = null;
+            try {
+                upload = ChatServer.FileUpload.start(this, parts[1], parts[2], parts[3], Long.parseLong(sizeLine.trim()));
+                if (upload.isComplete()) finishUpload();
+            } catch (Exception e) {
+                send("FILE_ERROR " + e.getMessage());
+            }
+        }
+
+        private void finishUpload() {
+            ChatServer.FileUpload finished = upload;
+            upload = null;
+            finished.finish(this);
+        }
+
+        @Override
+        void close() {
+            if (!loop.inLoop()) {
+                loop.execute(this::close);
+                return;
+            }
+            if (closed) return;
+            closed = true;
+            RateLimits.releaseConnection();
+            try {
+                if (key != null) key.cancel();
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing connection: " + e.getMessage());
+            }
+            if (upload != null) upload.abort();
+            OutboundQueue.discard(region);
+            OutboundQueue.discard(next);
+            Arrays.fill(batch, null);
+            discardPending();
+            if (loggedIn) ChatServer.disconnect(this);
+        }
+
+        private void discardPending() {
+            Object item;
+            while ((item = pending.poll()) != null) {
+                OutboundQueue.discard(item);
+            }
+        }
+    }
+}
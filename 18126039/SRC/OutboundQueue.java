@@ -0,0 +1,69 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.*;
+
+// Bounded per-connection queue between fan-out and the connection's writer. Senders only ever
+// enqueue here; what happens when a reader falls behind is decided by the slow-consumer policy:
+//   --slow-consumer=drop-oldest | disconnect | block   (--outbound-capacity, --block-timeout-ms)
+// Writers drain it in batches of up to MAX_BATCH buffers per gathering write; --max-batch-latency-us
+// lets a writer hold a short batch that long for more messages (0, the default, writes what is queued).
+class OutboundQueue<T> {
+    enum Policy { DROP_OLDEST, DISCONNECT, BLOCK }
+
+    static final Policy POLICY = Policy.valueOf(ChatServer.option("slow-consumer", "drop-oldest").toUpperCase().replace('-', '_'));
+    static final int CAPACITY = Integer.parseInt(ChatServer.option("outbound-capacity", "1024"));
+    static final long BLOCK_TIMEOUT_MILLIS = Long.parseLong(ChatServer.option("block-timeout-ms", "1000"));
+    static final int MAX_BATCH = 64;
+    static final long MAX_BATCH_LATENCY_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(ChatServer.option("max-batch-latency-us", "0")));
+
+    private final BlockingQueue<T> queue = new ArrayBlockingQueue<>(CAPACITY);
+
+    // Returns false when the consumer is too slow and its connection should be dropped
+    boolean offer(T item, boolean mayBlock) {
+        if (queue.offer(item)) return true;
+
+        switch (POLICY) {
+            case DROP_OLDEST:
+                while (!queue.offer(item)) {
+                    discard(queue.poll());
+                }
+                return true;
+            case BLOCK:
+                if (!mayBlock) return false;
+                try {
+                    return queue.offer(item, BLOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            default:
+                return false;
+        }
+    }
+
+    // Items that hold resources (spooled file regions) are released when they are dropped unsent
+    static void discard(Object item) {
+        if (item instanceof Closeable) {
+            try {
+                ((Closeable) item).close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    T poll() {
+        return queue.poll();
+    }
+
+    T poll(long nanos) throws InterruptedException {
+        return queue.poll(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    int size() {
+        return queue.size();
+    }
+}
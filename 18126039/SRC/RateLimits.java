@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Admission control: token buckets per connection (commands, bytes of commands, file transfers) and per
+// group (messages), and caps on open connections and on file spools in flight. A client over a limit is
+// told so, "RATE_LIMITED <retry after ms> <reason>" or "SERVER_BUSY <reason>", and what it sent is dropped.
+//   --rate-messages=20 --burst-messages=40        commands per second, per connection
+//   --rate-bytes=65536 --burst-bytes=262144       bytes of commands and messages per second, per connection
+//   --rate-files-per-minute=30 --burst-files=10   uploads and shares, per connection
+//   --group-rate-messages=200 --group-burst-messages=400
+//   --max-connections=10000 --max-spools=64       (any of them 0 for no limit)
+//   --max-transfer-connections=256                sockets open on the chunked transfer channel
+// A bucket is one AtomicLong, so taking from it is a compare-and-set with no lock and no allocation.
+class RateLimits {
+    static final long MESSAGE_NANOS = perSecond("rate-messages", "20");
+    static final long MESSAGE_BURST = Long.parseLong(ChatServer.option("burst-messages", "40"));
+    static final long BYTE_NANOS = perSecond("rate-bytes", "65536");
+    static final long BYTE_BURST = Long.parseLong(ChatServer.option("burst-bytes", "262144"));
+    static final long FILE_NANOS = interval(TimeUnit.MINUTES.toNanos(1), ChatServer.option("rate-files-per-minute", "30"));
+    static final long FILE_BURST = Long.parseLong(ChatServer.option("burst-files", "10"));
+    static final long GROUP_MESSAGE_NANOS = perSecond("group-rate-messages", "200");
+    static final long GROUP_MESSAGE_BURST = Long.parseLong(ChatServer.option("group-burst-messages", "400"));
+    static final int MAX_CONNECTIONS = Integer.parseInt(ChatServer.option("max-connections", "10000"));
+    static final int MAX_SPOOLS = Integer.parseInt(ChatServer.option("max-spools", "64"));
+    static final int MAX_TRANSFER_CONNECTIONS = Integer.parseInt(ChatServer.option("max-transfer-connections", "256"));
+
+    private static final AtomicInteger connections = new AtomicInteger();
+    private static final AtomicInteger transferConnections = new AtomicInteger();
+    private static final AtomicInteger spools = new AtomicInteger();
+
+    private static long perSecond(String name, String defaultRate) {
+        return interval(TimeUnit.SECONDS.toNanos(1), ChatServer.option(name, defaultRate));
+    }
+
+    // Nanoseconds per token; 0 when the limit is off
+    private static long interval(long period, String rate) {
+        long perPeriod = Long.parseLong(rate);
+        return perPeriod <= 0 ? 0 : Math.max(1, period / perPeriod);
+    }
+
+    // Generic cell rate algorithm: rather than a token count refilled by a timer, the bucket keeps the
+    // time at which it will be full again. Taking tokens pushes that time out by their cost; it is
+    // allowed while the result stays within burst tokens of now.
+    static final class TokenBucket {
+        private final long nanosPerToken;
+        private final long burstNanos;
+        private final AtomicLong fullAt;
+
+        TokenBucket(long nanosPerToken, long burst) {
+            this.nanosPerToken = nanosPerToken;
+            this.burstNanos = nanosPerToken * Math.max(1, burst);
+            this.fullAt = new AtomicLong(System.nanoTime());
+        }
+
+        // 0 when the tokens were taken, otherwise how many nanoseconds until they could be.
+        // More tokens than the burst holds are charged as a full burst, so a large message is not refused forever.
+        long take(long tokens) {
+            if (nanosPerToken == 0) return 0;
+            long cost = tokens >= burstNanos / nanosPerToken ? burstNanos : tokens * nanosPerToken;
+            while (true) {
+                long now = System.nanoTime();
+                long current = fullAt.get();
+                long next = (current - now > 0 ? current : now) + cost;
+                long wait = next - now - burstNanos;
+                if (wait > 0) return wait;
+                if (fullAt.compareAndSet(current, next)) return 0;
+            }
+        }
+    }
+
+    // A connection's own buckets
+    static final class ConnectionLimits {
+        final TokenBucket messages = new TokenBucket(MESSAGE_NANOS, MESSAGE_BURST);
+        final TokenBucket bytes = new TokenBucket(BYTE_NANOS, BYTE_BURST);
+        final TokenBucket files = new TokenBucket(FILE_NANOS, FILE_BURST);
+        long quietUntil = System.nanoTime(); // nanoTime until which further refusals are not announced again
+    }
+
+    static TokenBucket groupMessages() {
+        return new TokenBucket(GROUP_MESSAGE_NANOS, GROUP_MESSAGE_BURST);
+    }
+
+    // False when taking from the bucket would exceed its rate. The client is told once per retry
+    // interval, so a flood that ignores the first RATE_LIMITED does not also flood its own outbound queue.
+    static boolean take(ChatServer.ClientConnection client, TokenBucket bucket, long tokens, ServerMetrics.Limit limit, String reason) {
+        long wait = bucket.take(tokens);
+        if (wait == 0) return true;
+        ServerMetrics.limited(limit);
+        long now = System.nanoTime();
+        if (now - client.limits.quietUntil >= 0) {
+            client.limits.quietUntil = now + wait;
+            client.send("RATE_LIMITED " + Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)) + " " + reason);
+        }
+        return false;
+    }
+
+    // Counts an accepted socket, or turns it away with SERVER_BUSY and closes it when the server is full
+    static boolean admitConnection(SocketChannel channel) {
+        return admit(channel, connections, MAX_CONNECTIONS, ServerMetrics.Limit.CONNECTIONS, "SERVER_BUSY Too many connections, please try again later.");
+    }
+
+    static void releaseConnection() {
+        if (MAX_CONNECTIONS > 0) connections.decrementAndGet();
+    }
+
+    // The same for the transfer channel, whose sockets are counted apart from chat connections
+    static boolean admitTransfer(SocketChannel channel) {
+        return admit(channel, transferConnections, MAX_TRANSFER_CONNECTIONS, ServerMetrics.Limit.TRANSFERS, "ERROR Too many transfers, please try again later.");
+    }
+
+    static void releaseTransfer() {
+        if (MAX_TRANSFER_CONNECTIONS > 0) transferConnections.decrementAndGet();
+    }
+
+    private static boolean admit(SocketChannel channel, AtomicInteger count, int max, ServerMetrics.Limit limit, String refusal) {
+        if (max <= 0 || count.incrementAndGet() <= max) return true;
+        count.decrementAndGet();
+        ServerMetrics.limited(limit);
+        try (SocketChannel refused = channel) {
+            // Still a blocking channel here, and one short line fits any socket buffer
+            refused.write(ByteBuffer.wrap((refusal + "\n").getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException ignored) {
+        }
+        return false;
+    }
+
+    static int connections() {
+        return connections.get();
+    }
+
+    // An upload about to spool a file; false when MAX_SPOOLS uploads and relays are already in flight
+    static boolean acquireSpool() {
+        if (MAX_SPOOLS <= 0 || spools.incrementAndGet() <= MAX_SPOOLS) return true;
+        spools.decrementAndGet();
+        ServerMetrics.limited(ServerMetrics.Limit.SPOOLS);
+        return false;
+    }
+
+    // A relay of a file that was already admitted as an upload, counted but never refused
+    static void holdSpool() {
+        if (MAX_SPOOLS > 0) spools.incrementAndGet();
+    }
+
+    static void releaseSpool() {
+        if (MAX_SPOOLS > 0) spools.decrementAndGet();
+    }
+
+    static int spools() {
+        return spools.get();
+    }
+}
@@ -0,0 +1,406 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Inverted index over the message log, behind SEARCH. Each word of a message body (lower-cased) and
+// from:<sender> map to postings: the record offsets of that stream's matching messages, stored as varint
+// deltas in blocks of 128 with each block's first offset kept aside. Queries intersect postings newest
+// first, skipping whole blocks, and a phrase is found through its words and then checked against the
+// message itself. One background thread reads new records back from the log and indexes them.
+// Postings are kept in generations; past --search-index-mb the oldest generation is dropped, so search
+// then reaches back as far as the memory allows.
+//   Query: words, "quoted phrases" and from:<username>, all of which must match
+class SearchIndex implements Closeable {
+    private static final int BLOCK = 128;
+    private static final int MAX_TERM_LENGTH = 40;
+    private static final int ENTRY_OVERHEAD = 160; // map entry, key and Postings objects, roughly
+    static final int MAX_CANDIDATES = 1000;        // messages one request checks against the log
+
+    private final long budget;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ArrayDeque<Generation> generations = new ArrayDeque<>(); // oldest first
+    private long bytes;
+    private final Map<String, Long> indexedUpTo = new HashMap<>(); // last offset indexed, per stream
+    private final Set<String> pending = ConcurrentHashMap.newKeySet(); // streams appended to since the indexer last read them
+    private final Semaphore wakeup = new Semaphore(0);
+    private MessageLog log;
+    private Thread indexer;
+    private volatile boolean closed;
+
+    interface Hits {
+        // Called newest first for each message whose words match; true when it matched in full and counts toward the page
+        boolean accept(long offset) throws IOException;
+    }
+
+    private static final class Generation {
+        final Map<String, Map<String, Postings>> streams = new HashMap<>(); // stream -> term -> postings
+        long bytes;
+    }
+
+    // Ascending offsets: varint deltas within a block, the first of each block in blockFirst
+    static final class Postings {
+        private byte[] data = new byte[8];
+        private int size;
+        private long[] blockFirst = new long[1];
+        private int[] blockStart = new int[1];
+        private int blocks;
+        private int count;
+        private long last = -1;
+
+        // Returns the bytes it grew by; repeats of the last offset are ignored
+        int add(long offset) {
+            if (offset <= last) return 0;
+            int grown = 0;
+            if (count % BLOCK == 0) {
+                if (blocks == blockFirst.length) {
+                    grown += blocks * 12;
+                    blockFirst = Arrays.copyOf(blockFirst, blocks * 2);
+                    blockStart = Arrays.copyOf(blockStart, blocks * 2);
+                }
+                blockFirst[blocks] = offset;
+                blockStart[blocks] = size;
+                blocks++;
+            } else {
+                if (size + 10 > data.length) {
+                    grown += data.length;
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                for (long delta = offset - last; ; delta >>>= 7) {
+                    if (delta < 0x80) {
+                        data[size++] = (byte) delta;
+                        break;
+                    }
+                    data[size++] = (byte) (delta | 0x80);
+                }
+            }
+            last = offset;
+            count++;
+            return grown;
+        }
+
+        int count() {
+            return count;
+        }
+
+        // Index of the last block starting at or before offset, or -1
+        int blockFor(long offset) {
+            int low = 0;
+            int high = blocks - 1;
+            if (high < 0 || blockFirst[0] > offset) return -1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (blockFirst[mid] <= offset) low = mid;
+                else high = mid - 1;
+            }
+            return low;
+        }
+
+        int decode(int block, long[] out) {
+            int end = block + 1 < blocks ? blockStart[block + 1] : size;
+            long offset = blockFirst[block];
+            out[0] = offset;
+            int n = 1;
+            int position = blockStart[block];
+            while (position < end) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                offset += delta;
+                out[n++] = offset;
+            }
+            return n;
+        }
+    }
+
+    // Walks one term's postings downwards, decoding a block only when it is reached
+    private static final class Cursor {
+        final Postings postings;
+        private final long[] offsets = new long[BLOCK];
+        private int block = -1;
+        private int n;
+
+        Cursor(Postings postings) {
+            this.postings = postings;
+        }
+
+        // Largest offset at or below target, or -1
+        long floor(long target) {
+            int b = target < 0 ? -1 : postings.blockFor(target);
+            if (b < 0) return -1;
+            if (b != block) {
+                n = postings.decode(b, offsets);
+                block = b;
+            }
+            int low = 0;
+            int high = n - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (offsets[mid] <= target) low = mid;
+                else high = mid - 1;
+            }
+            return offsets[low];
+        }
+    }
+
+    static final class Query {
+        final List<String> terms = new ArrayList<>();         // distinct, including from:<sender>
+        final List<List<String>> phrases = new ArrayList<>(); // only those of two words or more
+
+        // True when the message also holds every phrase, word for word
+        boolean matches(String message) {
+            if (phrases.isEmpty()) return true;
+            List<String> words = words(body(message));
+            for (List<String> phrase : phrases) {
+                if (Collections.indexOfSubList(words, phrase) < 0) return false;
+            }
+            return true;
+        }
+    }
+
+    SearchIndex(long budgetBytes) {
+        this.budget = budgetBytes;
+        generations.add(new Generation());
+    }
+
+    // Indexes what the log already holds, then catches up with each stream that changed() reports, on a
+    // background thread. The indexer reads the records back from the log, so appends never wait for it.
+    void start(MessageLog log) {
+        this.log = log;
+        pending.addAll(log.streamNames());
+        wakeup.release();
+        indexer = new Thread(this::indexLoop, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    // Called after appending to a stream
+    void changed(String stream) {
+        if (pending.add(stream)) wakeup.release();
+    }
+
+    private void indexLoop() {
+        try {
+            while (!closed) {
+                wakeup.acquire();
+                for (String stream : pending) {
+                    // Removed before reading, so an append made during the read marks the stream again
+                    pending.remove(stream);
+                    catchUp(stream);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closing
+        }
+    }
+
+    private void catchUp(String stream) {
+        try {
+            while (!closed) {
+                long from = indexedUpTo.getOrDefault(stream, -1L) + 1;
+                long next;
+                lock.writeLock().lock();
+                try {
+                    next = log.read(stream, from, 1000, (offset, timestamp, payload) ->
+                        index(stream, offset, StandardCharsets.UTF_8.decode(payload.duplicate()).toString()));
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                if (next <= from) return;
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error indexing message log: " + e.getMessage());
+        }
+    }
+
+    // Indexes a message on the calling thread
+    void add(String stream, long offset, String message) {
+        lock.writeLock().lock();
+        try {
+            index(stream, offset, message);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void index(String stream, long offset, String message) {
+        Long upTo = indexedUpTo.get(stream);
+        if (upTo != null && offset <= upTo) return;
+        indexedUpTo.put(stream, offset);
+
+        Generation generation = generations.getLast();
+        Map<String, Postings> terms = generation.streams.computeIfAbsent(stream, name -> new HashMap<>());
+        String sender = sender(message);
+        if (sender != null) addPosting(generation, terms, "from:" + sender.toLowerCase(Locale.ROOT), offset);
+        for (String word : words(body(message))) {
+            addPosting(generation, terms, word, offset);
+        }
+
+        if (generation.bytes >= budget / 4) generations.add(new Generation());
+        while (bytes > budget && generations.size() > 1) {
+            bytes -= generations.removeFirst().bytes;
+        }
+    }
+
+    private void addPosting(Generation generation, Map<String, Postings> terms, String term, long offset) {
+        Postings postings = terms.get(term);
+        int grown = 0;
+        if (postings == null) {
+            postings = new Postings();
+            terms.put(term, postings);
+            grown = ENTRY_OVERHEAD + 2 * term.length();
+        }
+        grown += postings.add(offset);
+        generation.bytes += grown;
+        bytes += grown;
+    }
+
+    // Up to limit matching messages below before (negative: from the newest), newest first. Returns the
+    // offset to pass as before for the next page, or -1 when nothing older matches. A page stops after
+    // MAX_CANDIDATES messages whose words matched, so a rare phrase can give a short page that continues there.
+    long search(String stream, Query query, long before, int limit, Hits hits) throws IOException {
+        long cursor = before < 0 ? Long.MAX_VALUE : before;
+        long[] batch = new long[Math.min(Math.max(16, limit), MAX_CANDIDATES)];
+        int found = 0;
+        int examined = 0;
+        while (true) {
+            // Candidates are gathered under the lock and checked outside it, so the indexer never waits on a reader's I/O
+            int n = candidates(stream, query, cursor, batch);
+            for (int i = 0; i < n; i++) {
+                cursor = batch[i];
+                if ((hits.accept(cursor) && ++found == limit) || ++examined == MAX_CANDIDATES) return cursor;
+            }
+            if (n < batch.length) return -1;
+        }
+    }
+
+    private int candidates(String stream, Query query, long before, long[] out) {
+        lock.readLock().lock();
+        try {
+            int n = 0;
+            long candidate = before - 1;
+            for (Iterator<Generation> newestFirst = generations.descendingIterator(); newestFirst.hasNext() && n < out.length; ) {
+                Cursor[] cursors = cursors(newestFirst.next(), stream, query);
+                if (cursors == null) continue;
+                next:
+                while (n < out.length) {
+                    for (Cursor cursor : cursors) {
+                        long offset = cursor.floor(candidate);
+                        if (offset < 0) break next;
+                        if (offset < candidate) {
+                            candidate = offset;
+                            continue next;
+                        }
+                    }
+                    out[n++] = candidate--;
+                }
+            }
+            return n;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Rarest term first, so it leads the intersection; null when some term has no postings here
+    private static Cursor[] cursors(Generation generation, String stream, Query query) {
+        Map<String, Postings> terms = generation.streams.get(stream);
+        if (terms == null) return null;
+        Cursor[] cursors = new Cursor[query.terms.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            Postings postings = terms.get(query.terms.get(i));
+            if (postings == null) return null;
+            cursors[i] = new Cursor(postings);
+        }
+        Arrays.sort(cursors, Comparator.comparingInt(cursor -> cursor.postings.count()));
+        return cursors;
+    }
+
+    long memoryBytes() {
+        lock.readLock().lock();
+        try {
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static Query parse(String text) {
+        Query query = new Query();
+        Set<String> terms = new LinkedHashSet<>();
+        String[] parts = text.split("\"", -1);
+        for (int i = 0; i < parts.length; i++) {
+            if (i % 2 == 1) {
+                // Inside quotes: a phrase, found through its words
+                List<String> phrase = words(parts[i]);
+                terms.addAll(phrase);
+                if (phrase.size() > 1) query.phrases.add(phrase);
+                continue;
+            }
+            for (String token : parts[i].trim().split("\\s+")) {
+                if (token.regionMatches(true, 0, "from:", 0, 5) && token.length() > 5) {
+                    terms.add("from:" + token.substring(5).toLowerCase(Locale.ROOT));
+                } else {
+                    terms.addAll(words(token));
+                }
+            }
+        }
+        query.terms.addAll(terms);
+        return query;
+    }
+
+    // "alice: hi", "[Group team] alice: hi" and "[DM alice -> bob] hi" are all from alice
+    static String sender(String message) {
+        int[] span = senderSpan(message);
+        return span == null ? null : message.substring(span[0], span[1]);
+    }
+
+    // What was said, without the sender or the group or DM prefix
+    static String body(String message) {
+        int[] span = senderSpan(message);
+        return span == null ? message : message.substring(span[2]);
+    }
+
+    // {sender start, sender end, body start}, or null when the message names no sender
+    private static int[] senderSpan(String message) {
+        if (message.startsWith("[DM ")) {
+            int arrow = message.indexOf(" -> ");
+            int close = message.indexOf("] ", arrow);
+            return arrow > 4 && close > arrow ? new int[] {4, arrow, close + 2} : null;
+        }
+        int start = 0;
+        if (message.startsWith("[Group ")) {
+            start = message.indexOf("] ") + 2;
+            if (start < 2) return null;
+        }
+        int colon = message.indexOf(": ", start);
+        return colon > start ? new int[] {start, colon, colon + 2} : null;
+    }
+
+    // Lower-cased runs of letters and digits; longer ones are cut at MAX_TERM_LENGTH
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < MAX_TERM_LENGTH) word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (indexer != null) indexer.interrupt();
+    }
+}
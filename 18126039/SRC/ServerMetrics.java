@@ -0,0 +1,181 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Counters and histograms recorded on the server's hot paths, served as Prometheus text from
+// http://127.0.0.1:<metrics port>/metrics.   --metrics-port=<port + 2, 0 disables>
+// Recording only touches LongAdders, which stripe under contention, so no thread ever waits on another;
+// gauges such as connection counts and queue depths are read when the endpoint is scraped.
+class ServerMetrics {
+    enum Command { LOGIN, REGISTER, BROADCAST, GROUP_MSG, DIRECT_MSG, GROUP_CREATE, GROUP_JOIN, GROUP_LEAVE, GROUP_DELETE, HISTORY, SEARCH, FILE_UPLOAD, FILE_SHARE }
+
+    // Fan-out kinds: what a delivered message was
+    enum Delivery { BROADCAST, GROUP_MSG, DIRECT, FILE, NOTICE }
+
+    // Admission limits (RateLimits) that turned something away
+    enum Limit { MESSAGES, BYTES, FILES, GROUP, CONNECTIONS, SPOOLS, TRANSFERS }
+
+    private static final LongAdder[] commands = adders(Command.values().length);
+    private static final LongAdder[] deliveries = adders(Delivery.values().length);
+    private static final LongAdder[] limited = adders(Limit.values().length);
+    static final LongAdder connectionsAccepted = new LongAdder();
+    static final LongAdder loginsRefused = new LongAdder();
+    static final LongAdder fileBytesIn = new LongAdder();       // uploads over the chat connection
+    static final LongAdder fileBytesRelayed = new LongAdder();  // spooled files queued to recipients
+    static final LongAdder transferBytesIn = new LongAdder();   // chunks received on the transfer channel
+    static final LongAdder transferBytesOut = new LongAdder();  // chunks served on the transfer channel
+    static final LongAdder clusterFramesOut = new LongAdder();  // queued to peer nodes
+    static final LongAdder clusterFramesIn = new LongAdder();
+    static final LongAdder deflateBytesIn = new LongAdder();    // payloads compressed once, messages and file chunks
+    static final LongAdder deflateBytesOut = new LongAdder();   // what they compressed to
+    static final Histogram fanOutSize = new Histogram("chat_fanout_recipients", "Recipients per fanned-out message", 1, 0, 20);
+    static final Histogram socketWriteNanos = new Histogram("chat_socket_write_seconds", "Time spent in one (gathering) socket write", 1e9, 10, 34);
+
+    private static final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    private static final class Gauge {
+        final String name;
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String name, String help, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    static void command(Command command) {
+        commands[command.ordinal()].increment();
+    }
+
+    static void fanOut(Delivery kind, int recipients) {
+        deliveries[kind.ordinal()].add(recipients);
+        fanOutSize.record(recipients);
+    }
+
+    static void limited(Limit limit) {
+        limited[limit.ordinal()].increment();
+    }
+
+    static void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, value));
+    }
+
+    // Power-of-two buckets: bucket i counts values below 2^i, so recording is a bit count and one add.
+    // Buckets run from 2^minBucket to 2^maxBucket; le labels are divided by scale (ns -> seconds).
+    static final class Histogram {
+        private final String name;
+        private final String help;
+        private final double scale;
+        private final int minBucket;
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(String name, String help, double scale, int minBucket, int maxBucket) {
+            this.name = name;
+            this.help = help;
+            this.scale = scale;
+            this.minBucket = minBucket;
+            this.buckets = adders(maxBucket - minBucket + 2); // the last one is +Inf
+        }
+
+        void record(long value) {
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, value)) - minBucket;
+            buckets[Math.max(0, Math.min(bucket, buckets.length - 1))].increment();
+            sum.add(value);
+        }
+
+        void writeTo(StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i == buckets.length - 1 ? "+Inf" : format((1L << (i + minBucket)) / scale);
+                out.append(name).append("_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum ").append(format(sum.sum() / scale)).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Gauge gauge : gauges) {
+            header(out, gauge.name, gauge.help, "gauge");
+            out.append(gauge.name).append(' ').append(gauge.value.getAsLong()).append('\n');
+        }
+        header(out, "chat_commands_total", "Client commands handled, by type", "counter");
+        for (Command command : Command.values()) {
+            out.append("chat_commands_total{type=\"").append(command.name().toLowerCase(Locale.ROOT)).append("\"} ")
+                .append(commands[command.ordinal()].sum()).append('\n');
+        }
+        header(out, "chat_deliveries_total", "Messages queued to recipients by fan-out, by kind", "counter");
+        for (Delivery kind : Delivery.values()) {
+            out.append("chat_deliveries_total{kind=\"").append(kind.name().toLowerCase(Locale.ROOT)).append("\"} ")
+                .append(deliveries[kind.ordinal()].sum()).append('\n');
+        }
+        header(out, "chat_rejected_total", "Commands, uploads and connections turned away by a limit, by limit", "counter");
+        for (Limit limit : Limit.values()) {
+            out.append("chat_rejected_total{limit=\"").append(limit.name().toLowerCase(Locale.ROOT)).append("\"} ")
+                .append(limited[limit.ordinal()].sum()).append('\n');
+        }
+        counter(out, "chat_connections_accepted_total", "Logins accepted since startup", connectionsAccepted);
+        counter(out, "chat_logins_refused_total", "Logins and registrations turned away", loginsRefused);
+        counter(out, "chat_file_bytes_in_total", "File bytes uploaded over chat connections", fileBytesIn);
+        counter(out, "chat_file_bytes_relayed_total", "File bytes queued to recipients, once per recipient", fileBytesRelayed);
+        counter(out, "chat_transfer_bytes_in_total", "Chunk bytes received on the transfer channel", transferBytesIn);
+        counter(out, "chat_transfer_bytes_out_total", "Chunk bytes served on the transfer channel", transferBytesOut);
+        counter(out, "chat_cluster_frames_out_total", "Frames queued to peer nodes", clusterFramesOut);
+        counter(out, "chat_cluster_frames_in_total", "Frames received from peer nodes", clusterFramesIn);
+        counter(out, "chat_deflate_bytes_in_total", "Payload bytes compressed, once per message or file chunk", deflateBytesIn);
+        counter(out, "chat_deflate_bytes_out_total", "Compressed size of those payloads", deflateBytesOut);
+        fanOutSize.writeTo(out);
+        socketWriteNanos.writeTo(out);
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, LongAdder counter) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(counter.sum()).append('\n');
+    }
+
+    // Loopback only: the endpoint is for a local scraper or curl, not for clients
+    static void start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 16);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+    }
+}
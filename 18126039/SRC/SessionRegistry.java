@@ -0,0 +1,42 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Logged-in connections by username, so a direct message reaches its recipient with one hash lookup
+// instead of a scan of every connection. A user logged in from several places has one entry holding all
+// of their sessions. Entries are created and removed inside compute, so a login racing the last logout of
+// the same user never adds its session to a set that has just been dropped from the map.
+class SessionRegistry {
+    private final Map<String, Set<ChatServer.ClientConnection>> sessions = new ConcurrentHashMap<>();
+
+    // Usernames are matched case-insensitively, as the credential store does
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    void add(ChatServer.ClientConnection client) {
+        sessions.compute(key(client.getUsername()), (user, set) -> {
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            set.add(client);
+            return set;
+        });
+    }
+
+    // Also called for connections that never logged in, which have no entry
+    void remove(ChatServer.ClientConnection client) {
+        if (client.getUsername() == null) return;
+        sessions.computeIfPresent(key(client.getUsername()), (user, set) -> {
+            set.remove(client);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    // The user's sessions, empty when they are not logged in here; a live view, safe to iterate
+    Set<ChatServer.ClientConnection> get(String username) {
+        return sessions.getOrDefault(key(username), Collections.emptySet());
+    }
+
+    // Users with at least one session
+    int size() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// The client's file transfers, none of which run on the event dispatch thread. Transfers over the chunked
+// transfer channel run side by side on a small pool; uploads that go over the chat connection itself run
+// one at a time, since the server takes one upload per connection. A file streamed to this client over
+// the chat connection is written by a disk thread, so the thread reading the connection only copies each
+// chunk into one of IN_FLIGHT reused buffers and moves on; it is held back only when all of them are
+// waiting for the disk.
+// Every transfer counts its bytes, which the Transfers window and the status line read to show progress
+// and throughput.
+class TransferManager {
+    static final int CHUNK = 64 * 1024; // bytes per read, write and FILE_DATA frame
+    private static final int PARALLEL = 3;
+    private static final int IN_FLIGHT = 16;
+
+    interface IoTask {
+        void run(Transfer transfer) throws IOException;
+    }
+
+    interface ChunkSink {
+        void accept(ByteBuffer chunk) throws IOException;
+    }
+
+    // One upload or download. done is written by whichever thread moves the bytes; the rate fields are
+    // only touched by the event dispatch thread, which samples them.
+    static final class Transfer {
+        final String name;
+        final boolean upload;
+        final long size;
+        final long startNanos = System.nanoTime();
+        final AtomicLong done = new AtomicLong();
+        volatile long endNanos;
+        volatile String error;
+        private long sampledBytes;
+        private long sampledNanos = startNanos;
+        private double rate;
+
+        Transfer(String name, boolean upload, long size) {
+            this.name = name;
+            this.upload = upload;
+            this.size = size;
+        }
+
+        void progress(long bytes) {
+            done.set(bytes);
+        }
+
+        boolean finished() {
+            return endNanos != 0;
+        }
+
+        // Bytes per second since the previous sample, or over the whole transfer once it is finished
+        double sampleRate(long now) {
+            if (finished()) return done.get() / Math.max(1e-9, (endNanos - startNanos) / 1e9);
+            long bytes = done.get();
+            if (now - sampledNanos >= 250_000_000L) {
+                rate = (bytes - sampledBytes) / ((now - sampledNanos) / 1e9);
+                sampledBytes = bytes;
+                sampledNanos = now;
+            }
+            return rate;
+        }
+
+        String describe(long now) {
+            String state = error != null ? "failed: " + error
+                : finished() ? "done in " + String.format("%.1f s", (endNanos - startNanos) / 1e9)
+                : size > 0 ? (done.get() * 100 / size) + "%" : "starting";
+            return (upload ? "Sending " : "Receiving ") + name + "  " + megabytes(done.get()) + " of " + megabytes(size)
+                + "  " + megabytes((long) sampleRate(now)) + "/s  " + state;
+        }
+    }
+
+    private final Consumer<String> report; // where start, completion and failure lines go
+    private final List<Transfer> transfers = new CopyOnWriteArrayList<>();
+    private final ExecutorService parallel = pool(PARALLEL, "file-transfer");
+    private final ExecutorService sequential = pool(1, "chat-upload");
+    private final ExecutorService disk = pool(1, "file-writer");
+    private final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(IN_FLIGHT); // free chunk buffers, filled lazily
+    private int allocated; // buffers created so far; only the thread reading the connection touches it
+
+    TransferManager(Consumer<String> report) {
+        this.report = report;
+    }
+
+    private static ExecutorService pool(int threads, String name) {
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static String megabytes(long bytes) {
+        return String.format("%.1f MB", bytes / 1e6);
+    }
+
+    // Runs task on the transfer pool, or behind the other chat-connection uploads when sequential.
+    // success is the line reported when it completes; a failure reports the exception instead.
+    Transfer start(String name, boolean upload, long size, boolean sequential, String success, IoTask task) {
+        Transfer transfer = new Transfer(name, upload, size);
+        transfers.add(transfer);
+        report.accept((upload ? "Sending file: " : "Receiving file: ") + name + " (" + megabytes(size) + ")...");
+        (sequential ? this.sequential : parallel).execute(() -> {
+            try {
+                task.run(transfer);
+                transfer.endNanos = System.nanoTime();
+                report.accept(success);
+            } catch (IOException | RuntimeException e) {
+                transfer.error = e.getMessage();
+                transfer.endNanos = System.nanoTime();
+                report.accept("Error " + (upload ? "sending " : "receiving ") + name + ": " + e.getMessage());
+            }
+        });
+        return transfer;
+    }
+
+    // Hands file to sink in CHUNK-sized pieces read through a FileChannel, one reused buffer, counting each into transfer
+    static void readChunks(File file, Transfer transfer, ChunkSink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK);
+            long sent = 0;
+            while (true) {
+                chunk.clear();
+                while (chunk.hasRemaining() && channel.read(chunk) >= 0) {
+                    // fill the chunk, or up to the end of the file
+                }
+                if (chunk.position() == 0) return;
+                chunk.flip();
+                sink.accept(chunk);
+                sent += chunk.limit();
+                transfer.progress(sent);
+            }
+        }
+    }
+
+    // A file streamed to this client in chunks, written through a FileChannel on the disk thread.
+    // Only the thread reading the connection calls write and abort.
+    final class Receiver {
+        final Transfer transfer;
+        private final FileChannel channel;
+        private final String success;
+        private long received;
+        private volatile IOException failure;
+
+        private Receiver(Transfer transfer, FileChannel channel, String success) {
+            this.transfer = transfer;
+            this.channel = channel;
+            this.success = success;
+        }
+
+        boolean isComplete() {
+            return received == transfer.size;
+        }
+
+        long remaining() {
+            return transfer.size - received;
+        }
+
+        // Copies the bytes, so the caller's buffer can be reused at once; blocks only while the disk is IN_FLIGHT chunks behind
+        void write(ByteBuffer bytes) {
+            while (bytes.hasRemaining()) {
+                ByteBuffer copy = buffer();
+                int length = Math.min(bytes.remaining(), copy.capacity());
+                ByteBuffer piece = bytes.slice();
+                piece.limit(length);
+                copy.put(piece).flip();
+                bytes.position(bytes.position() + length);
+                long position = received;
+                received += length;
+                boolean last = isComplete();
+                disk.execute(() -> {
+                    try {
+                        if (failure == null) {
+                            long offset = position;
+                            while (copy.hasRemaining()) {
+                                offset += channel.write(copy, offset);
+                            }
+                            transfer.done.addAndGet(offset - position);
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    } finally {
+                        copy.clear();
+                        buffers.add(copy);
+                    }
+                    if (last) close(null);
+                });
+            }
+        }
+
+        // The connection ended before the file did
+        void abort(String reason) {
+            disk.execute(() -> close(reason));
+        }
+
+        // On the disk thread, after every chunk written before it
+        private void close(String reason) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+            transfer.endNanos = System.nanoTime();
+            if (failure != null || reason != null) {
+                transfer.error = failure != null ? failure.getMessage() : reason;
+                report.accept("Error receiving " + transfer.name + ": " + transfer.error);
+            } else {
+                report.accept(success);
+            }
+        }
+    }
+
+    // A free chunk buffer, waiting for the disk thread to return one once IN_FLIGHT are out
+    private ByteBuffer buffer() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null) return buffer;
+        if (allocated < IN_FLIGHT) {
+            allocated++;
+            return ByteBuffer.allocate(CHUNK);
+        }
+        while (true) {
+            try {
+                return buffers.take();
+            } catch (InterruptedException e) {
+                // keep waiting; the chunk must not be dropped
+            }
+        }
+    }
+
+    // Opens target for a file of size bytes arriving over the chat connection
+    Receiver receive(File target, long size, String success) throws IOException {
+        FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        Transfer transfer = new Transfer(target.getName(), false, size);
+        transfers.add(transfer);
+        report.accept("Receiving file: " + target.getName() + " (" + megabytes(size) + ")...");
+        Receiver receiver = new Receiver(transfer, channel, success);
+        if (size == 0) disk.execute(() -> receiver.close(null));
+        return receiver;
+    }
+
+    List<Transfer> transfers() {
+        return transfers;
+    }
+
+    // "2 transfers, 45%, 10.1 MB/s" over the unfinished ones, or "" when there are none; on the event thread
+    String summary() {
+        long now = System.nanoTime();
+        int active = 0;
+        long done = 0;
+        long size = 0;
+        double rate = 0;
+        for (Transfer transfer : transfers) {
+            if (transfer.finished()) continue;
+            active++;
+            done += transfer.done.get();
+            size += transfer.size;
+            rate += transfer.sampleRate(now);
+        }
+        if (active == 0) return "";
+        return active + (active == 1 ? " transfer, " : " transfers, ") + (size > 0 ? done * 100 / size : 0) + "%, " + megabytes((long) rate) + "/s";
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Separate port for chunked file transfers, so file bytes never queue behind or ahead of chat on the
+// chat socket. Chunks live in the BlobStore, manifests by file id (see ChunkedTransfer). Once a manifest
+// is complete the sender announces it in the chat with FILE_SHARE and recipients fetch it here. OFFER
+// doubles as the "already have it?" check: a file the store already holds comes back MISSING 0.
+// Only logged-in users may use it: a connection opens with the token its chat session was given in
+// TRANSFER_PORT, and is refused once that session ends. OFFER is charged to the session's file budget.
+//   TOKEN <token>                                               -> nothing, or ERROR <reason> and the connection closes
+//   OFFER <fileId> <size> <chunkSize>, one hash line per chunk  -> MISSING <n>, one index line each
+//   PUT <hash> <length>, then the bytes                         -> ACK <hash> | ERROR <reason>
+//   MANIFEST <fileId>                                           -> MANIFEST <size> <chunkSize>, one hash line per chunk
+//   GET <hash>                                                  -> DATA <length>, then the bytes | ERROR <reason>
+class TransferServer {
+    static final int MAX_CHUNK_SIZE = 8 << 20;
+    static final int MAX_CHUNKS = 1 << 16;
+    private static final int MAX_SESSION_CONNECTIONS = 16; // a client runs a few transfers at once, PARALLELISM connections each
+    private static final int IDLE_MILLIS = 60_000;
+
+    private final int port;
+    private final BlobStore blobs;
+    private final Path directory; // manifests
+    private final Executor executor;
+    private final Map<String, ChunkedTransfer.Manifest> manifests = new ConcurrentHashMap<>();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>(); // by token
+    private final SecureRandom random = new SecureRandom();
+
+    // A chat session allowed on the transfer channel
+    private static final class Session {
+        final ChatServer.ClientConnection client;
+        final AtomicInteger connections = new AtomicInteger();
+
+        Session(ChatServer.ClientConnection client) {
+            this.client = client;
+        }
+    }
+
+    TransferServer(int port, BlobStore blobs, Path directory, Executor executor) throws IOException {
+        this.port = port;
+        this.blobs = blobs;
+        this.directory = Files.createDirectories(directory);
+        this.executor = executor;
+    }
+
+    int port() {
+        return port;
+    }
+
+    // Binds now, so a taken port is reported at startup, and accepts on a daemon thread
+    void start() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        Thread acceptor = new Thread(() -> {
+            try (ServerSocketChannel channel = serverChannel) {
+                while (true) {
+                    SocketChannel client = channel.accept();
+                    if (!RateLimits.admitTransfer(client)) continue;
+                    executor.execute(() -> serve(client));
+                }
+            } catch (IOException e) {
+                System.err.println("Transfer server stopped: " + e.getMessage());
+            }
+        }, "transfer-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Transfer channel on port: " + port);
+    }
+
+    // A new token for a logged-in chat session, valid until revoked
+    String issue(ChatServer.ClientConnection client) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String token = ChunkedTransfer.hex(bytes);
+        sessions.put(token, new Session(client));
+        return token;
+    }
+
+    void revoke(String token) {
+        if (token != null) sessions.remove(token);
+    }
+
+    // The manifest of a fully uploaded file, or null while chunks are still missing
+    ChunkedTransfer.Manifest completeManifest(String fileId) {
+        ChunkedTransfer.Manifest manifest = manifest(fileId);
+        return manifest != null && missing(manifest).isEmpty() ? manifest : null;
+    }
+
+    private void serve(SocketChannel channel) {
+        try (Socket socket = channel.socket()) {
+            socket.setSoTimeout(IDLE_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+            String first = BinaryProtocol.readLine(in);
+            String token = first != null && first.startsWith("TOKEN ") ? first.substring("TOKEN ".length()) : null;
+            Session session = token == null ? null : sessions.get(token);
+            if (session == null) {
+                writeLine(out, "ERROR Not logged in.");
+                out.flush();
+                return;
+            }
+            try {
+                if (session.connections.incrementAndGet() > MAX_SESSION_CONNECTIONS) {
+                    writeLine(out, "ERROR Too many transfers, please try again later.");
+                    out.flush();
+                    return;
+                }
+                serve(channel, token, session, in, out);
+            } finally {
+                session.connections.decrementAndGet();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Transfer error: " + e.getMessage());
+        } finally {
+            RateLimits.releaseTransfer();
+        }
+    }
+
+    private void serve(SocketChannel channel, String token, Session session, DataInputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[0];
+        String line;
+        while ((line = BinaryProtocol.readLine(in)) != null) {
+            if (!sessions.containsKey(token)) {
+                writeLine(out, "ERROR Not logged in.");
+                out.flush();
+                return;
+            }
+            String[] parts = line.split(" ");
+            if (parts[0].equals("OFFER") && parts.length == 4) {
+                offer(session, parts[1], Long.parseLong(parts[2]), Integer.parseInt(parts[3]), in, out);
+            } else if (parts[0].equals("PUT") && parts.length == 3) {
+                int length = Integer.parseInt(parts[2]);
+                if (length < 0 || length > MAX_CHUNK_SIZE) throw new IOException("Invalid chunk length: " + length);
+                if (buffer.length < length) buffer = new byte[length];
+                in.readFully(buffer, 0, length);
+                ServerMetrics.transferBytesIn.add(length);
+                writeLine(out, put(parts[1], ByteBuffer.wrap(buffer, 0, length)));
+            } else if (parts[0].equals("MANIFEST") && parts.length == 2) {
+                ChunkedTransfer.Manifest manifest = completeManifest(parts[1]);
+                if (manifest == null) {
+                    writeLine(out, "ERROR Unknown file.");
+                } else {
+                    writeLine(out, "MANIFEST " + manifest.size + " " + manifest.chunkSize);
+                    for (String chunk : manifest.chunks) {
+                        writeLine(out, chunk);
+                    }
+                }
+            } else if (parts[0].equals("GET") && parts.length == 2) {
+                get(parts[1], out, channel);
+            } else {
+                writeLine(out, "ERROR Unknown command.");
+            }
+            out.flush();
+        }
+    }
+
+    private void offer(Session session, String fileId, long size, int chunkSize, DataInputStream in, OutputStream out) throws IOException {
+        if (size < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) throw new IOException("Invalid manifest");
+        if (size > (long) MAX_CHUNKS * chunkSize) throw new IOException("Manifest has too many chunks");
+        List<String> chunks = new ArrayList<>();
+        for (int i = ChunkedTransfer.Manifest.chunkCount(size, chunkSize); i > 0; i--) {
+            String chunk = BinaryProtocol.readLine(in);
+            if (!ChunkedTransfer.isHash(chunk)) throw new IOException("Invalid chunk hash");
+            chunks.add(chunk);
+        }
+        if (!RateLimits.take(session.client, session.client.limits.files, 1, ServerMetrics.Limit.FILES, "You are sending files too fast, that file was not uploaded.")) {
+            writeLine(out, "ERROR You are sending files too fast.");
+            return;
+        }
+        ChunkedTransfer.Manifest manifest = new ChunkedTransfer.Manifest(size, chunkSize, chunks);
+        if (!manifest.fileId.equals(fileId)) {
+            writeLine(out, "ERROR Manifest does not match file id.");
+            return;
+        }
+        if (manifests.putIfAbsent(fileId, manifest) == null) saveManifest(manifest);
+
+        List<Integer> missing = missing(manifest);
+        writeLine(out, "MISSING " + missing.size());
+        for (int index : missing) {
+            writeLine(out, String.valueOf(index));
+        }
+    }
+
+    private String put(String hash, ByteBuffer bytes) {
+        if (!ChunkedTransfer.isHash(hash)) return "ERROR Invalid chunk hash.";
+        try {
+            blobs.put(hash, bytes);
+            return "ACK " + hash;
+        } catch (IOException e) {
+            return "ERROR " + e.getMessage();
+        }
+    }
+
+    // Chunk bytes go from the blob to the socket with transferTo; the blob is pinned meanwhile
+    private void get(String hash, OutputStream out, SocketChannel channel) throws IOException {
+        Path blob = ChunkedTransfer.isHash(hash) ? blobs.acquire(hash) : null;
+        if (blob == null) {
+            writeLine(out, "ERROR Unknown chunk.");
+            return;
+        }
+        try (FileChannel chunk = FileChannel.open(blob, StandardOpenOption.READ)) {
+            long size = chunk.size();
+            writeLine(out, "DATA " + size);
+            out.flush();
+            for (long position = 0; position < size; ) {
+                position += chunk.transferTo(position, size - position, channel);
+            }
+            ServerMetrics.transferBytesOut.add(size);
+        } finally {
+            blobs.release(hash);
+        }
+    }
+
+    private List<Integer> missing(ChunkedTransfer.Manifest manifest) {
+        List<Integer> missing = new ArrayList<>();
+        for (int index = 0; index < manifest.chunks.size(); index++) {
+            if (!blobs.contains(manifest.chunks.get(index))) missing.add(index);
+        }
+        return missing;
+    }
+
+    // Manifests live on disk too, so an upload interrupted by a server restart still resumes
+    private ChunkedTransfer.Manifest manifest(String fileId) {
+        if (!ChunkedTransfer.isHash(fileId)) return null;
+        return manifests.computeIfAbsent(fileId, id -> {
+            Path file = directory.resolve(id + ".manifest");
+            if (!Files.exists(file)) return null;
+            try {
+                List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+                String[] header = lines.get(0).split(" ");
+                ChunkedTransfer.Manifest manifest = new ChunkedTransfer.Manifest(Long.parseLong(header[0]), Integer.parseInt(header[1]), lines.subList(1, lines.size()));
+                return manifest.fileId.equals(id) ? manifest : null;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error reading manifest: " + e.getMessage());
+                return null;
+            }
+        });
+    }
+
+    private void saveManifest(ChunkedTransfer.Manifest manifest) {
+        List<String> lines = new ArrayList<>();
+        lines.add(manifest.size + " " + manifest.chunkSize);
+        lines.addAll(manifest.chunks);
+        try {
+            Files.write(directory.resolve(manifest.fileId + ".manifest"), lines, StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            System.err.println("Error saving manifest: " + e.getMessage());
+        }
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}